@@ -2,6 +2,7 @@ package com.swampmobile.webby.examples.requests;
 
 import android.net.Uri;
 
+import com.google.gson.JsonElement;
 import com.swampmobile.webby.examples.apis.FeedzillaApi;
 import com.swampmobile.webby.requests.WebbyRequest;
 import com.swampmobile.webby.util.time.Duration;
@@ -17,7 +18,7 @@ import retrofit.client.Response;
  * only if the data they are retrieving is the same.  Webby throws away duplicate requests as
  * determined by URI comparison.
  */
-public class TestWebbyRequest extends WebbyRequest<FeedzillaApi>
+public class TestWebbyRequest extends WebbyRequest<FeedzillaApi, JsonElement>
 {
     private static final Uri BASE_URI = new Uri.Builder().scheme("feedzilla").path("categories").build();
 
@@ -27,6 +28,7 @@ public class TestWebbyRequest extends WebbyRequest<FeedzillaApi>
                 BASE_URI.buildUpon().appendQueryParameter("timestamp", System.currentTimeMillis() + "").build(),
                 FeedzillaApi.FEEDZILLA_URL,
                 FeedzillaApi.class,
+                JsonElement.class,
                 Duration.IMMEDIATELY
         );
     }
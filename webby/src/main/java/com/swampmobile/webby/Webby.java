@@ -1,7 +1,19 @@
 package com.swampmobile.webby;
 
+import com.google.gson.Gson;
 import com.squareup.otto.Bus;
 import com.squareup.otto.ThreadEnforcer;
+import com.swampmobile.webby.requests.RestAdapterRegistry;
+import com.swampmobile.webby.util.cache.CacheEvictionPolicy;
+import com.swampmobile.webby.util.cache.CacheSyncPolicy;
+import com.swampmobile.webby.util.cache.FlatFileDataCache;
+import com.swampmobile.webby.util.cache.WriteBehindDataCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import retrofit.RestAdapter;
 
@@ -12,6 +24,20 @@ public class Webby
 {
     private static RestAdapter.LogLevel retrofitLogLevel = RestAdapter.LogLevel.NONE;
     private static final Bus bus = new Bus(ThreadEnforcer.ANY);
+    private static volatile Gson gson = new Gson();
+    private static final RestAdapterRegistry restAdapterRegistry = new RestAdapterRegistry();
+    private static final List<WarmUpService> warmUpServices = Collections.synchronizedList(new ArrayList<WarmUpService>());
+
+    private static int minConcurrentRequests = 1;
+    private static int maxConcurrentRequests = 16;
+    private static final Map<String, Integer> maxConcurrentRequestsPerEndpoint = new ConcurrentHashMap<String, Integer>();
+    private static long memoryCacheBytes = 1024 * 1024;
+    private static long diskCacheBytes = FlatFileDataCache.DEFAULT_MAX_BYTES;
+    private static int diskCacheEntries = FlatFileDataCache.DEFAULT_MAX_ENTRIES;
+    private static CacheEvictionPolicy diskCacheEvictionPolicy = CacheEvictionPolicy.LEAST_RECENTLY_USED;
+    private static long cacheWriteDelayMillis = WriteBehindDataCache.DEFAULT_GROUP_DELAY_MILLIS;
+    private static CacheSyncPolicy cacheSyncPolicy = CacheSyncPolicy.NONE;
+    private static long spoolThresholdBytes = 1024 * 1024;
 
     public static RestAdapter.LogLevel getRetrofitLogLevel()
     {
@@ -23,8 +49,214 @@ public class Webby
         Webby.retrofitLogLevel = retrofitLogLevel;
     }
 
+    public static int getMinConcurrentRequests()
+    {
+        return minConcurrentRequests;
+    }
+
+    public static int getMaxConcurrentRequests()
+    {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Sets the bounds on how many requests the {@link com.swampmobile.webby.services.WebbyService}
+     * executes concurrently.  Every endpoint adapts its own limit between {@code min} and its own
+     * ceiling, which defaults to half of {@code max}, while {@code max} caps the total across all
+     * endpoints.  Takes effect the next time the service is created.
+     *
+     * @param min
+     * @param max
+     */
+    public static void setConcurrentRequestLimits(int min, int max)
+    {
+        if (min < 1 || max < min)
+            throw new IllegalArgumentException("Invalid concurrency bounds: [" + min + ", " + max + "]");
+
+        Webby.minConcurrentRequests = min;
+        Webby.maxConcurrentRequests = max;
+    }
+
+    public static Map<String, Integer> getMaxConcurrentRequestsPerEndpoint()
+    {
+        return Collections.unmodifiableMap(maxConcurrentRequestsPerEndpoint);
+    }
+
+    /**
+     * Overrides the ceiling on concurrent requests to a single endpoint.  Takes effect the next time
+     * the service is created.
+     *
+     * @param endpoint
+     * @param max
+     */
+    public static void setMaxConcurrentRequestsForEndpoint(String endpoint, int max)
+    {
+        if (max < 1)
+            throw new IllegalArgumentException("Invalid concurrency ceiling for " + endpoint + ": " + max);
+
+        maxConcurrentRequestsPerEndpoint.put(endpoint, max);
+    }
+
+    public static long getMemoryCacheBytes()
+    {
+        return memoryCacheBytes;
+    }
+
+    /**
+     * Sets how many bytes of cached resources are kept in memory, in front of the disk cache.  Pass
+     * 0 to always read from disk.  Takes effect the next time the service is created.
+     *
+     * @param bytes
+     */
+    public static void setMemoryCacheBytes(long bytes)
+    {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Invalid memory cache size: " + bytes);
+
+        Webby.memoryCacheBytes = bytes;
+    }
+
+    public static long getDiskCacheBytes()
+    {
+        return diskCacheBytes;
+    }
+
+    public static int getDiskCacheEntries()
+    {
+        return diskCacheEntries;
+    }
+
+    public static CacheEvictionPolicy getDiskCacheEvictionPolicy()
+    {
+        return diskCacheEvictionPolicy;
+    }
+
+    /**
+     * Sets the quotas of the disk cache and how it picks resources to evict once it exceeds them.
+     * Takes effect the next time the service is created.
+     *
+     * @param maxBytes
+     * @param maxEntries
+     * @param evictionPolicy
+     */
+    public static void setDiskCacheQuota(long maxBytes, int maxEntries, CacheEvictionPolicy evictionPolicy)
+    {
+        if (maxBytes < 0 || maxEntries < 0)
+            throw new IllegalArgumentException("Invalid disk cache quota: " + maxBytes + " bytes, " + maxEntries + " entries");
+
+        Webby.diskCacheBytes = maxBytes;
+        Webby.diskCacheEntries = maxEntries;
+        Webby.diskCacheEvictionPolicy = evictionPolicy;
+    }
+
+    public static long getCacheWriteDelayMillis()
+    {
+        return cacheWriteDelayMillis;
+    }
+
+    public static CacheSyncPolicy getCacheSyncPolicy()
+    {
+        return cacheSyncPolicy;
+    }
+
+    /**
+     * Responses are written to the disk cache behind the scenes, in groups.  Sets how long a
+     * write may wait for others to join its group, and how often the groups are synced to
+     * storage.  Takes effect the next time the service is created.
+     *
+     * @param groupDelayMillis
+     * @param syncPolicy
+     */
+    public static void setCacheWriteBehind(long groupDelayMillis, CacheSyncPolicy syncPolicy)
+    {
+        if (groupDelayMillis < 0)
+            throw new IllegalArgumentException("Invalid cache write delay: " + groupDelayMillis);
+
+        Webby.cacheWriteDelayMillis = groupDelayMillis;
+        Webby.cacheSyncPolicy = syncPolicy;
+    }
+
+    public static long getSpoolThresholdBytes()
+    {
+        return spoolThresholdBytes;
+    }
+
+    /**
+     * Sets the size beyond which successful response bodies are streamed straight into the disk
+     * cache as they are received, and decoded from there, rather than held in memory.  Pass
+     * {@code Long.MAX_VALUE} to always hold them in memory.
+     *
+     * @param bytes
+     */
+    public static void setSpoolThresholdBytes(long bytes)
+    {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Invalid spool threshold: " + bytes);
+
+        Webby.spoolThresholdBytes = bytes;
+    }
+
     public static Bus getBus()
     {
         return bus;
     }
+
+    public static Gson getGson()
+    {
+        return gson;
+    }
+
+    /**
+     * Sets the Gson instance whose type adapters decode request results, e.g. one with custom
+     * adapters or naming policies registered.
+     *
+     * @param gson
+     */
+    public static void setGson(Gson gson)
+    {
+        Webby.gson = gson;
+    }
+
+    public static RestAdapterRegistry getRestAdapterRegistry()
+    {
+        return restAdapterRegistry;
+    }
+
+    /**
+     * Registers a Retrofit interface whose service proxy should be created as soon as the
+     * {@link com.swampmobile.webby.services.WebbyService} starts, rather than on its first request.
+     *
+     * @param endpoint
+     * @param serviceClass
+     */
+    public static void addWarmUpService(String endpoint, Class<?> serviceClass)
+    {
+        warmUpServices.add(new WarmUpService(endpoint, serviceClass));
+    }
+
+    /**
+     * Creates the service proxies of every registered warm-up service.
+     */
+    public static void warmUpServices()
+    {
+        synchronized (warmUpServices)
+        {
+            for (WarmUpService warmUpService : warmUpServices)
+            {
+                restAdapterRegistry.warmUp(warmUpService.endpoint, warmUpService.serviceClass, retrofitLogLevel);
+            }
+        }
+    }
+
+    private static class WarmUpService
+    {
+        private final String endpoint;
+        private final Class<?> serviceClass;
+
+        private WarmUpService(String endpoint, Class<?> serviceClass)
+        {
+            this.endpoint = endpoint;
+            this.serviceClass = serviceClass;
+        }
+    }
 }
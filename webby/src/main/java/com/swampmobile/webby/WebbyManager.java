@@ -8,9 +8,11 @@ import android.os.IBinder;
 import android.util.Log;
 
 import com.swampmobile.webby.requests.WebbyRequest;
+import com.swampmobile.webby.requests.WebbyRequestHandle;
 import com.swampmobile.webby.services.WebbyService;
 import com.swampmobile.webby.util.logging.WebbyLog;
 
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 
 /**
@@ -23,7 +25,8 @@ import java.util.LinkedHashSet;
  * <p/>
  * When the WebbyManager is started, it will connect the client to the {@link com.squareup.otto.Bus}
  * that dispatches {@link com.swampmobile.webby.requests.WebbyResponse} events.  When WebbyManager
- * is stopped, those events will not be send to the client.
+ * is stopped, those events will not be send to the client, and so every request the client
+ * submitted which has not completed yet is cancelled.
  */
 public class WebbyManager
 {
@@ -40,7 +43,12 @@ public class WebbyManager
 
     // While service is binding, we need to aggregate requests that are being added.
     // Once the service is bound, we will send over these requests.
-    private LinkedHashSet<WebbyRequest> unsentRequestQueue; // chose LinkedHashSet because it prevents duplicates but also preserves insertion order (like a queue)
+    private LinkedHashSet<WebbyRequestHandle> unsentRequestQueue; // chose LinkedHashSet because it preserves insertion order (like a queue)
+
+    // Every submission which has not completed yet, so that they can be cancelled when stopped.
+    // Submissions leave it as soon as they complete or are cancelled.
+    private LinkedHashSet<WebbyRequestHandle> pendingRequests;
+    private WebbyRequestHandle.FinishListener finishListener = new PendingRequestFinishListener();
 
 
     public WebbyManager(Context context, Object busListener)
@@ -48,7 +56,8 @@ public class WebbyManager
         this.context = context;
         this.busListener = busListener;
 
-        unsentRequestQueue = new LinkedHashSet<WebbyRequest>();
+        unsentRequestQueue = new LinkedHashSet<WebbyRequestHandle>();
+        pendingRequests = new LinkedHashSet<WebbyRequestHandle>();
     }
 
     public synchronized void onStart()
@@ -76,39 +85,101 @@ public class WebbyManager
 
         Webby.getBus().unregister(busListener);
 
+        cancelPendingRequests();
+
         if (isBound)
             context.unbindService(serviceConnection);
     }
 
-    public void addRequest(WebbyRequest request)
+    /**
+     * Submits a request for execution.
+     *
+     * @param request
+     * @return handle through which the submission can be cancelled.  If this WebbyManager is not
+     * started, the request is not submitted and the returned handle is already cancelled.
+     */
+    public synchronized WebbyRequestHandle addRequest(WebbyRequest<?, ?> request)
     {
+        WebbyRequestHandle handle = new WebbyRequestHandle(request);
+
         if (!webbyStarted)
-            return;
+        {
+            handle.cancel();
+            return handle;
+        }
+
+        handle.setFinishListener(finishListener);
+        pendingRequests.add(handle);
 
         if (webbyService != null && isBound)
         {
             WebbyLog.d(TAG, "Adding request to service");
-            webbyService.addRequest(request);
+            webbyService.addRequest(handle);
         }
         else
         {
             WebbyLog.d(TAG, "Queue'ing request until service is bound");
-            unsentRequestQueue.add(request);
+            unsentRequestQueue.add(handle);
         }
+
+        return handle;
+    }
+
+    /**
+     * Cancels every request submitted through this WebbyManager which has not completed yet.
+     */
+    public synchronized void cancelPendingRequests()
+    {
+        WebbyLog.d(TAG, "Cancelling " + pendingRequests.size() + " pending requests");
+
+        // Cancelling a handle removes it from pendingRequests
+        for (WebbyRequestHandle handle : new ArrayList<WebbyRequestHandle>(pendingRequests))
+        {
+            handle.cancel();
+        }
+
+        pendingRequests.clear();
+        unsentRequestQueue.clear();
+    }
+
+    /**
+     * Returns the number of submissions which have neither completed nor been cancelled.
+     *
+     * @return
+     */
+    public synchronized int getPendingRequestCount()
+    {
+        return pendingRequests.size();
     }
 
     /**
      * If requests were accumulated while waiting to bind to the WebbyService, those requests are
      * now sent to the service.
      */
-    private void sendUnsentRequests()
+    private synchronized void sendUnsentRequests()
     {
         if (!isBound)
             return;
 
-        for (WebbyRequest req : unsentRequestQueue)
+        for (WebbyRequestHandle handle : unsentRequestQueue)
+        {
+            if (!handle.isCancelled())
+                webbyService.addRequest(handle);
+        }
+
+        unsentRequestQueue.clear();
+    }
+
+    private class PendingRequestFinishListener implements WebbyRequestHandle.FinishListener
+    {
+        @Override
+        public void onFinished(WebbyRequestHandle handle)
         {
-            webbyService.addRequest(req);
+            synchronized (WebbyManager.this)
+            {
+                pendingRequests.remove(handle);
+                unsentRequestQueue.remove(handle);
+            }
         }
     }
 
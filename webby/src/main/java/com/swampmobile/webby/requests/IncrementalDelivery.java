@@ -0,0 +1,117 @@
+package com.swampmobile.webby.requests;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.swampmobile.webby.Webby;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delivers the elements of a response whose body is a JSON array while the body is still being
+ * read.  Elements are decoded one at a time and posted to the bus in batches, as
+ * {@link com.swampmobile.webby.requests.WebbyPartialResponse}s, whenever {@code batchSize}
+ * elements have been decoded or {@code batchIntervalMillis} have passed since the last batch,
+ * whichever comes first.
+ * <p/>
+ * Bodies which are not an array are delivered as usual, without batches.
+ *
+ * @param <E> type of the array's elements
+ */
+public class IncrementalDelivery<E>
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final TypeToken<E> elementType;
+    private final int batchSize;
+    private final long batchIntervalMillis;
+
+    public IncrementalDelivery(Class<E> elementClass, int batchSize, long batchIntervalMillis)
+    {
+        this(TypeToken.get(elementClass), batchSize, batchIntervalMillis);
+    }
+
+    public IncrementalDelivery(TypeToken<E> elementType, int batchSize, long batchIntervalMillis)
+    {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+
+        this.elementType = elementType;
+        this.batchSize = batchSize;
+        this.batchIntervalMillis = batchIntervalMillis;
+    }
+
+    public TypeToken<E> getElementType()
+    {
+        return elementType;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public long getBatchIntervalMillis()
+    {
+        return batchIntervalMillis;
+    }
+
+    /**
+     * Reads the top-level array of a body, posting its elements in batches, until the end of the
+     * array or until the request is cancelled.  The stream is not closed.
+     *
+     * @param request
+     * @param body
+     * @throws IOException
+     */
+    void deliver(WebbyRequest<?, ?> request, InputStream body) throws IOException
+    {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, UTF_8));
+        reader.setLenient(true);
+
+        try
+        {
+            if (reader.peek() != JsonToken.BEGIN_ARRAY)
+                return;
+        }
+        catch (EOFException e)
+        {
+            return; // empty body
+        }
+
+        TypeAdapter<E> adapter = Webby.getGson().getAdapter(elementType);
+
+        int offset = 0;
+        List<E> batch = new ArrayList<E>(batchSize);
+        long lastBatchTime = System.currentTimeMillis();
+
+        reader.beginArray();
+        while (reader.hasNext() && !request.isCancelled())
+        {
+            batch.add(adapter.read(reader));
+
+            long now = System.currentTimeMillis();
+            if (batch.size() >= batchSize || now - lastBatchTime >= batchIntervalMillis)
+            {
+                Webby.getBus().post(new WebbyPartialResponse<E>(request.getUri(), offset, batch));
+                offset += batch.size();
+                batch = new ArrayList<E>(batchSize);
+                lastBatchTime = now;
+            }
+        }
+
+        if (request.isCancelled())
+            return;
+
+        reader.endArray();
+        if (!batch.isEmpty())
+            Webby.getBus().post(new WebbyPartialResponse<E>(request.getUri(), offset, batch));
+    }
+}
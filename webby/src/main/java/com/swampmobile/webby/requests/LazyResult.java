@@ -0,0 +1,246 @@
+package com.swampmobile.webby.requests;
+
+import android.net.Uri;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.swampmobile.webby.Webby;
+import com.swampmobile.webby.util.cache.DataCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The result of a request, which is only decoded the first time someone asks for it.
+ * <p/>
+ * A result is backed either by an object that is already decoded, by the raw UTF-8 bytes of a
+ * response body, or by an entry of a {@link com.swampmobile.webby.util.cache.DataCache}.  Decoding
+ * happens at most once; the decoded object is kept for every later call.  A result backed by a
+ * cache entry opens the entry when it is created and holds on to what it read until it is decoded,
+ * so evicting or rewriting the entry in the meantime changes nothing about the result.
+ *
+ * @param <R> type the result is decoded to
+ */
+public class LazyResult<R>
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Uri cacheId;
+    private final TypeAdapter<R> adapter;
+
+    private byte[] bytes; // guarded by this
+    private InputStream pinned; // the cache entry as it was opened, guarded by this
+    private R value; // guarded by this
+    private boolean decoded; // guarded by this
+
+    private LazyResult(R value, byte[] bytes, InputStream pinned, Uri cacheId, TypeAdapter<R> adapter)
+    {
+        this.value = value;
+        this.decoded = bytes == null && pinned == null;
+        this.bytes = bytes;
+        this.pinned = pinned;
+        this.cacheId = cacheId;
+        this.adapter = adapter;
+    }
+
+    public static <R> LazyResult<R> of(R value)
+    {
+        return new LazyResult<R>(value, null, null, null, null);
+    }
+
+    public static <R> LazyResult<R> fromBytes(byte[] bytes, TypeAdapter<R> adapter)
+    {
+        return new LazyResult<R>(null, bytes, null, null, adapter);
+    }
+
+    /**
+     * Opens the cache entry right away.  The caches hand out streams over a copy or a mapping of
+     * the entry, so the result decodes the entry as it is now even if it is evicted or written
+     * again before anyone asks for the result.
+     *
+     * @param cache
+     * @param id
+     * @param adapter
+     * @return
+     * @throws DataCache.CacheReadException if the cache does not hold the entry (any more)
+     */
+    public static <R> LazyResult<R> fromCache(DataCache cache, Uri id, TypeAdapter<R> adapter) throws DataCache.CacheReadException
+    {
+        return new LazyResult<R>(null, null, cache.openForReading(id), id, adapter);
+    }
+
+    /**
+     * Returns the decoded result, decoding it first if nobody has asked for it yet.
+     *
+     * @return
+     * @throws JsonParseException if the backing bytes could not be read or are not a valid
+     *                            document of the result type
+     */
+    public synchronized R get()
+    {
+        if (!decoded)
+        {
+            InputStream in = open();
+            try
+            {
+                value = decode(newReader(in));
+            }
+            catch (IOException e)
+            {
+                throw new JsonParseException("Could not decode result", e);
+            }
+            finally
+            {
+                close(in);
+                pinned = null;
+            }
+            decoded = true;
+        }
+        return value;
+    }
+
+    public synchronized boolean isDecoded()
+    {
+        return decoded;
+    }
+
+    /**
+     * Returns the result as a JSON tree.  If the result has not been decoded yet, the tree is
+     * parsed from the backing bytes directly, without decoding the result itself.
+     *
+     * @return
+     */
+    public JsonElement toJsonTree()
+    {
+        byte[] content;
+        synchronized (this)
+        {
+            // A pinned cache entry can only be read once, so it is read by decoding the result
+            if (!decoded && bytes == null)
+                get();
+
+            if (decoded)
+                return value instanceof JsonElement ? (JsonElement) value : Webby.getGson().toJsonTree(value);
+            content = bytes;
+        }
+
+        InputStream in = new ByteArrayInputStream(content);
+        try
+        {
+            return JsonParser.parseReader(newReader(in));
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Returns the raw bytes backing this result, or null if it is not backed by bytes in memory.
+     *
+     * @return
+     */
+    public synchronized byte[] getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns true if the raw bytes backing this result are the given ones.  A pinned cache entry
+     * of the same length is read into memory to be compared, and is decoded from there later.
+     *
+     * @param content
+     * @return false if they differ, or if this result is backed by a decoded object only
+     */
+    public synchronized boolean contentEquals(byte[] content)
+    {
+        if (bytes == null && pinned != null)
+        {
+            try
+            {
+                // Streams of cache entries know their remaining length
+                if (pinned.available() != content.length)
+                    return false;
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+
+            try
+            {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(content.length);
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = pinned.read(buffer)) != -1)
+                {
+                    out.write(buffer, 0, read);
+                }
+                bytes = out.toByteArray();
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+            finally
+            {
+                close(pinned);
+                pinned = null;
+            }
+        }
+
+        return bytes != null && Arrays.equals(bytes, content);
+    }
+
+    private R decode(JsonReader reader) throws IOException
+    {
+        try
+        {
+            reader.peek();
+        }
+        catch (EOFException e)
+        {
+            return null; // empty body
+        }
+        return adapter.read(reader);
+    }
+
+    // guarded by this
+    private InputStream open()
+    {
+        if (bytes != null)
+            return new ByteArrayInputStream(bytes);
+
+        if (pinned == null)
+            throw new JsonParseException("Cached result could not be read: " + cacheId);
+        return pinned;
+    }
+
+    private static JsonReader newReader(InputStream in)
+    {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static void close(InputStream in)
+    {
+        try
+        {
+            in.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing was written, nothing is lost
+        }
+    }
+}
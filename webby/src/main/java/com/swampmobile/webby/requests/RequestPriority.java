@@ -0,0 +1,19 @@
+package com.swampmobile.webby.requests;
+
+/**
+ * Scheduling class of a {@link com.swampmobile.webby.requests.WebbyRequest}.  Queue'd requests of a
+ * higher class always leave the queue before those of a lower class, and requests of the same class
+ * leave in the order they were submitted.
+ */
+public enum RequestPriority
+{
+    USER_BLOCKING, // the user is staring at a spinner until this completes
+    VISIBLE, // feeds content that is currently on screen
+    PREFETCH, // content the user is likely to navigate to soon
+    BACKGROUND; // syncs and anything else the user is not waiting on
+
+    public boolean isHigherThan(RequestPriority other)
+    {
+        return ordinal() < other.ordinal();
+    }
+}
@@ -0,0 +1,105 @@
+package com.swampmobile.webby.requests;
+
+import com.swampmobile.webby.util.logging.WebbyLog;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import retrofit.RestAdapter;
+import retrofit.client.Client;
+
+/**
+ * Caches Retrofit service proxies so that a {@link WebbyRequest} does not pay for building a
+ * RestAdapter, generating a proxy and creating an HTTP client every time it runs.
+ * <p/>
+ * Proxies are keyed by endpoint, interface class and log level.  All of them share a single HTTP
+ * client, and with it the underlying pool of kept-alive connections.
+ */
+public class RestAdapterRegistry
+{
+    private static final String TAG = "RestAdapterRegistry";
+
+    private final Client client = new WebbyClient();
+    private final ConcurrentHashMap<ServiceKey, Object> services = new ConcurrentHashMap<ServiceKey, Object>();
+
+    /**
+     * Returns the proxy for the given Retrofit interface and endpoint, creating it if needed.
+     *
+     * @param endpoint
+     * @param serviceClass
+     * @param logLevel
+     * @param <T>
+     * @return
+     */
+    public <T> T getService(String endpoint, Class<T> serviceClass, RestAdapter.LogLevel logLevel)
+    {
+        ServiceKey key = new ServiceKey(endpoint, serviceClass, logLevel);
+
+        Object service = services.get(key);
+        if (service == null)
+        {
+            WebbyLog.d(TAG, "Creating service proxy for " + serviceClass.getName() + " at " + endpoint);
+            RestAdapter restAdapter = new RestAdapter.Builder()
+                    .setEndpoint(endpoint)
+                    .setLogLevel(logLevel)
+                    .setClient(client)
+                    .build();
+
+            Object newService = restAdapter.create(serviceClass);
+            service = services.putIfAbsent(key, newService);
+            if (service == null)
+                service = newService;
+        }
+
+        return serviceClass.cast(service);
+    }
+
+    /**
+     * Creates the proxy for the given Retrofit interface and endpoint ahead of its first use.
+     *
+     * @param endpoint
+     * @param serviceClass
+     * @param logLevel
+     */
+    public void warmUp(String endpoint, Class<?> serviceClass, RestAdapter.LogLevel logLevel)
+    {
+        getService(endpoint, serviceClass, logLevel);
+    }
+
+    private static class ServiceKey
+    {
+        private final String endpoint;
+        private final Class<?> serviceClass;
+        private final RestAdapter.LogLevel logLevel;
+
+        private ServiceKey(String endpoint, Class<?> serviceClass, RestAdapter.LogLevel logLevel)
+        {
+            this.endpoint = endpoint;
+            this.serviceClass = serviceClass;
+            this.logLevel = logLevel;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = endpoint.hashCode();
+            hash = 31 * hash + serviceClass.hashCode();
+            hash = 31 * hash + logLevel.hashCode();
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (this == other)
+                return true;
+
+            if (!(other instanceof ServiceKey))
+                return false;
+
+            ServiceKey otherKey = (ServiceKey) other;
+            return endpoint.equals(otherKey.endpoint)
+                    && serviceClass == otherKey.serviceClass
+                    && logLevel == otherKey.logLevel;
+        }
+    }
+}
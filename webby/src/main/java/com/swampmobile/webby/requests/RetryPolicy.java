@@ -0,0 +1,101 @@
+package com.swampmobile.webby.requests;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides whether a failed {@link com.swampmobile.webby.requests.WebbyRequest} is tried again, and
+ * how long to wait before doing so.
+ * <p/>
+ * The wait grows exponentially from {@code initialBackoffMillis} up to {@code maxBackoffMillis}.
+ * Each wait is then shortened by a random share of up to {@code jitter}, so that clients which
+ * failed together do not all retry together.
+ * <p/>
+ * A request is retried if its call failed without an HTTP response (a network error), or if the
+ * response carried one of the retryable status codes, as recorded by
+ * {@link WebbyRequest#handleError(retrofit.RetrofitError)}.
+ */
+public class RetryPolicy
+{
+    private static final double DEFAULT_JITTER = 0.5;
+    private static final int[] DEFAULT_RETRYABLE_STATUS_CODES = {408, 429, 500, 502, 503, 504};
+
+    private static final Random random = new Random();
+
+    // Declared after the defaults it is built from, which are only set once initialization reaches them
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double jitter;
+    private final Set<Integer> retryableStatusCodes;
+
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis)
+    {
+        this(maxAttempts, initialBackoffMillis, maxBackoffMillis, DEFAULT_JITTER, DEFAULT_RETRYABLE_STATUS_CODES);
+    }
+
+    /**
+     * @param maxAttempts          total number of attempts, including the first one
+     * @param initialBackoffMillis wait before the first retry
+     * @param maxBackoffMillis     cap on the wait before any retry
+     * @param jitter               between 0 and 1, the largest share of a wait that may be randomly
+     *                             cut from it
+     * @param retryableStatusCodes HTTP status codes worth retrying
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, double jitter, int... retryableStatusCodes)
+    {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.jitter = Math.max(0, Math.min(1, jitter));
+
+        this.retryableStatusCodes = new HashSet<Integer>();
+        for (int statusCode : retryableStatusCodes)
+            this.retryableStatusCodes.add(statusCode);
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    public Set<Integer> getRetryableStatusCodes()
+    {
+        return retryableStatusCodes;
+    }
+
+    /**
+     * Returns true if the given request, which just failed its {@code attempt}'th attempt, should be
+     * tried again.
+     *
+     * @param request
+     * @param attempt 1 for the first attempt
+     * @return
+     */
+    public boolean shouldRetry(WebbyRequest<?, ?> request, int attempt)
+    {
+        if (attempt >= maxAttempts || request.wasSuccessful() || request.isCancelled())
+            return false;
+
+        int statusCode = request.getStatusCode();
+        return statusCode == 0 || retryableStatusCodes.contains(statusCode);
+    }
+
+    /**
+     * Returns how long to wait before the attempt following the given one.
+     *
+     * @param attempt 1 for the first attempt
+     * @return
+     */
+    public long getBackoffMillis(int attempt)
+    {
+        double backoff = initialBackoffMillis * Math.pow(2, attempt - 1);
+        backoff = Math.min(backoff, maxBackoffMillis);
+
+        return (long) (backoff * (1 - jitter * random.nextDouble()));
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.swampmobile.webby.requests;
+
+import com.swampmobile.webby.util.cache.CacheValidators;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit.client.Header;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.client.UrlConnectionClient;
+
+/**
+ * The HTTP client shared by every Retrofit service proxy Webby creates.
+ * <p/>
+ * Retrofit runs synchronous calls on the calling thread, so the {@link WebbyRequest} a call belongs
+ * to is tracked per thread.  Every connection this client opens is handed to that request so that
+ * the request can close it when it is cancelled or aborted, and calls of requests that carry
+ * validators of a cached copy are made conditional.
+ */
+class WebbyClient extends UrlConnectionClient
+{
+    private static final ThreadLocal<WebbyRequest<?, ?>> currentRequest = new ThreadLocal<WebbyRequest<?, ?>>();
+
+    static void setCurrentRequest(WebbyRequest<?, ?> request)
+    {
+        currentRequest.set(request);
+    }
+
+    static void clearCurrentRequest()
+    {
+        currentRequest.remove();
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException
+    {
+        WebbyRequest<?, ?> webbyRequest = currentRequest.get();
+        if (webbyRequest != null && webbyRequest.getConditionalValidators() != null)
+            request = makeConditional(request, webbyRequest.getConditionalValidators());
+
+        return super.execute(request);
+    }
+
+    private Request makeConditional(Request request, CacheValidators validators)
+    {
+        List<Header> headers = new ArrayList<Header>(request.getHeaders());
+        if (validators.getETag() != null)
+            headers.add(new Header("If-None-Match", validators.getETag()));
+        if (validators.getLastModified() != null)
+            headers.add(new Header("If-Modified-Since", validators.getLastModified()));
+
+        return new Request(request.getMethod(), request.getUrl(), headers, request.getBody());
+    }
+
+    @Override
+    protected HttpURLConnection openConnection(Request request) throws IOException
+    {
+        WebbyRequest<?, ?> webbyRequest = currentRequest.get();
+        if (webbyRequest != null && webbyRequest.isCancelled())
+            throw new IOException("Request was cancelled");
+
+        HttpURLConnection connection = super.openConnection(request);
+
+        if (webbyRequest != null)
+            webbyRequest.onConnectionOpened(connection);
+
+        return connection;
+    }
+}
@@ -0,0 +1,49 @@
+package com.swampmobile.webby.requests;
+
+import android.net.Uri;
+
+import java.util.List;
+
+/**
+ * A batch of elements of a response whose body is a JSON array, posted while the rest of the body
+ * is still being read.  See {@link com.swampmobile.webby.requests.IncrementalDelivery}.
+ * <p/>
+ * Batches arrive in order.  Once the whole array has been read, the usual
+ * {@link com.swampmobile.webby.requests.WebbyResponse} is posted to mark completion.  If the
+ * request is tried again after a failure, batches start over from offset 0.
+ *
+ * @param <E> type of the array's elements
+ */
+public class WebbyPartialResponse<E>
+{
+    private Uri resourceId;
+    private int offset;
+    private List<E> elements;
+
+    public WebbyPartialResponse(Uri resourceId, int offset, List<E> elements)
+    {
+        this.resourceId = resourceId;
+        this.offset = offset;
+        this.elements = elements;
+    }
+
+    public Uri getResourceId()
+    {
+        return resourceId;
+    }
+
+    /**
+     * Returns the index, within the whole array, of the first element of this batch.
+     *
+     * @return
+     */
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public List<E> getElements()
+    {
+        return elements;
+    }
+}
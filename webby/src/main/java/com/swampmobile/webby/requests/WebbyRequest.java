@@ -2,19 +2,25 @@ package com.swampmobile.webby.requests;
 
 import android.net.Uri;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
-import com.google.gson.stream.JsonReader;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
 import com.swampmobile.webby.Webby;
+import com.swampmobile.webby.util.cache.CacheSink;
+import com.swampmobile.webby.util.cache.CacheValidators;
+import com.swampmobile.webby.util.cache.DataCache;
+import com.swampmobile.webby.util.io.TeeInputStream;
+import com.swampmobile.webby.util.json.JsonProjection;
 import com.swampmobile.webby.util.logging.WebbyLog;
 import com.swampmobile.webby.util.time.Duration;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 
-import retrofit.ErrorHandler;
-import retrofit.RestAdapter;
 import retrofit.RetrofitError;
+import retrofit.client.Header;
 import retrofit.client.Response;
 
 /**
@@ -30,37 +36,84 @@ import retrofit.client.Response;
  * <p/>
  * - make the desired webservice call in the doWebserviceCall() method
  * <p/>
+ * Response bodies are kept as raw bytes and only decoded into the result type R, in a single
+ * streaming pass, when someone asks for the result.  Decoding uses the
+ * {@link com.google.gson.TypeAdapter} that {@link com.swampmobile.webby.Webby#getGson()} provides
+ * for R.  Requests which want the raw JSON tree can simply use {@code JsonElement} as R.
+ * <p/>
+ * Successful bodies larger than {@link com.swampmobile.webby.Webby#getSpoolThresholdBytes()} are
+ * not kept in memory at all: they are streamed into the cache as they are received, and decoded
+ * from there.
+ * <p/>
  * Note: There is no special scheme for the URI, it can be anything you want so long as it is
  * different for different resources.
  *
- * @param <T>
+ * @param <T> Retrofit interface used to make the call
+ * @param <R> type the response body is decoded to
  */
-public abstract class WebbyRequest<T extends Object> implements Runnable
+public abstract class WebbyRequest<T extends Object, R> implements Runnable, Cloneable
 {
     private static final String TAG = "WebbyRequest";
 
     private Uri uri;
     private String endpoint;
     private Class<T> restAdapterClass;
+    private final TypeToken<R> resultType;
+    private volatile TypeAdapter<R> resultAdapter;
     private boolean resultFromCache;
     private Duration refreshDuration;
+    private Duration maxStaleness;
+    private JsonProjection projection;
+    private IncrementalDelivery<?> incrementalDelivery;
+    private RequestPriority priority = RequestPriority.VISIBLE;
+    private long deadlineMillis = 0;
+    private boolean hedged = false;
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+    private volatile boolean cancelled = false;
+    private volatile HttpURLConnection activeConnection;
 
     private int statusCode;
     private String statusPhrase;
-    private JsonElement data;
+    private LazyResult<R> data;
+    private CacheValidators responseValidators;
+    private boolean notModified;
+    private boolean spooledToCache;
+
+    // Large bodies are streamed into this cache rather than held in memory
+    private DataCache spoolCache;
+
+    // Validators of the cached copy of this resource, sent to make the call conditional
+    private CacheValidators conditionalValidators;
 
     private Exception loadException;
 
-    public WebbyRequest(Uri uri, String endpoint, Class<T> restAdapterClass)
+    public WebbyRequest(Uri uri, String endpoint, Class<T> restAdapterClass, Class<R> resultClass)
     {
-        this(uri, endpoint, restAdapterClass, Duration.IMMEDIATELY);
+        this(uri, endpoint, restAdapterClass, resultClass, Duration.IMMEDIATELY);
     }
 
-    public WebbyRequest(Uri uri, String endpoint, Class<T> restAdapterClass, Duration maxCacheAge)
+    public WebbyRequest(Uri uri, String endpoint, Class<T> restAdapterClass, Class<R> resultClass, Duration maxCacheAge)
+    {
+        this(uri, endpoint, restAdapterClass, TypeToken.get(resultClass), maxCacheAge);
+    }
+
+    /**
+     * Use this constructor for generic result types, e.g.
+     * {@code new TypeToken<List<Category>>(){}}.
+     *
+     * @param uri
+     * @param endpoint
+     * @param restAdapterClass
+     * @param resultType
+     * @param maxCacheAge
+     */
+    public WebbyRequest(Uri uri, String endpoint, Class<T> restAdapterClass, TypeToken<R> resultType, Duration maxCacheAge)
     {
         this.uri = uri;
         this.endpoint = endpoint;
         this.restAdapterClass = restAdapterClass;
+        this.resultType = resultType;
         this.refreshDuration = maxCacheAge;
     }
 
@@ -78,6 +131,237 @@ public abstract class WebbyRequest<T extends Object> implements Runnable
         return refreshDuration;
     }
 
+    public RequestPriority getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * Sets the scheduling class of this request.  Defaults to {@link RequestPriority#VISIBLE}.  The
+     * priority is not part of a request's identity, so identical requests of different priority are
+     * still coalesced; the shared execution is then promoted to the highest priority among them.
+     *
+     * @param priority
+     */
+    public void setPriority(RequestPriority priority)
+    {
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the time, in millis from submission, within which this request must complete, or 0 if
+     * it has no deadline.
+     *
+     * @return
+     */
+    public long getDeadline()
+    {
+        return deadlineMillis;
+    }
+
+    /**
+     * Sets a deadline, in millis from submission, covering both the time this request spends queue'd
+     * and the time it spends executing.  A request which misses its deadline has its network call
+     * aborted and fails with a {@link java.util.concurrent.TimeoutException}.  Defaults to 0, which
+     * means no deadline.
+     *
+     * @param deadlineMillis
+     */
+    public void setDeadline(long deadlineMillis)
+    {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the policy used to retry this request when it fails.  Defaults to
+     * {@link RetryPolicy#NONE}.
+     *
+     * @param retryPolicy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public Duration getMaxStaleness()
+    {
+        return maxStaleness;
+    }
+
+    /**
+     * Enables stale-while-revalidate: once the cached copy of this resource is older than its refresh
+     * duration, but still younger than {@code maxStaleness}, it is posted right away (flagged as
+     * coming from cache) while a refresh runs in the background.  The refresh is only posted as a
+     * second response if its content differs from the stale copy.
+     * <p/>
+     * Cached copies older than {@code maxStaleness} are never served stale.  Pass null, the default,
+     * to always wait for the network once the cached copy has expired.
+     *
+     * @param maxStaleness
+     */
+    public void setMaxStaleness(Duration maxStaleness)
+    {
+        this.maxStaleness = maxStaleness;
+    }
+
+    public JsonProjection getProjection()
+    {
+        return projection;
+    }
+
+    /**
+     * Keeps only the members found at the projection's paths of successful responses.  The rest of
+     * the body is skipped while it is being read, and only the projected document is decoded and
+     * cached.  Pass null, the default, to keep the whole body.
+     * <p/>
+     * The projected document is what gets cached under this request's URI, so requests for the same
+     * resource with different projections must have different URIs.
+     *
+     * @param projection
+     */
+    public void setProjection(JsonProjection projection)
+    {
+        this.projection = projection;
+    }
+
+    public IncrementalDelivery<?> getIncrementalDelivery()
+    {
+        return incrementalDelivery;
+    }
+
+    /**
+     * Posts the elements of successful responses whose body is a JSON array in batches, while the
+     * body is still being read, before the usual response marks completion.  Cache hits are
+     * delivered as usual, without batches.
+     * <p/>
+     * Requests with incremental delivery are never hedged, and their projection, if any, is
+     * ignored.  Pass null, the default, to deliver the whole body at once.
+     *
+     * @param incrementalDelivery
+     */
+    public void setIncrementalDelivery(IncrementalDelivery<?> incrementalDelivery)
+    {
+        this.incrementalDelivery = incrementalDelivery;
+    }
+
+    public boolean isHedged()
+    {
+        return hedged;
+    }
+
+    /**
+     * Enables hedging: if this request's network call has not returned once the usual latency of its
+     * endpoint has passed, a duplicate call is fired and whichever returns first is used.
+     * <p/>
+     * Only enable this for idempotent calls (GETs), since the server may see the call twice.
+     *
+     * @param hedged
+     */
+    public void setHedged(boolean hedged)
+    {
+        this.hedged = hedged;
+    }
+
+    /**
+     * Aborts this request.  If its network call is in progress, the underlying connection is closed
+     * and the call fails; if it has not started yet, it never will.
+     * <p/>
+     * Clients should cancel through the {@link com.swampmobile.webby.requests.WebbyRequestHandle}
+     * they received on submission, which takes care of identical requests sharing this one's
+     * execution.  A cancelled request is not run again until it is submitted again.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        abort();
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Forgets that an earlier submission of this request was cancelled, so that submitting it again
+     * runs it, e.g. after a {@link com.swampmobile.webby.WebbyManager} was stopped and restarted.
+     */
+    public void clearCancellation()
+    {
+        cancelled = false;
+    }
+
+    /**
+     * Closes the connection of the network call in progress, if any, making that call fail.  Unlike
+     * {@code cancel()}, the request may still be run again afterwards.
+     */
+    public void abort()
+    {
+        HttpURLConnection connection = activeConnection;
+        if (connection != null)
+            connection.disconnect();
+    }
+
+    /**
+     * Returns a duplicate of this request, as it was before it was run, which can execute
+     * independently of this one.  Fields declared by subclasses are copied shallowly.
+     *
+     * @return
+     */
+    public WebbyRequest<T, R> copy()
+    {
+        try
+        {
+            @SuppressWarnings("unchecked")
+            WebbyRequest<T, R> copy = (WebbyRequest<T, R>) clone();
+            copy.clearResult();
+            copy.cancelled = false;
+            copy.activeConnection = null;
+            return copy;
+        }
+        catch (CloneNotSupportedException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Forgets the result of any previous execution of this request.
+     */
+    public void clearResult()
+    {
+        resultFromCache = false;
+        statusCode = 0;
+        statusPhrase = null;
+        data = null;
+        responseValidators = null;
+        notModified = false;
+        spooledToCache = false;
+        loadException = null;
+    }
+
+    /**
+     * Replaces the result of this request with the result of another execution of it, e.g. one
+     * produced by a {@code copy()}.
+     *
+     * @param other
+     */
+    public void copyResultFrom(WebbyRequest<T, R> other)
+    {
+        this.resultFromCache = other.resultFromCache;
+        this.statusCode = other.statusCode;
+        this.statusPhrase = other.statusPhrase;
+        this.data = other.data;
+        this.responseValidators = other.responseValidators;
+        this.notModified = other.notModified;
+        this.spooledToCache = other.spooledToCache;
+        this.loadException = other.loadException;
+    }
+
     public boolean isDataFromCache()
     {
         return resultFromCache;
@@ -120,21 +404,148 @@ public abstract class WebbyRequest<T extends Object> implements Runnable
     }
 
     /**
-     * Returns the JsonElement data retrieved by a successful request.  Returns null if the request
-     * was unsuccessful.
+     * Returns the data retrieved by a successful request.  Returns null if the request was
+     * unsuccessful.  The data is decoded on the first call.
+     *
+     * @return
+     * @throws com.google.gson.JsonParseException if the data could not be decoded
+     */
+    public R getData()
+    {
+        return data != null ? data.get() : null;
+    }
+
+    public void setData(R data)
+    {
+        this.data = LazyResult.of(data);
+    }
+
+    /**
+     * Returns the data retrieved by this request without decoding it.
      *
      * @return
      */
-    public JsonElement getData()
+    public LazyResult<R> getLazyData()
     {
         return data;
     }
 
-    public void setData(JsonElement data)
+    public void setLazyData(LazyResult<R> data)
     {
         this.data = data;
     }
 
+    /**
+     * Returns the body of the response exactly as it was received, or null if this request's data
+     * did not come from the network.
+     *
+     * @return
+     */
+    public byte[] getRawData()
+    {
+        return data != null ? data.getBytes() : null;
+    }
+
+    public TypeToken<R> getResultType()
+    {
+        return resultType;
+    }
+
+    /**
+     * Returns the adapter which decodes and encodes this request's result.  Gson caches adapters per
+     * type, and the one found is kept for the lifetime of this request.
+     *
+     * @return
+     */
+    public TypeAdapter<R> getResultAdapter()
+    {
+        TypeAdapter<R> adapter = resultAdapter;
+        if (adapter == null)
+        {
+            adapter = Webby.getGson().getAdapter(resultType);
+            resultAdapter = adapter;
+        }
+        return adapter;
+    }
+
+    /**
+     * Encodes a result of this request back to JSON, e.g. to store it in a cache.
+     *
+     * @param result
+     * @return
+     */
+    public String encode(R result)
+    {
+        return getResultAdapter().toJson(result);
+    }
+
+    /**
+     * Returns the HTTP validators (ETag / Last-Modified) the server sent with its response, or null
+     * if it sent none.
+     *
+     * @return
+     */
+    public CacheValidators getResponseValidators()
+    {
+        return responseValidators;
+    }
+
+    /**
+     * Returns true if this request was made conditional on the cached copy of its resource and the
+     * server answered "304 Not Modified".  In that case the request carries no data: the cached
+     * copy is still current.
+     *
+     * @return
+     */
+    public boolean isNotModified()
+    {
+        return notModified;
+    }
+
+    /**
+     * Returns true if the body of the response was too large to keep in memory and was streamed
+     * into the spool cache instead.  In that case the cache already holds the response, along with
+     * its validators, and the data is decoded from there.
+     *
+     * @return
+     */
+    public boolean isDataSpooledToCache()
+    {
+        return spooledToCache;
+    }
+
+    public DataCache getSpoolCache()
+    {
+        return spoolCache;
+    }
+
+    /**
+     * Sets the cache that successful bodies too large to keep in memory are streamed into, under
+     * this request's URI.  Pass null to always keep bodies in memory.
+     *
+     * @param cache
+     */
+    public void setSpoolCache(DataCache cache)
+    {
+        this.spoolCache = cache;
+    }
+
+    public CacheValidators getConditionalValidators()
+    {
+        return conditionalValidators;
+    }
+
+    /**
+     * Makes the next run of this request conditional: the given validators are sent as
+     * {@code If-None-Match} / {@code If-Modified-Since} headers.  Pass null to make it unconditional.
+     *
+     * @param validators
+     */
+    public void setConditionalValidators(CacheValidators validators)
+    {
+        this.conditionalValidators = validators;
+    }
+
     /**
      * Returns the Exception that arose during the request, if the request was unsuccessful.  If the
      * request was successful, returns null.
@@ -146,7 +557,7 @@ public abstract class WebbyRequest<T extends Object> implements Runnable
         return loadException;
     }
 
-    protected void setException(Exception e)
+    public void setException(Exception e)
     {
         this.loadException = e;
     }
@@ -156,6 +567,11 @@ public abstract class WebbyRequest<T extends Object> implements Runnable
         return uri;
     }
 
+    public String getEndpoint()
+    {
+        return endpoint;
+    }
+
     /**
      * Overriden so that requests can be stuck in hashmaps, hashsets, etc without duplication.  A
      * request is defined by its URI and instance variable values.
@@ -186,7 +602,7 @@ public abstract class WebbyRequest<T extends Object> implements Runnable
         if (!(other instanceof WebbyRequest))
             return false;
 
-        WebbyRequest otherReq = (WebbyRequest) other;
+        WebbyRequest<?, ?> otherReq = (WebbyRequest<?, ?>) other;
 
         if (otherReq.hashCode() != hashCode())
             return false;
@@ -195,32 +611,23 @@ public abstract class WebbyRequest<T extends Object> implements Runnable
     }
 
     /**
-     * Makes call to web service and parses result as JSON.  Returns JsonElement corresponding to
-     * return data.
+     * Makes call to web service and decodes the result.  The decoded result is available from
+     * getData().
      *
      * @return
      * @throws Exception
      */
     private void loadInBackground()
     {
-        // Build Webservice
-        RestAdapter restAdapter = new RestAdapter.Builder()
-                .setEndpoint(endpoint)
-                .setErrorHandler(new ErrorHandler()
-                {
-                    @Override
-                    public Throwable handleError(RetrofitError cause)
-                    {
-                        return WebbyRequest.this.handleError(cause);
-                    }
-                })
-                .setLogLevel(Webby.getRetrofitLogLevel())
-                .build();
+        // Forget whatever a previous attempt left behind
+        clearResult();
 
-        T webservice = restAdapter.create(restAdapterClass);
+        // Look up Webservice
+        T webservice = Webby.getRestAdapterRegistry().getService(endpoint, restAdapterClass, Webby.getRetrofitLogLevel());
 
         // Run call
         Response response;
+        WebbyClient.setCurrentRequest(this);
         try
         {
             WebbyLog.d(TAG, "Running webservice call");
@@ -228,11 +635,66 @@ public abstract class WebbyRequest<T extends Object> implements Runnable
 
             processResponse(response);
         }
+        catch(RetrofitError cause)
+        {
+            // Service proxies are shared between requests, so errors are handed to this request's
+            // handleError() here rather than through a per-request Retrofit ErrorHandler
+            recoverFromError(cause);
+        }
         catch(Exception e)
         {
             WebbyLog.d(TAG, "An exception occurred during request: " + e);
             setException(e);
         }
+        finally
+        {
+            WebbyClient.clearCurrentRequest();
+            activeConnection = null;
+        }
+    }
+
+    private void recoverFromError(RetrofitError cause)
+    {
+        Response response = cause.getResponse();
+        if(conditionalValidators != null && response != null && response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED)
+        {
+            WebbyLog.d(TAG, "Resource not modified since it was cached");
+            setStatusCode(response.getStatus());
+            setStatusPhrase(response.getReason());
+            notModified = true;
+            return;
+        }
+
+        Throwable error;
+        try
+        {
+            error = handleError(cause);
+        }
+        catch(RuntimeException e)
+        {
+            error = e;
+        }
+
+        WebbyLog.d(TAG, "An exception occurred during request: " + error);
+        if(error instanceof Error)
+            throw (Error) error;
+
+        setException((Exception) error);
+    }
+
+    /**
+     * Called by the shared {@link WebbyClient} whenever it opens a connection on this request's
+     * behalf, so that {@code cancel()} and {@code abort()} can close it.
+     *
+     * @param connection
+     */
+    void onConnectionOpened(HttpURLConnection connection)
+    {
+        activeConnection = connection;
+
+        // cancel() may have missed the connection while it was being opened
+        if (cancelled)
+            connection.disconnect();
     }
 
     /**
@@ -271,9 +733,108 @@ public abstract class WebbyRequest<T extends Object> implements Runnable
         setStatusPhrase(response.getReason());
         WebbyLog.v(TAG, "Response status, code: " + statusCode + ", reason: " + statusPhrase);
 
-        WebbyLog.d(TAG, "Parsing response: " + response);
-        JsonParser parser = new JsonParser();
-        setData(parser.parse(new JsonReader(new InputStreamReader(response.getBody().in()))));
+        readValidators(response);
+
+        WebbyLog.d(TAG, "Reading response: " + response);
+
+        // Keep the bytes as they are, they are only decoded if someone asks for them and can be
+        // cached without re-encoding
+        long length = response.getBody().length();
+        InputStream body = response.getBody().in();
+        try
+        {
+            boolean successful = statusCode >= 200 && statusCode < 300;
+            byte[] bytes;
+            if (incrementalDelivery != null && successful)
+            {
+                // Keep the raw bytes for the completion response and the cache while the elements
+                // are delivered
+                BodySpool raw = new BodySpool(length);
+                try
+                {
+                    TeeInputStream tee = new TeeInputStream(body, raw);
+                    incrementalDelivery.deliver(this, tee);
+                    tee.drain();
+                    bytes = raw.finish();
+                }
+                finally
+                {
+                    raw.close();
+                }
+            }
+            else if (projection != null && successful)
+            {
+                bytes = projection.apply(body);
+                readFully(body, new ByteArrayOutputStream(0)); // trailing whitespace
+            }
+            else if (spoolCache != null && successful)
+            {
+                bytes = readOrSpool(body, length);
+            }
+            else
+            {
+                ByteArrayOutputStream raw = new ByteArrayOutputStream(length > 0 && length <= Integer.MAX_VALUE ? (int) length : 1024);
+                readFully(body, raw);
+                bytes = raw.toByteArray();
+            }
+            if (bytes != null)
+                data = LazyResult.fromBytes(bytes, getResultAdapter());
+            else
+                data = LazyResult.fromCache(spoolCache, uri, getResultAdapter());
+        }
+        finally
+        {
+            // Fully releasing the body lets the connection go back to the keep-alive pool
+            body.close();
+        }
+    }
+
+    /**
+     * Reads a body into memory, unless it turns out to be larger than the spool threshold, in
+     * which case it is streamed into the spool cache instead.
+     *
+     * @param body
+     * @param length length of the body, or -1 if unknown
+     * @return the body, or null if it was spooled
+     */
+    private byte[] readOrSpool(InputStream body, long length) throws IOException
+    {
+        BodySpool raw = new BodySpool(length);
+        try
+        {
+            readFully(body, raw);
+            return raw.finish();
+        }
+        finally
+        {
+            raw.close();
+        }
+    }
+
+    private static void readFully(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private void readValidators(Response response)
+    {
+        String eTag = null;
+        String lastModified = null;
+        for (Header header : response.getHeaders())
+        {
+            if ("ETag".equalsIgnoreCase(header.getName()))
+                eTag = header.getValue();
+            else if ("Last-Modified".equalsIgnoreCase(header.getName()))
+                lastModified = header.getValue();
+        }
+
+        CacheValidators validators = new CacheValidators(eTag, lastModified);
+        responseValidators = validators.isEmpty() ? null : validators;
     }
 
     /**
@@ -284,4 +845,86 @@ public abstract class WebbyRequest<T extends Object> implements Runnable
      * @return
      */
     abstract public Response doWebServiceCall(T webservice);
+
+    /**
+     * Collects a body in memory until it grows larger than the spool threshold, and from then on
+     * streams it into the spool cache, under this request's URI.  Without a spool cache, the body
+     * is always kept in memory.
+     */
+    private class BodySpool extends OutputStream
+    {
+        private final long threshold;
+        private ByteArrayOutputStream raw;
+        private CacheSink sink;
+
+        /**
+         * @param length length of the body, or -1 if unknown
+         */
+        private BodySpool(long length) throws IOException
+        {
+            threshold = spoolCache != null ? Webby.getSpoolThresholdBytes() : Long.MAX_VALUE;
+            raw = new ByteArrayOutputStream(length > 0 && length <= threshold && length <= Integer.MAX_VALUE ? (int) length : 1024);
+
+            // Bodies known to be large go straight to the cache
+            if (length > threshold)
+                spool();
+        }
+
+        private void spool() throws IOException
+        {
+            WebbyLog.d(TAG, "Response is larger than " + threshold + " bytes, spooling it to cache: " + uri);
+            sink = spoolCache.openForWriting(uri, responseValidators);
+            raw.writeTo(sink);
+            raw = null;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (sink == null && raw.size() + 1 > threshold)
+                spool();
+
+            if (sink != null)
+                sink.write(b);
+            else
+                raw.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException
+        {
+            if (sink == null && raw.size() + count > threshold)
+                spool();
+
+            if (sink != null)
+                sink.write(buffer, offset, count);
+            else
+                raw.write(buffer, offset, count);
+        }
+
+        /**
+         * Commits the body to the spool cache if it was spooled.
+         *
+         * @return the body, or null if it was spooled
+         */
+        private byte[] finish() throws IOException
+        {
+            if (sink == null)
+                return raw.toByteArray();
+
+            sink.commit();
+            spooledToCache = true;
+            return null;
+        }
+
+        /**
+         * Throws away whatever was spooled unless it was committed.
+         */
+        @Override
+        public void close()
+        {
+            if (sink != null)
+                sink.close();
+        }
+    }
 }
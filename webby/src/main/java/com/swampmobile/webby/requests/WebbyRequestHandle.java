@@ -0,0 +1,155 @@
+package com.swampmobile.webby.requests;
+
+/**
+ * Returned for every submitted {@link com.swampmobile.webby.requests.WebbyRequest}, a handle lets
+ * its owner cancel that submission.
+ * <p/>
+ * Identical requests share a single execution, so cancelling a handle only detaches that one
+ * submission.  The execution itself is dropped from the queue, or its network call aborted, once
+ * every handle attached to it has been cancelled.  A cancelled submission never receives a
+ * {@link com.swampmobile.webby.requests.WebbyResponse}.
+ */
+public class WebbyRequestHandle
+{
+    private final WebbyRequest<?, ?> request;
+    private final RequestPriority priority;
+
+    private boolean cancelled = false;
+    private boolean done = false;
+    private WebbyResponse<?> response;
+    private CancellationListener cancellationListener;
+    private FinishListener finishListener;
+
+    public WebbyRequestHandle(WebbyRequest<?, ?> request)
+    {
+        this.request = request;
+        this.priority = request.getPriority();
+    }
+
+    public WebbyRequest<?, ?> getRequest()
+    {
+        return request;
+    }
+
+    public RequestPriority getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * Cancels this submission.  Does nothing if the submission was already cancelled or has already
+     * completed.
+     *
+     * @return true if this call cancelled the submission
+     */
+    public boolean cancel()
+    {
+        CancellationListener listener;
+        FinishListener finished;
+        synchronized (this)
+        {
+            if (cancelled || done)
+                return false;
+
+            cancelled = true;
+            listener = cancellationListener;
+            finished = finishListener;
+        }
+
+        if (listener != null)
+            listener.onCancelled(this);
+        if (finished != null)
+            finished.onFinished(this);
+
+        return true;
+    }
+
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * Returns the response this submission received, or null if it has not completed (or was
+     * cancelled).
+     *
+     * @return
+     */
+    public synchronized WebbyResponse<?> getResponse()
+    {
+        return response;
+    }
+
+    /**
+     * Called by the {@link com.swampmobile.webby.services.WebbyService} when it takes on this
+     * submission, so that cancellation can reach the execution it was attached to.
+     *
+     * @param listener
+     * @return false if this handle was cancelled before it could be attached
+     */
+    public synchronized boolean setCancellationListener(CancellationListener listener)
+    {
+        if (cancelled)
+            return false;
+
+        cancellationListener = listener;
+        return true;
+    }
+
+    /**
+     * Called by the {@link com.swampmobile.webby.WebbyManager} which submitted this handle, so that
+     * it can forget the submission once it is over.
+     *
+     * @param listener
+     * @return false if this submission was already cancelled or completed
+     */
+    public synchronized boolean setFinishListener(FinishListener listener)
+    {
+        if (cancelled || done)
+            return false;
+
+        finishListener = listener;
+        return true;
+    }
+
+    /**
+     * Called by the {@link com.swampmobile.webby.services.WebbyService} when the execution this
+     * submission was attached to has completed.
+     *
+     * @param response
+     */
+    public void onComplete(WebbyResponse<?> response)
+    {
+        FinishListener finished;
+        synchronized (this)
+        {
+            if (cancelled || done)
+                return;
+
+            this.done = true;
+            this.response = response;
+            finished = finishListener;
+        }
+
+        if (finished != null)
+            finished.onFinished(this);
+    }
+
+    public interface CancellationListener
+    {
+        void onCancelled(WebbyRequestHandle handle);
+    }
+
+    /**
+     * Told once a submission is over, whether it completed or was cancelled.
+     */
+    public interface FinishListener
+    {
+        void onFinished(WebbyRequestHandle handle);
+    }
+}
@@ -6,28 +6,44 @@ import com.google.gson.JsonElement;
 
 /**
  * Represents the result of REST communication.
+ * <p/>
+ * Responses are broadcast to every listener, most of which only check the resource ID, so the body
+ * is kept undecoded until {@code getResult()} or {@code getResponse()} is first called.
+ *
+ * @param <R> type the response body was decoded to
  */
-public class WebbyResponse
+public class WebbyResponse<R>
 {
     private Uri resourceId;
     private int statusCode;
     private String statusPhrase;
-    private JsonElement response;
+    private LazyResult<R> result;
+    private JsonElement response; // guarded by this
     private boolean isFromCache;
     private Exception error;
 
-    public WebbyResponse(Uri resourceId, int statusCode, String statusPhrase, JsonElement response, Exception error)
+    public WebbyResponse(Uri resourceId, int statusCode, String statusPhrase, R result, Exception error)
     {
-        this(resourceId, statusCode, statusPhrase, response, false);
+        this(resourceId, statusCode, statusPhrase, LazyResult.of(result), error);
+    }
+
+    public WebbyResponse(Uri resourceId, int statusCode, String statusPhrase, R result, boolean isFromCache)
+    {
+        this(resourceId, statusCode, statusPhrase, LazyResult.of(result), isFromCache);
+    }
+
+    public WebbyResponse(Uri resourceId, int statusCode, String statusPhrase, LazyResult<R> result, Exception error)
+    {
+        this(resourceId, statusCode, statusPhrase, result, false);
         this.error = error;
     }
 
-    public WebbyResponse(Uri resourceId, int statusCode, String statusPhrase, JsonElement response, boolean isFromCache)
+    public WebbyResponse(Uri resourceId, int statusCode, String statusPhrase, LazyResult<R> result, boolean isFromCache)
     {
         this.resourceId = resourceId;
         this.statusCode = statusCode;
         this.statusPhrase = statusPhrase;
-        this.response = response;
+        this.result = result;
         this.isFromCache = isFromCache;
     }
 
@@ -46,11 +62,40 @@ public class WebbyResponse
         return statusPhrase;
     }
 
-    public JsonElement getResponse()
+    /**
+     * Returns the decoded body of the response, decoding it on the first call.
+     *
+     * @return
+     * @throws com.google.gson.JsonParseException if the body could not be decoded
+     */
+    public R getResult()
     {
+        return result != null ? result.get() : null;
+    }
+
+    /**
+     * Returns the body of the response as a JSON tree, building it on the first call.
+     *
+     * @return
+     * @throws com.google.gson.JsonParseException if the body could not be parsed
+     */
+    public synchronized JsonElement getResponse()
+    {
+        if (response == null && result != null)
+            response = result.toJsonTree();
         return response;
     }
 
+    /**
+     * Returns the possibly still undecoded body of the response.
+     *
+     * @return
+     */
+    public LazyResult<R> getLazyResult()
+    {
+        return result;
+    }
+
     public boolean isFromCache()
     {
         return isFromCache;
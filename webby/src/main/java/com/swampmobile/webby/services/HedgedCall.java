@@ -0,0 +1,126 @@
+package com.swampmobile.webby.services;
+
+import com.swampmobile.webby.requests.WebbyRequest;
+import com.swampmobile.webby.util.logging.WebbyLog;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a request's network call and, if it has not returned within a given delay, fires a duplicate
+ * of it on a second thread.  Whichever succeeds first wins and the other is aborted.
+ * <p/>
+ * The original request is always run on the calling thread and always ends up holding the winning
+ * result.  The duplicate is a {@link WebbyRequest#copy()} of it, so hedging must only be used for
+ * idempotent calls.
+ */
+class HedgedCall<T, R> implements Runnable
+{
+    private static final String TAG = "HedgedCall";
+
+    private static final int PENDING = 0;
+    private static final int STARTED = 1;
+    private static final int SKIPPED = 2;
+
+    private final WebbyRequest<T, R> primary;
+    private final WebbyRequest<T, R> hedge;
+
+    private final AtomicInteger hedgeState = new AtomicInteger(PENDING);
+    private final AtomicReference<WebbyRequest<T, R>> winner = new AtomicReference<WebbyRequest<T, R>>();
+    private final CountDownLatch hedgeDone = new CountDownLatch(1);
+
+    HedgedCall(WebbyRequest<T, R> primary)
+    {
+        this.primary = primary;
+        this.hedge = primary.copy();
+    }
+
+    /**
+     * Runs the original request on this thread, hedging it after {@code hedgeDelayMillis}.
+     *
+     * @param hedgeDelayMillis
+     * @param scheduler        times the hedge
+     * @param hedgeExecutor    runs the hedge.  If it has no thread to spare, the hedge is skipped.
+     */
+    void execute(long hedgeDelayMillis, ScheduledExecutorService scheduler, final ExecutorService hedgeExecutor)
+    {
+        ScheduledFuture<?> hedgeTimer = scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                hedgeExecutor.execute(HedgedCall.this);
+            }
+        }, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+
+        primary.run();
+
+        if (primary.wasSuccessful() && winner.compareAndSet(null, primary))
+        {
+            hedgeTimer.cancel(false);
+            cancelHedge();
+            return;
+        }
+
+        // Either the primary failed, or the hedge beat it and aborted it
+        if (hedgeState.compareAndSet(PENDING, SKIPPED))
+        {
+            hedgeTimer.cancel(false);
+            return;
+        }
+
+        try
+        {
+            hedgeDone.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            cancelHedge();
+            return;
+        }
+
+        if (winner.get() == hedge)
+        {
+            WebbyLog.d(TAG, "Hedged call won the race");
+            primary.copyResultFrom(hedge);
+        }
+    }
+
+    /**
+     * Runs the hedge.  Invoked by the hedge executor.
+     */
+    @Override
+    public void run()
+    {
+        if (!hedgeState.compareAndSet(PENDING, STARTED))
+            return;
+
+        try
+        {
+            WebbyLog.d(TAG, "Original call is slow, firing hedged call");
+            hedge.run();
+
+            if (hedge.wasSuccessful() && winner.compareAndSet(null, hedge))
+                primary.abort();
+        }
+        finally
+        {
+            hedgeDone.countDown();
+        }
+    }
+
+    /**
+     * Prevents the hedge from starting, or aborts it if it already has.
+     */
+    void cancelHedge()
+    {
+        hedgeState.compareAndSet(PENDING, SKIPPED);
+        hedge.cancel();
+    }
+}
@@ -6,72 +6,354 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
 import com.swampmobile.webby.Webby;
+import com.swampmobile.webby.requests.LazyResult;
+import com.swampmobile.webby.requests.RequestPriority;
 import com.swampmobile.webby.requests.WebbyRequest;
+import com.swampmobile.webby.requests.WebbyRequestHandle;
 import com.swampmobile.webby.requests.WebbyResponse;
-import com.swampmobile.webby.util.cache.DataCache;
+import com.swampmobile.webby.util.cache.CacheValidators;
 import com.swampmobile.webby.util.cache.DataCache.CacheReadException;
 import com.swampmobile.webby.util.cache.DataCache.CacheWriteException;
 import com.swampmobile.webby.util.cache.FlatFileDataCache;
+import com.swampmobile.webby.util.cache.TieredDataCache;
+import com.swampmobile.webby.util.cache.WriteBehindDataCache;
+import com.swampmobile.webby.util.concurrent.CircuitBreaker;
+import com.swampmobile.webby.util.concurrent.FairLaneScheduler;
 import com.swampmobile.webby.util.logging.WebbyLog;
+import com.swampmobile.webby.util.time.Duration;
+import com.swampmobile.webby.util.time.LatencyTracker;
 
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WebbyService extends Service
 {
     private static final String TAG = "WebbyService";
 
-    private final int MAX_EXECUTION_THREADS = 3;
+    private static final int INITIAL_CONCURRENT_REQUESTS = 3;
 
-    private boolean isCreated = false;
+    // Hedged requests fire their duplicate once they are slower than this share of recent calls
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final int LATENCY_WINDOW = 128;
+    private static final int MAX_HEDGE_THREADS = 2;
+    private static final long CACHE_SHUTDOWN_TIMEOUT_MILLIS = 2000; // for queued cache writes to finish
+
+    // An endpoint's circuit opens after this many consecutive failed calls, and stays open for
+    // CIRCUIT_OPEN_MILLIS before letting a trial call through.
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_OPEN_MILLIS = 30 * 1000;
+
+    private volatile boolean isCreated = false;
 
     private WebbyServiceBinder webbyServiceBinder;
 
-    private LinkedHashSet<WebbyRequest> requestQueue; // chose LinkedHashSet because it prevents duplicates but also preserves insertion order (like a queue + set)
-    private Object requestLock = new Object();
+    // Lock-free multi-producer queue of submitted requests, with one lane per endpoint so that a
+    // slow host can only hold its own lane's share of the executor.  Any thread may add to it, and
+    // whichever thread wins drainCount drains it into the executor.
+    private FairLaneScheduler<QueueEntry> requestQueue;
+    private AtomicInteger drainCount = new AtomicInteger();
+
+    // Single-flight index of every request from the moment it is queue'd until its response has
+    // been broadcast.  Identical requests submitted in that window attach to the existing
+    // container instead of making their own network call.
+    private ConcurrentHashMap<WebbyRequest<?, ?>, WebbyRequestContainerThread<?, ?>> inFlightRequests;
+    private AtomicInteger coalescedRequestCount = new AtomicInteger();
 
-    private RequestConsumerThread requestConsumerThread;
+    // Requests only leave the queue when their lane's limiter grants a permit.  The pool is sized to
+    // the total capacity of the queue, so it always has a thread for every permit.
     private ExecutorService executorService;
 
-    private DataCache cache;
-    private Object cacheLock = new Object();
+    // Times deadlines and hedges.  Hedged duplicates run on their own small pool and are simply
+    // skipped when it is busy.
+    private ScheduledExecutorService scheduler;
+    private ExecutorService hedgeExecutorService;
+    private ConcurrentHashMap<String, LatencyTracker> endpointLatencies;
+    private ConcurrentHashMap<String, CircuitBreaker> circuitBreakers;
+
+    private TieredDataCache cache; // thread-safe, reads never block
+    private WriteBehindDataCache writeBehindCache; // behind the memory tier, in front of the disk
+    private FlatFileDataCache diskCache;
 
     public WebbyService()
     {
         webbyServiceBinder = new WebbyServiceBinder(this);
 
         // Setup queue of requests
-        requestQueue = new LinkedHashSet<WebbyRequest>();
+        int maxConcurrentRequests = Webby.getMaxConcurrentRequests();
+        requestQueue = new FairLaneScheduler<QueueEntry>(
+                maxConcurrentRequests,
+                RequestPriority.values().length,
+                Webby.getMinConcurrentRequests(),
+                INITIAL_CONCURRENT_REQUESTS,
+                Math.max(1, maxConcurrentRequests / 2));
+        for(Map.Entry<String, Integer> endpointLimit : Webby.getMaxConcurrentRequestsPerEndpoint().entrySet())
+        {
+            requestQueue.setMaxLaneLimit(endpointLimit.getKey(), Math.min(maxConcurrentRequests, endpointLimit.getValue()));
+        }
+        inFlightRequests = new ConcurrentHashMap<WebbyRequest<?, ?>, WebbyRequestContainerThread<?, ?>>();
 
-        // Setup consumer thread to process new requests from queue
-        requestConsumerThread = new RequestConsumerThread();
-        executorService = Executors.newFixedThreadPool(MAX_EXECUTION_THREADS);
+        executorService = Executors.newFixedThreadPool(maxConcurrentRequests);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        hedgeExecutorService = new ThreadPoolExecutor(0, MAX_HEDGE_THREADS, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.DiscardPolicy());
+        endpointLatencies = new ConcurrentHashMap<String, LatencyTracker>();
+        circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
     }
 
     /**
-     * Adds a WebbyRequest to the queue of pending requests.  If the given request is already
-     * queue'd, then the request is not added to the queue for a 2nd time.
+     * Adds a WebbyRequest to the queue of pending requests.  If an identical request is already
+     * queue'd or executing, then the given request is attached to it and shares its
+     * {@link com.swampmobile.webby.requests.WebbyResponse} rather than being run a 2nd time.
      *
      * @param request
+     * @return handle through which the submission can be cancelled
      */
-    public void addRequest(WebbyRequest request)
+    public WebbyRequestHandle addRequest(WebbyRequest<?, ?> request)
     {
-        synchronized(requestLock)
+        WebbyRequestHandle handle = new WebbyRequestHandle(request);
+        addRequest(handle);
+        return handle;
+    }
+
+    /**
+     * Adds the request behind the given handle to the queue of pending requests.
+     *
+     * @param handle
+     * @see #addRequest(com.swampmobile.webby.requests.WebbyRequest)
+     */
+    public void addRequest(WebbyRequestHandle handle)
+    {
+        WebbyLog.d(TAG, "Adding request to Webby queue.");
+
+        WebbyRequest<?, ?> request = handle.getRequest();
+        while(true)
         {
-            WebbyLog.d(TAG, "Adding request to Webby queue.");
-            WebbyLog.d(TAG, " - was request already in queue? " + (requestQueue.contains(request) ? "YES" : "No"));
+            WebbyRequestContainerThread<?, ?> requestContainer = newContainer(request, handle.getPriority());
+            WebbyRequestContainerThread<?, ?> inFlight = inFlightRequests.putIfAbsent(request, requestContainer);
+            if(inFlight == null)
+            {
+                // A cancel() belongs to the submission it was made for.  The flight it cancelled
+                // has left the index and is stopped by its own container's state.
+                request.clearCancellation();
+
+                requestContainer.attach(handle);
+                requestContainer.scheduleDeadline();
+
+                // Queue up the request
+                requestContainer.enqueue();
+
+                drainRequestQueue();
+                return;
+            }
+
+            if(inFlight.attach(handle))
+            {
+                int coalesced = coalescedRequestCount.incrementAndGet();
+                WebbyLog.d(TAG, " - identical request already in flight, attaching to it. Network calls saved so far: " + coalesced);
+                return;
+            }
+
+            // The in-flight request was cancelled or is delivering its response, and is on its way
+            // out of the index.  Help it out and start a new flight.
+            inFlightRequests.remove(request, inFlight);
+        }
+    }
 
-            // Queue up the request
-            requestQueue.add(request);
+    private <T, R> WebbyRequestContainerThread<T, R> newContainer(WebbyRequest<T, R> request, RequestPriority priority)
+    {
+        return new WebbyRequestContainerThread<T, R>(request, priority);
+    }
 
-            requestLock.notifyAll();
+    /**
+     * Returns the number of submitted requests that were satisfied by attaching to an identical
+     * queue'd or executing request, i.e. the number of network calls that were never made.
+     *
+     * @return
+     */
+    public int getCoalescedRequestCount()
+    {
+        return coalescedRequestCount.get();
+    }
+
+    private LatencyTracker getLatencyTracker(String endpoint)
+    {
+        LatencyTracker tracker = endpointLatencies.get(endpoint);
+        if(tracker == null)
+        {
+            LatencyTracker newTracker = new LatencyTracker(LATENCY_WINDOW);
+            tracker = endpointLatencies.putIfAbsent(endpoint, newTracker);
+            if(tracker == null)
+                tracker = newTracker;
         }
+
+        return tracker;
+    }
+
+    /**
+     * Returns the round-trip time, in millis, below which the given share of recent successful
+     * network calls to the given endpoint completed, or -1 if none have completed yet.
+     *
+     * @param endpoint
+     * @param percentile between 0 and 1
+     * @return
+     */
+    public long getLatencyPercentile(String endpoint, double percentile)
+    {
+        return getLatencyTracker(endpoint).getPercentile(percentile);
+    }
+
+    private CircuitBreaker getCircuitBreaker(String endpoint)
+    {
+        CircuitBreaker breaker = circuitBreakers.get(endpoint);
+        if(breaker == null)
+        {
+            CircuitBreaker newBreaker = new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MILLIS);
+            breaker = circuitBreakers.putIfAbsent(endpoint, newBreaker);
+            if(breaker == null)
+                breaker = newBreaker;
+        }
+
+        return breaker;
+    }
+
+    /**
+     * Returns the state of the given endpoint's circuit breaker.  While the circuit is open, requests
+     * to the endpoint are not sent; they are served from cache regardless of age if possible, and
+     * fail with a {@link CircuitBreaker.CircuitOpenException} otherwise.
+     *
+     * @param endpoint
+     * @return
+     */
+    public CircuitBreaker.State getCircuitState(String endpoint)
+    {
+        return getCircuitBreaker(endpoint).getState();
+    }
+
+    /**
+     * Returns the endpoints which have had requests submitted to them.
+     *
+     * @return
+     */
+    public Set<String> getEndpoints()
+    {
+        return requestQueue.getLanes();
+    }
+
+    /**
+     * Returns the number of concurrent executions currently allowed for the given endpoint by its
+     * adaptive limiter.
+     *
+     * @param endpoint
+     * @return
+     */
+    public int getConcurrencyLimit(String endpoint)
+    {
+        return requestQueue.getLaneLimit(endpoint);
+    }
+
+    /**
+     * Returns the number of requests currently executing against the given endpoint.
+     *
+     * @param endpoint
+     * @return
+     */
+    public int getExecutingRequestCount(String endpoint)
+    {
+        return requestQueue.getLaneInFlight(endpoint);
+    }
+
+    /**
+     * Returns the number of requests for the given endpoint waiting for a permit to execute.
+     *
+     * @param endpoint
+     * @return
+     */
+    public int getQueuedRequestCount(String endpoint)
+    {
+        return requestQueue.size(endpoint);
+    }
+
+    /**
+     * Returns the number of requests currently executing across all endpoints.
+     *
+     * @return
+     */
+    public int getExecutingRequestCount()
+    {
+        return requestQueue.getInFlight();
+    }
+
+    /**
+     * Returns the number of requests waiting for a permit to execute across all endpoints.
+     *
+     * @return
+     */
+    public int getQueuedRequestCount()
+    {
+        return requestQueue.size();
+    }
+
+    /**
+     * Returns the cache responses are served from, whose hit and miss counters show how well its
+     * memory tier performs.
+     *
+     * @return
+     */
+    public TieredDataCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Hands queue'd requests to the executor for as long as their endpoints' limiters grant permits,
+     * taking one request from each endpoint in turn.  Only one thread drains at a time: a thread
+     * that finds another drain in progress just bumps drainCount, which makes the active drainer
+     * loop around again instead of returning.  Finishing requests drain on their way out, so
+     * requests left waiting for a permit are never stranded.
+     */
+    private void drainRequestQueue()
+    {
+        if(drainCount.getAndIncrement() != 0)
+            return;
+
+        int missed = 1;
+        do
+        {
+            QueueEntry entry;
+            while((entry = requestQueue.poll()) != null)
+            {
+                // Skip requests that were cancelled or expired while queue'd, and stale entries
+                // which a promotion or retry re-offered while they were being polled
+                WebbyRequestContainerThread<?, ?> requestContainer = entry.container;
+                if(!requestContainer.markDispatched(entry))
+                {
+                    requestQueue.release(requestContainer.request.getEndpoint());
+                    continue;
+                }
+
+                WebbyLog.d(TAG, "Submitting request for execution.");
+                executorService.execute(requestContainer);
+            }
+
+            missed = drainCount.addAndGet(-missed);
+        }
+        while(missed != 0);
     }
 
     @Override
@@ -83,10 +365,19 @@ public class WebbyService extends Service
 
         isCreated = true;
 
-        cache = new FlatFileDataCache(getApplicationContext());
+        diskCache = new FlatFileDataCache(getApplicationContext(), Webby.getDiskCacheBytes(), Webby.getDiskCacheEntries(), Webby.getDiskCacheEvictionPolicy());
+        writeBehindCache = new WriteBehindDataCache(diskCache, Webby.getCacheSyncPolicy(), Webby.getCacheWriteDelayMillis(), WriteBehindDataCache.DEFAULT_MAX_GROUP_SIZE);
+        cache = new TieredDataCache(writeBehindCache, Webby.getMemoryCacheBytes());
 
-        requestConsumerThread = new RequestConsumerThread();
-        requestConsumerThread.start();
+        // Build the service proxies apps asked for up front, off the main thread
+        scheduler.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Webby.warmUpServices();
+            }
+        });
     }
 
     @Override
@@ -96,12 +387,10 @@ public class WebbyService extends Service
 
         isCreated = false;
 
-        synchronized(requestLock)
-        {
-            requestLock.notifyAll(); // Allow any threads monitoring requests to kill themselves
-        }
-
-        requestConsumerThread = null;
+        scheduler.shutdownNow();
+        hedgeExecutorService.shutdownNow();
+        writeBehindCache.shutdown(CACHE_SHUTDOWN_TIMEOUT_MILLIS); // pending writes still finish
+        diskCache.persistIndex();
 
         super.onDestroy();
     }
@@ -129,164 +418,621 @@ public class WebbyService extends Service
 
 
     /**
-     * Consumer thread.
-     *
-     * Pulls requests out of the WebbyService's requestQueue and submits them for
-     * execution.  The RequestConsumerThread is alive as long as the WebbyService
-     * and waits until new requests are submitted.
+     * All WebbyRequests are wrapped in a WebbyRequestContainerThread.  This container will
+     * execute its WebbyRequest, write results to a cache, and then alert any listeners of
+     * the WebbyRequest result.
+     * <p/>
+     * Every submission of the request holds a {@link WebbyRequestHandle} attached to the container.
+     * Once all of them have been cancelled, the container is dropped from the queue or, if it is
+     * already executing, its network call is aborted.  The same happens when the request misses its
+     * deadline, except that its submissions then receive a failed response.
      *
      * @author Matt
      *
      */
-    private class RequestConsumerThread extends Thread
+    private class WebbyRequestContainerThread<T, R> extends Thread implements WebbyRequestHandle.CancellationListener
     {
-        @Override
-        public void run()
+        private static final int QUEUED = 0;
+        private static final int DISPATCHED = 1;
+        private static final int CANCELLED = 2;
+        private static final int EXPIRED = 3;
+
+        private WebbyRequest<T, R> request;
+        private int attempt = 0;
+        private long networkRttMillis = -1;
+        private volatile HedgedCall<T, R> hedgedCall;
+        private volatile ScheduledFuture<?> deadlineTimer;
+        private WebbyResponse<R> staleResponse; // stale cached copy already posted while revalidating
+
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final List<WebbyRequestHandle> handles = new ArrayList<WebbyRequestHandle>(); // guarded by this
+        private RequestPriority priority; // guarded by this
+        private boolean finished = false; // guarded by this, past the point where cancelling matters
+        private int generation = 0; // guarded by this, of the newest queue entry
+        private QueueEntry queueEntry; // guarded by this, waiting in the request queue
+        private boolean closed = false; // guarded by this, left the index and takes no more handles
+
+        public WebbyRequestContainerThread(WebbyRequest<T, R> request, RequestPriority priority)
+        {
+            this.request = request;
+            this.priority = priority;
+        }
+
+        /**
+         * Attaches a submission to this container, promoting the container if the submission has a
+         * higher priority and the container is still queue'd.
+         *
+         * @param handle
+         * @return false if this container was cancelled or is no longer taking submissions
+         */
+        public boolean attach(WebbyRequestHandle handle)
         {
-            while(WebbyService.this.isCreated)
+            synchronized(this)
             {
-                synchronized(requestLock)
+                if(closed || state.get() == CANCELLED)
+                    return false;
+
+                handles.add(handle);
+
+                if(handle.getPriority().isHigherThan(priority) && state.get() == QUEUED)
                 {
-                    // Send each queue'd request to the executor service to run
-                    Iterator<WebbyRequest> iterator = requestQueue.iterator();
-                    WebbyRequest request;
-                    WebbyRequestContainerThread requestContainer;
-                    if(requestQueue.size() > 0)
-                    {
-                        request = iterator.next();
-                        iterator.remove();
-                        requestContainer = new WebbyRequestContainerThread( request );
+                    // A retry waiting out its backoff is offered at the new priority once it is over
+                    priority = handle.getPriority();
+                    if(queueEntry != null)
+                        enqueue();
+                }
+            }
 
-                        WebbyLog.d(TAG, "Submitting request for execution.");
-                        executorService.execute(requestContainer);
-                    }
+            if(!handle.setCancellationListener(this))
+                onCancelled(handle);
 
-                    requestLock.notifyAll();
+            return true;
+        }
 
-                    // Wait until someone adds more requests to the queue
-                    try {
-                        if(requestQueue.size() == 0)
-                            requestLock.wait();
-                    } catch (InterruptedException e) {
-                        // don't care, just loop around again
-                    }
+        /**
+         * Offers this container to the request queue at its current priority, in place of the
+         * entry it has queue'd, if any.  That entry goes stale, and if the drainer polled it already
+         * it is not dispatched.
+         */
+        public synchronized void enqueue()
+        {
+            dequeue();
+            if(state.get() != QUEUED)
+                return;
+
+            queueEntry = new QueueEntry(this, ++generation, priority.ordinal());
+            requestQueue.offer(request.getEndpoint(), queueEntry.priority, queueEntry);
+        }
+
+        private synchronized void dequeue()
+        {
+            if(queueEntry == null)
+                return;
+
+            requestQueue.remove(request.getEndpoint(), queueEntry.priority, queueEntry);
+            queueEntry = null;
+        }
+
+        /**
+         * @param entry polled from the request queue
+         * @return false if the entry is stale, or the request no longer waits to be dispatched
+         */
+        public synchronized boolean markDispatched(QueueEntry entry)
+        {
+            if(entry.generation != generation)
+                return false;
+
+            queueEntry = null;
+            return state.compareAndSet(QUEUED, DISPATCHED);
+        }
+
+        public void scheduleDeadline()
+        {
+            final long deadline = request.getDeadline();
+            if(deadline <= 0)
+                return;
+
+            deadlineTimer = scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    expire(deadline);
                 }
+            }, deadline, TimeUnit.MILLISECONDS);
+        }
+
+        private void expire(long deadline)
+        {
+            synchronized(this)
+            {
+                if(finished || state.get() == CANCELLED)
+                    return;
+
+                state.set(EXPIRED);
+                dequeue();
             }
+
+            WebbyLog.d(TAG, "Request missed its deadline of " + deadline + "ms, aborting it.");
+            abortExecution();
+
+            inFlightRequests.remove(request, this);
+            List<WebbyRequestHandle> attachedHandles = close();
+
+            if(isCreated)
+                deliver(new WebbyResponse<R>(request.getUri(), 0, null, (LazyResult<R>) null, new TimeoutException("Request missed its deadline of " + deadline + "ms")), attachedHandles);
         }
-    }
 
-    /**
-     * All WebbyRequests are wrapped in a WebbyRequestContainerThread.  This container will
-     * execute its WebbyRequest, write results to a cache, and then alert any listeners of
-     * the WebbyRequest result.
-     *
-     * @author Matt
-     *
-     */
-    private class WebbyRequestContainerThread extends Thread
-    {
-        private WebbyRequest request;
+        private void abortExecution()
+        {
+            request.abort();
 
-        public WebbyRequestContainerThread(WebbyRequest request)
+            HedgedCall<T, R> hedge = hedgedCall;
+            if(hedge != null)
+                hedge.cancelHedge();
+        }
+
+        @Override
+        public void onCancelled(WebbyRequestHandle handle)
         {
-            this.request = request;
+            synchronized(this)
+            {
+                handles.remove(handle);
+                if(!handles.isEmpty() || finished)
+                    return;
+
+                if(state.get() == EXPIRED)
+                    return;
+
+                state.set(CANCELLED);
+                dequeue();
+
+                // Before anyone can see the container cancelled and start a new flight, which
+                // clears the request's cancellation
+                request.cancel();
+            }
+
+            WebbyLog.d(TAG, "Every submission of request was cancelled, aborting it.");
+            inFlightRequests.remove(request, this);
+            abortExecution();
+            cancelDeadline();
+        }
+
+        private void cancelDeadline()
+        {
+            ScheduledFuture<?> timer = deadlineTimer;
+            if(timer != null)
+                timer.cancel(false);
+        }
+
+        private synchronized boolean markFinished()
+        {
+            if(state.get() != DISPATCHED)
+                return false;
+
+            finished = true;
+            return true;
+        }
+
+        private synchronized List<WebbyRequestHandle> close()
+        {
+            closed = true;
+            return new ArrayList<WebbyRequestHandle>(handles);
         }
 
         @Override
         public void run()
         {
-            executeRequest();
+            long rttMillis = -1;
+            boolean dropped = false;
+            try
+            {
+                if(state.get() != DISPATCHED)
+                    return;
+
+                attempt++;
+                executeRequest();
 
-            writeDataToCache();
+                rttMillis = networkRttMillis;
+                dropped = isDropped();
 
-            broadcastWebbyEvent();
+                if(rttMillis >= 0 && request.getRetryPolicy().shouldRetry(request, attempt) && scheduleRetry())
+                    return;
+
+                if(!markFinished())
+                {
+                    WebbyLog.d(TAG, "Request was cancelled or missed its deadline, dropping its result.");
+                    return;
+                }
+
+                cancelDeadline();
+
+                // Compare with the stale copy before the cache is overwritten
+                boolean redundantRefresh = isRedundantRefresh();
+
+                // Only queues the write, so the broadcast does not wait on the disk.  Reads see
+                // the queued copy until it is written.
+                writeDataToCache();
+
+                // Leave the single-flight index before broadcasting.  Anyone who attached before this
+                // point is guaranteed to see the broadcast below; anyone after it starts a new flight.
+                inFlightRequests.remove(request, this);
+
+                List<WebbyRequestHandle> attachedHandles = close();
+                if(redundantRefresh)
+                {
+                    // Clients already have the stale copy, only the submissions still need completing
+                    WebbyLog.d(TAG, "Background refresh brought nothing new, not posting it.");
+                    for(WebbyRequestHandle handle : attachedHandles)
+                    {
+                        handle.onComplete(staleResponse);
+                    }
+                }
+                else
+                {
+                    broadcastWebbyEvent(attachedHandles);
+                }
+            }
+            catch(RuntimeException e)
+            {
+                fail(e);
+            }
+            finally
+            {
+                releasePermit(rttMillis, dropped);
+                drainRequestQueue();
+            }
+        }
+
+        /**
+         * Fails the request with an error nobody saw coming, e.g. a resource evicted from the cache
+         * between two lookups or a subscriber throwing.  The container always leaves the
+         * single-flight index, or every later identical request would attach to a dead flight.
+         *
+         * @param e
+         */
+        private void fail(RuntimeException e)
+        {
+            WebbyLog.e(TAG, "Request failed unexpectedly.", e);
+            request.setException(e);
+
+            boolean deliver;
+            synchronized(this)
+            {
+                // Cancelled and expired requests were dealt with already, and a closed request
+                // already delivered its response
+                int current = state.get();
+                deliver = !closed && (current == QUEUED || current == DISPATCHED);
+                if(current == QUEUED)
+                    state.set(DISPATCHED); // keeps a pending retry from running it again
+                finished = true;
+            }
+
+            cancelDeadline();
+            inFlightRequests.remove(request, this);
+            List<WebbyRequestHandle> attachedHandles = close();
+
+            if(deliver && isCreated)
+            {
+                try
+                {
+                    deliver(new WebbyResponse<R>(request.getUri(), request.getStatusCode(), request.getStatusPhrase(), (LazyResult<R>) null, e), attachedHandles);
+                }
+                catch(RuntimeException deliveryError)
+                {
+                    WebbyLog.e(TAG, "Could not deliver failed response.", deliveryError);
+                }
+            }
+        }
+
+        /**
+         * Puts this container back in the queue once the request's retry backoff has passed.
+         *
+         * @return false if the container was cancelled or expired in the meantime
+         */
+        private boolean scheduleRetry()
+        {
+            synchronized(this)
+            {
+                if(state.get() != DISPATCHED)
+                    return false;
+
+                state.set(QUEUED);
+            }
+
+            long backoff = request.getRetryPolicy().getBackoffMillis(attempt);
+            WebbyLog.d(TAG, "Attempt " + attempt + " failed with status " + request.getStatusCode() + ", retrying in " + backoff + "ms.");
+
+            scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    enqueue();
+                    drainRequestQueue();
+                }
+            }, backoff, TimeUnit.MILLISECONDS);
+
+            return true;
+        }
+
+        /**
+         * Returns true if the request failed in a way that points at an overloaded or broken
+         * endpoint.  Client errors are the caller's fault and do not count.
+         *
+         * @return
+         */
+        private boolean isDropped()
+        {
+            return !request.wasSuccessful() && (request.getStatusCode() == 0 || request.getStatusCode() >= 500);
+        }
+
+        private void releasePermit(long rttMillis, boolean dropped)
+        {
+            if(rttMillis < 0 || state.get() == CANCELLED)
+            {
+                // Served from cache, never ran, or was aborted; says nothing about the network
+                requestQueue.release(request.getEndpoint());
+            }
+            else
+            {
+                requestQueue.release(request.getEndpoint(), rttMillis, dropped);
+            }
         }
 
         private void executeRequest()
         {
+            networkRttMillis = -1;
+            request.clearResult();
+
             // If this service is still in existence
             if(isCreated)
             {
                 // If we want a cached value, try to load from cache
                 WebbyLog.d(TAG, "Trying to retrieve resource from cache.");
-                if(cache.containsItem(request.getUri()) && cache.isYoungerThan(request.getUri(), request.getRefreshDuration()))
+                CacheValidators validators = null;
+                if(cache.containsItem(request.getUri()))
                 {
-                    WebbyLog.d(TAG, "Cache has resource, obtaining.");
-                    JsonParser parser = new JsonParser();
-                    JsonElement data;
-
-                    // Read data from cache
-                    try {
-                        synchronized(cacheLock)
-                        {
-                            data = parser.parse( cache.readFromCacheSync(request.getUri()) );
-                            request.setData(data);
-                            request.setIsDataFromCache(true);
-                        }
-                    } catch (JsonSyntaxException e) {
-                        WebbyLog.e(TAG, "Error reading data from cache.", e);
-                    } catch (CacheReadException e) {
-                        WebbyLog.e(TAG, "Error reading data from cache.", e);
+                    if(cache.isYoungerThan(request.getUri(), request.getRefreshDuration()))
+                    {
+                        WebbyLog.d(TAG, "Cache has resource, obtaining.");
+                        if(readDataFromCache())
+                            return;
+                    }
+                    else
+                    {
+                        // Expired, but the server may be able to confirm it is still current
+                        WebbyLog.d(TAG, "Cached resource has expired, revalidating.");
+                        validators = cache.getValidators(request.getUri());
+
+                        if(staleResponse == null && canServeStale() && readDataFromCache())
+                            postStaleResponse();
                     }
                 }
                 else
                 {
                     WebbyLog.d(TAG, "Item not yet in cache.");
                 }
+                request.setConditionalValidators(validators);
+                request.setSpoolCache(cache);
 
-                // If we didn't read data from cache, execute request
-                if(request.getData() == null)
+                // If we didn't read data from cache, execute request, unless the endpoint is known
+                // to be failing
+                CircuitBreaker circuitBreaker = getCircuitBreaker(request.getEndpoint());
+                if(!circuitBreaker.allowRequest())
                 {
-                    WebbyLog.d(TAG, "Running a request");
-                    request.run();
-                    request.setIsDataFromCache(false);
-                    WebbyLog.d(TAG, "Request has completed. Successful? " + request.wasSuccessful());
-                    if(!request.wasSuccessful())
-                    {
-                        WebbyLog.d(TAG, " - Exception: " + request.getException());
-                        request.getException().printStackTrace();
-                    }
+                    WebbyLog.d(TAG, "Circuit for " + request.getEndpoint() + " is open, failing fast.");
+                    if(!cache.containsItem(request.getUri()) || !readDataFromCache())
+                        request.setException(new CircuitBreaker.CircuitOpenException("Circuit for " + request.getEndpoint() + " is open"));
+                    return;
                 }
+
+                WebbyLog.d(TAG, "Running a request");
+                long startTime = System.currentTimeMillis();
+                runNetworkCall();
+                networkRttMillis = System.currentTimeMillis() - startTime;
+                if(request.wasSuccessful())
+                    getLatencyTracker(request.getEndpoint()).record(networkRttMillis);
+                request.setIsDataFromCache(false);
+                WebbyLog.d(TAG, "Request has completed. Successful? " + request.wasSuccessful());
+                if(!request.wasSuccessful())
+                {
+                    WebbyLog.d(TAG, " - Exception: " + request.getException());
+                    request.getException().printStackTrace();
+                }
+                else if(request.isNotModified())
+                {
+                    refreshCachedData();
+                }
+
+                if(state.get() != CANCELLED)
+                {
+                    if(isDropped())
+                        circuitBreaker.onFailure();
+                    else
+                        circuitBreaker.onSuccess();
+                }
+            }
+        }
+
+        private boolean canServeStale()
+        {
+            Duration maxStaleness = request.getMaxStaleness();
+            return maxStaleness != null && cache.isYoungerThan(request.getUri(), maxStaleness);
+        }
+
+        /**
+         * Posts the cached copy that was just read, flagged as coming from cache, so clients can
+         * render it while the network call refreshes it.
+         */
+        private void postStaleResponse()
+        {
+            WebbyLog.d(TAG, "Serving stale resource while revalidating.");
+            staleResponse = new WebbyResponse<R>(request.getUri(), request.getStatusCode(), request.getStatusPhrase(), request.getLazyData(), true);
+            if(isCreated)
+                Webby.getBus().post(staleResponse);
+        }
+
+        /**
+         * @return true if the stale copy was already posted and the refresh failed, was not modified
+         * or returned the same content
+         */
+        private boolean isRedundantRefresh()
+        {
+            if(staleResponse == null)
+                return false;
+
+            if(!request.wasSuccessful())
+            {
+                WebbyLog.d(TAG, "Background refresh failed: " + request.getException());
+                return true;
+            }
+
+            if(request.isNotModified())
+                return true;
+
+            // Too large to compare
+            if(request.isDataSpooledToCache())
+                return false;
+
+            // Compared with the copy that was posted, which the cache may no longer hold
+            byte[] rawData = request.getRawData();
+            if(rawData != null)
+                return staleResponse.getLazyResult().contentEquals(rawData);
+
+            // Results without a content-based equals() are compared by their JSON
+            try {
+                R staleData = staleResponse.getResult();
+                R freshData = request.getData();
+                if(staleData == null || freshData == null)
+                    return staleData == freshData; // e.g. an empty body
+
+                return staleData.equals(freshData) || request.encode(staleData).equals(request.encode(freshData));
+            } catch (JsonParseException e) {
+                return false;
+            }
+        }
+
+        /**
+         * The server confirmed the cached copy is current: restart its age and serve it.
+         */
+        private void refreshCachedData()
+        {
+            WebbyLog.d(TAG, "Resource not modified, refreshing cached copy.");
+            try {
+                cache.refresh(request.getUri());
+            } catch (CacheWriteException e) {
+                WebbyLog.e(TAG, "Could not refresh cached resource.", e);
+            }
+
+            if(staleResponse != null)
+            {
+                // Already posted, share its data rather than starting over
+                request.setLazyData(staleResponse.getLazyResult());
+                request.setIsDataFromCache(true);
             }
+            else if(!readDataFromCache())
+                request.setException(new CacheReadException(CacheReadException.ReadError.COULD_NOT_READ_CACHE, "Resource was not modified, but its cached copy could not be read: " + request.getUri()));
+        }
+
+        private boolean readDataFromCache()
+        {
+            if(!cache.containsItem(request.getUri()))
+                return false;
+
+            // Pinned now, so that evicting or rewriting it cannot change what is posted, but only
+            // decoded if someone asks for the data
+            try {
+                request.setLazyData(LazyResult.fromCache(cache, request.getUri(), request.getResultAdapter()));
+            } catch (CacheReadException e) {
+                WebbyLog.d(TAG, "Cached resource went away since it was looked up: " + request.getUri());
+                return false;
+            }
+            request.setIsDataFromCache(true);
+            return true;
+        }
+
+        private void runNetworkCall()
+        {
+            LatencyTracker latencies = getLatencyTracker(request.getEndpoint());
+            // A hedge would post its own partial responses
+            if(!request.isHedged() || request.getIncrementalDelivery() != null || latencies.getSampleCount() < MIN_HEDGE_SAMPLES)
+            {
+                request.run();
+                return;
+            }
+
+            hedgedCall = new HedgedCall<T, R>(request);
+            if(state.get() != DISPATCHED)
+                hedgedCall.cancelHedge(); // cancelled or expired while the hedge was being set up
+
+            hedgedCall.execute(latencies.getPercentile(HEDGE_PERCENTILE), scheduler, hedgeExecutorService);
         }
 
         private void writeDataToCache()
         {
             // If this Service is still in existence, and our data is fresh from the server,
             // then write this data to the cache.
-            if(isCreated && request.wasSuccessful() && !request.isDataFromCache())
+            if(isCreated && request.wasSuccessful() && !request.isDataFromCache() && !request.isDataSpooledToCache())
             {
-                synchronized(cacheLock)
-                {
-                    WebbyLog.d(TAG, "Writing item to cache");
-                    try {
-                        cache.writeToCacheSync(request.getUri(), request.getData().toString());
-                    } catch (CacheWriteException e) {
-                        WebbyLog.e(TAG, "Could not write web service resource to cache.", e);
-                    }
+                WebbyLog.d(TAG, "Writing item to cache");
+                try {
+                    // Cache the body as it was received if we have it, it saves re-encoding
+                    byte[] rawData = request.getRawData();
+                    if(rawData != null)
+                        cache.writeToCacheSync(request.getUri(), rawData, request.getResponseValidators());
+                    else
+                        cache.writeToCacheSync(request.getUri(), request.encode(request.getData()), request.getResponseValidators());
+                } catch (CacheWriteException e) {
+                    WebbyLog.e(TAG, "Could not write web service resource to cache.", e);
                 }
             }
         }
 
-        private void broadcastWebbyEvent()
+        private void broadcastWebbyEvent(List<WebbyRequestHandle> attachedHandles)
         {
             // If this service is still in existence
             if(isCreated)
             {
-                synchronized(requestLock)
+                WebbyResponse<R> event;
+                if(request.wasSuccessful())
                 {
-                    WebbyResponse event;
-                    if(request.wasSuccessful())
-                    {
-                        event = new WebbyResponse(request.getUri(), request.getStatusCode(), request.getStatusPhrase(), request.getData(), request.isDataFromCache());
-                    }
-                    else
-                    {
-                        event = new WebbyResponse(request.getUri(), request.getStatusCode(), request.getStatusPhrase(), request.getData(), request.getException());
-                    }
-                    Webby.getBus().post(event);
+                    event = new WebbyResponse<R>(request.getUri(), request.getStatusCode(), request.getStatusPhrase(), request.getLazyData(), request.isDataFromCache());
+                }
+                else
+                {
+                    event = new WebbyResponse<R>(request.getUri(), request.getStatusCode(), request.getStatusPhrase(), request.getLazyData(), request.getException());
                 }
+                deliver(event, attachedHandles);
+            }
+        }
+
+        private void deliver(WebbyResponse<R> event, List<WebbyRequestHandle> attachedHandles)
+        {
+            for(WebbyRequestHandle handle : attachedHandles)
+            {
+                handle.onComplete(event);
             }
+            Webby.getBus().post(event);
+        }
+    }
+
+    /**
+     * One offer of a container to the request queue.  Only the container's newest entry may be
+     * dispatched, so that a container offered again, e.g. at a higher priority or for a retry,
+     * runs once and never before its retry backoff has passed.
+     */
+    private static class QueueEntry
+    {
+        private final WebbyRequestContainerThread<?, ?> container;
+        private final int generation;
+        private final int priority;
+
+        private QueueEntry(WebbyRequestContainerThread<?, ?> container, int generation, int priority)
+        {
+            this.container = container;
+            this.generation = generation;
+            this.priority = priority;
         }
     }
 }
@@ -0,0 +1,10 @@
+package com.swampmobile.webby.util.cache;
+
+/**
+ * Decides which resource a size-bounded cache throws away first once it is over its quota.
+ */
+public enum CacheEvictionPolicy
+{
+	LEAST_RECENTLY_USED, // the resource which was read or written longest ago
+	LEAST_FREQUENTLY_USED // the resource read or written the fewest times, least recently used first among equals
+}
@@ -0,0 +1,496 @@
+package com.swampmobile.webby.util.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.swampmobile.webby.util.logging.WebbyLog;
+
+import android.net.Uri;
+
+/**
+ * An in-memory index of every file a cache has written: which file holds each resource, its
+ * size, when it was written and how it has been used.  Lookups are answered from memory, so a
+ * cache can tell whether it holds a resource, and how old it is, without touching the disk.  The
+ * sizes and use order also let it be trimmed to a quota one file at a time.
+ *
+ * The index is persisted as a journal.  Every write, refresh and removal is appended to the
+ * journal file as one short line:
+ *
+ * W&lt;tab&gt;size&lt;tab&gt;written-at&lt;tab&gt;uses&lt;tab&gt;key
+ * T&lt;tab&gt;written-at&lt;tab&gt;key
+ * D&lt;tab&gt;key
+ *
+ * where the key is the resource's URI, with backslashes, tabs and line breaks escaped.
+ * Replaying the journal when the index is created restores it.  Once most of its lines are
+ * redundant, the journal is compacted into one W line per live file, in use order.
+ *
+ * Reads are only tracked in memory, so that recording one costs no allocation and no I/O.  The
+ * use order they produce is persisted when the journal is compacted, or by {@link #persist()}.
+ * Journals written before that may also hold R&lt;tab&gt;key lines for reads, which are replayed.
+ *
+ * Lookups never block: entries are also kept in a concurrent map, which {@link #get(Uri)} reads
+ * without taking the index's lock.  Reads are recorded only if the lock is free at the time, so
+ * under contention the use order is approximate.
+ */
+class CacheIndex
+{
+	private static final String TAG = "CacheIndex";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MIN_REDUNDANT_RECORDS_TO_COMPACT = 2000;
+
+	private static final String WRITE = "W";
+	private static final String TOUCH = "T";
+	private static final String READ = "R";
+	private static final String REMOVE = "D";
+
+	private final File journalFile;
+	private final File directory;
+
+	// In use order, least recently used first.  Getting an entry from it counts as using it, so
+	// lookups which must not count go through lookup instead.
+	private final LinkedHashMap<Uri, IndexEntry> entries = new LinkedHashMap<Uri, IndexEntry>(16, 0.75f, true); // guarded by lock
+	private final ConcurrentHashMap<Uri, IndexEntry> lookup = new ConcurrentHashMap<Uri, IndexEntry>(); // same entries, read without the lock
+	private final HashMap<String, Uri> idsByKey = new HashMap<String, Uri>(); // only used while replaying
+	private final ReentrantLock lock = new ReentrantLock();
+	private long totalBytes = 0; // guarded by lock
+	private int redundantRecords = 0; // guarded by lock
+	private int unpersistedReads = 0; // guarded by lock
+	private Writer journalWriter; // guarded by lock
+
+	/**
+	 * @param journalFile file the index is persisted to
+	 * @param directory directory the indexed files live in
+	 */
+	CacheIndex(File journalFile, File directory)
+	{
+		this.journalFile = journalFile;
+		this.directory = directory;
+
+		load();
+	}
+
+	private void load()
+	{
+		if(journalFile.exists())
+		{
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+				try {
+					String line;
+					while((line = reader.readLine()) != null)
+					{
+						replay(line);
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				WebbyLog.e(TAG, "Could not read cache journal, continuing with what was read.", e);
+			}
+		}
+		idsByKey.clear();
+
+		// Files may have been purged by the OS
+		Iterator<Entry<Uri, IndexEntry>> iterator = entries.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			Entry<Uri, IndexEntry> entry = iterator.next();
+			if(!entry.getValue().file.exists())
+			{
+				totalBytes -= entry.getValue().size;
+				lookup.remove(entry.getKey());
+				iterator.remove();
+			}
+		}
+
+		compact();
+	}
+
+	private void replay(String line)
+	{
+		String[] fields = line.split("\t", -1);
+		try {
+			if(WRITE.equals(fields[0]) && fields.length == 5)
+			{
+				String key = fields[4];
+				Uri id = Uri.parse(unescape(key));
+				idsByKey.put(key, id);
+				putEntry(id, newEntry(id, key, Long.parseLong(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[3])));
+			}
+			else if(TOUCH.equals(fields[0]) && fields.length == 3)
+			{
+				IndexEntry entry = getReplayedEntry(fields[2]);
+				if(entry != null)
+					entry.writtenAt = Long.parseLong(fields[1]);
+			}
+			else if(READ.equals(fields[0]) && fields.length == 2)
+			{
+				IndexEntry entry = getReplayedEntry(fields[1]);
+				if(entry != null)
+					use(idsByKey.get(fields[1]), entry);
+			}
+			else if(REMOVE.equals(fields[0]) && fields.length == 2)
+			{
+				Uri id = idsByKey.remove(fields[1]);
+				if(id != null)
+					removeEntry(id);
+			}
+		} catch (NumberFormatException e) {
+			// torn line
+		}
+	}
+
+	private IndexEntry getReplayedEntry(String key)
+	{
+		Uri id = idsByKey.get(key);
+		return id != null ? lookup.get(id) : null;
+	}
+
+	private IndexEntry newEntry(Uri id, String key, long size, long writtenAt, int useCount)
+	{
+		String filename = FlatFileDataCache.convertIdToFilename(id);
+		return new IndexEntry(key, filename, new File(directory, filename), size, writtenAt, useCount);
+	}
+
+	private static String escape(String id)
+	{
+		StringBuilder sb = new StringBuilder(id.length());
+		for(int i = 0; i < id.length(); i++)
+		{
+			char ch = id.charAt(i);
+			switch(ch)
+			{
+				case '\\': sb.append("\\\\"); break;
+				case '\t': sb.append("\\t"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				default: sb.append(ch);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String unescape(String key)
+	{
+		StringBuilder sb = new StringBuilder(key.length());
+		for(int i = 0; i < key.length(); i++)
+		{
+			char ch = key.charAt(i);
+			if(ch != '\\' || i + 1 == key.length())
+			{
+				sb.append(ch);
+				continue;
+			}
+
+			char escaped = key.charAt(++i);
+			switch(escaped)
+			{
+				case 't': sb.append('\t'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				default: sb.append(escaped);
+			}
+		}
+		return sb.toString();
+	}
+
+	private void putEntry(Uri id, IndexEntry entry)
+	{
+		IndexEntry previous = entries.remove(id);
+		if(previous != null)
+			totalBytes -= previous.size;
+
+		entries.put(id, entry);
+		lookup.put(id, entry);
+		totalBytes += entry.size;
+	}
+
+	private void removeEntry(Uri id)
+	{
+		IndexEntry previous = entries.remove(id);
+		lookup.remove(id);
+		if(previous != null)
+			totalBytes -= previous.size;
+	}
+
+	private void use(Uri id, IndexEntry entry)
+	{
+		entry.useCount++;
+		entries.get(id); // moves it to the back of the use order
+	}
+
+	/**
+	 * Returns the entry of a resource, or null if the resource is not indexed.  Looking an entry
+	 * up does not count as using it, and never blocks.
+	 */
+	IndexEntry get(Uri id)
+	{
+		return lookup.get(id);
+	}
+
+	void recordWrite(Uri id, long size, long writtenAt)
+	{
+		lock.lock();
+		try {
+			int uses = 1;
+			IndexEntry entry;
+			IndexEntry previous = lookup.get(id);
+			if(previous != null)
+			{
+				uses = previous.useCount + 1;
+				entry = new IndexEntry(previous.key, previous.filename, previous.file, size, writtenAt, uses);
+				redundantRecords++;
+			}
+			else
+			{
+				entry = newEntry(id, escape(id.toString()), size, writtenAt, uses);
+			}
+
+			putEntry(id, entry);
+			append(WRITE + '\t' + size + '\t' + writtenAt + '\t' + uses + '\t' + entry.key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean recordRefresh(Uri id, long writtenAt)
+	{
+		lock.lock();
+		try {
+			IndexEntry entry = lookup.get(id);
+			if(entry == null)
+				return false;
+
+			entry.writtenAt = writtenAt;
+			redundantRecords++;
+			append(TOUCH + '\t' + writtenAt + '\t' + entry.key);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Counts a read of a resource, in memory only.  Skipped if another thread holds the index, so
+	 * that reads never wait on writes or on each other.
+	 */
+	void recordRead(Uri id)
+	{
+		if(!lock.tryLock())
+			return;
+
+		try {
+			IndexEntry entry = lookup.get(id);
+			if(entry == null)
+				return;
+
+			use(id, entry);
+			unpersistedReads++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Counts reads of resources served from elsewhere, e.g. by a memory tier in front of the cache.
+	 * Unlike {@link #recordRead}, waits for the index: these reads arrive in batches, so dropping
+	 * one would drop many.
+	 */
+	void recordReads(Collection<Uri> ids)
+	{
+		lock.lock();
+		try {
+			for(Uri id : ids)
+			{
+				IndexEntry entry = lookup.get(id);
+				if(entry == null)
+					continue;
+
+				use(id, entry);
+				unpersistedReads++;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the use order reads have produced since the journal was last compacted to the
+	 * journal, e.g. before the cache is shut down.
+	 */
+	void persist()
+	{
+		lock.lock();
+		try {
+			if(unpersistedReads > 0)
+				compact();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void recordRemove(Uri id)
+	{
+		lock.lock();
+		try {
+			IndexEntry entry = lookup.get(id);
+			if(entry == null)
+				return;
+
+			removeEntry(id);
+			redundantRecords += 2;
+			append(REMOVE + '\t' + entry.key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the resource to evict next, or null if the indexed files fit both quotas.
+	 */
+	Uri nextVictim(long maxBytes, int maxEntries, CacheEvictionPolicy policy)
+	{
+		lock.lock();
+		try {
+			if(totalBytes <= maxBytes && entries.size() <= maxEntries)
+				return null;
+
+			if(policy == CacheEvictionPolicy.LEAST_RECENTLY_USED)
+				return entries.keySet().iterator().next();
+
+			Uri victim = null;
+			int fewestUses = Integer.MAX_VALUE;
+			for(Entry<Uri, IndexEntry> entry : entries.entrySet())
+			{
+				// Strictly fewer, so the least recently used wins among equals
+				if(entry.getValue().useCount < fewestUses)
+				{
+					victim = entry.getKey();
+					fewestUses = entry.getValue().useCount;
+				}
+			}
+			return victim;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getTotalBytes()
+	{
+		lock.lock();
+		try {
+			return totalBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getEntryCount()
+	{
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void append(String record)
+	{
+		if(redundantRecords >= MIN_REDUNDANT_RECORDS_TO_COMPACT && redundantRecords >= entries.size())
+		{
+			compact(); // already contains the record
+			return;
+		}
+
+		try {
+			if(journalWriter == null)
+				journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF_8));
+
+			journalWriter.write(record);
+			journalWriter.write('\n');
+			journalWriter.flush();
+		} catch (IOException e) {
+			WebbyLog.e(TAG, "Could not append to cache journal.", e);
+			closeWriter();
+		}
+	}
+
+	/**
+	 * Rewrites the journal as one write line per live file, in use order.
+	 */
+	private void compact()
+	{
+		closeWriter();
+
+		File tempFile = new File(journalFile.getPath() + ".tmp");
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), UTF_8));
+			try {
+				for(IndexEntry entry : entries.values())
+				{
+					writer.write(WRITE + '\t' + entry.size + '\t' + entry.writtenAt + '\t' + entry.useCount + '\t' + entry.key + '\n');
+				}
+			} finally {
+				writer.close();
+			}
+
+			if(!tempFile.renameTo(journalFile))
+				throw new IOException("Could not replace " + journalFile);
+
+			redundantRecords = 0;
+			unpersistedReads = 0;
+		} catch (IOException e) {
+			WebbyLog.e(TAG, "Could not compact cache journal.", e);
+			tempFile.delete();
+		}
+	}
+
+	private void closeWriter()
+	{
+		if(journalWriter == null)
+			return;
+
+		try {
+			journalWriter.close();
+		} catch (IOException e) {
+			WebbyLog.e(TAG, "Could not close cache journal.", e);
+		}
+		journalWriter = null;
+	}
+
+	static class IndexEntry
+	{
+		private final String key;
+		final String filename;
+		final File file;
+		final long size;
+		volatile long writtenAt;
+		private int useCount; // guarded by the index's lock
+
+		private IndexEntry(String key, String filename, File file, long size, long writtenAt, int useCount)
+		{
+			this.key = key;
+			this.filename = filename;
+			this.file = file;
+			this.size = size;
+			this.writtenAt = writtenAt;
+			this.useCount = useCount;
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package com.swampmobile.webby.util.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.swampmobile.webby.util.cache.DataCache.CacheReadCallback;
+import com.swampmobile.webby.util.cache.DataCache.CacheReadException;
+import com.swampmobile.webby.util.cache.DataCache.CacheWriteCallback;
+import com.swampmobile.webby.util.cache.DataCache.CacheWriteException;
+
+import android.net.Uri;
+
+/**
+ * Runs the asynchronous reads and writes of a cache on a small pool of I/O threads, shared by
+ * every cache, rather than on a thread per call.
+ *
+ * Operations wait in one queue.  Reads are taken before writes, as someone is usually waiting on
+ * a read; within each kind, operations run in the order they were submitted.  The exception are
+ * operations on a resource with a write still pending: they are only queued once that write is
+ * done, so a read always sees the writes submitted before it, and writes of one resource never
+ * overtake each other.
+ *
+ * A read of a resource which is already queued is not queued again: both callers share the one
+ * read, each through a future of its own, so one caller cancelling does not cancel the read for
+ * the others.  Reads only join a read which has not started yet and which no write was submitted
+ * after.
+ *
+ * Callbacks run on a callback thread shared by every cache, so a slow callback never holds up an
+ * I/O thread.
+ */
+class CacheIoExecutor
+{
+	static final int IO_THREADS = 2;
+	private static final int READ_PRIORITY = 0;
+	private static final int WRITE_PRIORITY = 1;
+
+	private static ThreadPoolExecutor sharedPool; // guarded by the class
+	private static ThreadPoolExecutor sharedCallbackThread; // guarded by the class
+	private static final AtomicLong sequence = new AtomicLong();
+
+	private final ConcurrentHashMap<Uri, IoTask<String>> queuedReads = new ConcurrentHashMap<Uri, IoTask<String>>();
+	private final ConcurrentHashMap<Uri, IoTask<Void>> pendingWrites = new ConcurrentHashMap<Uri, IoTask<Void>>(); // latest of each resource
+
+	private static synchronized ThreadPoolExecutor getSharedPool()
+	{
+		if(sharedPool == null)
+		{
+			sharedPool = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "CacheIo-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedPool;
+	}
+
+	private static synchronized ThreadPoolExecutor getSharedCallbackThread()
+	{
+		if(sharedCallbackThread == null)
+		{
+			sharedCallbackThread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "CacheCallbacks");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedCallbackThread;
+	}
+
+	/**
+	 * Queues the task, or if {@code previous} is not done yet, queues it once it is.
+	 */
+	private static void executeAfter(IoTask<?> previous, final IoTask<?> task)
+	{
+		if(previous == null)
+		{
+			getSharedPool().execute(task);
+			return;
+		}
+
+		previous.whenDone(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				getSharedPool().execute(task);
+			}
+		});
+	}
+
+	/**
+	 * @return a runnable which runs {@code callback} on the callback thread
+	 */
+	private static Runnable onCallbackThread(final Runnable callback)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				getSharedCallbackThread().execute(callback);
+			}
+		};
+	}
+
+	/**
+	 * Queues a read of a resource, or joins the queued read of it if there is one.
+	 *
+	 * @param id
+	 * @param read reads the resource
+	 * @return the caller's own future of the read, which fails with the exception {@code read}
+	 * threw.  Cancelling it leaves the read to the other callers.
+	 */
+	Future<String> read(Uri id, Callable<String> read)
+	{
+		final IoTask<String> task = queueRead(id, read);
+		FutureTask<String> future = new FutureTask<String>(new Callable<String>()
+		{
+			@Override
+			public String call() throws Exception
+			{
+				try {
+					return task.get();
+				} catch (ExecutionException e) {
+					if(e.getCause() instanceof Exception)
+						throw (Exception) e.getCause();
+					throw (Error) e.getCause();
+				}
+			}
+		});
+		task.whenDone(future); // completes it, unless it was cancelled
+		return future;
+	}
+
+	private IoTask<String> queueRead(final Uri id, Callable<String> read)
+	{
+		while(true)
+		{
+			IoTask<String> queued = queuedReads.get(id);
+			if(queued != null)
+				return queued;
+
+			IoTask<String> task = new IoTask<String>(READ_PRIORITY, read)
+			{
+				@Override
+				public void run()
+				{
+					// Started, so later reads get a read of their own
+					queuedReads.remove(id, this);
+					super.run();
+				}
+			};
+
+			if(queuedReads.putIfAbsent(id, task) == null)
+			{
+				executeAfter(pendingWrites.get(id), task);
+				return task;
+			}
+		}
+	}
+
+	void read(Uri id, Callable<String> read, final CacheReadCallback callback)
+	{
+		final IoTask<String> task = queueRead(id, read);
+		task.whenDone(onCallbackThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					callback.onSuccessfulRead(task.get());
+				} catch (ExecutionException e) {
+					callback.onReadError(e.getCause() instanceof CacheReadException
+							? (CacheReadException) e.getCause()
+							: new CacheReadException(CacheReadException.ReadError.COULD_NOT_READ_CACHE, String.valueOf(e.getCause())));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt(); // done, so not thrown
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Queues a write of a resource, behind every queued read and behind the pending write of the
+	 * same resource, if there is one.
+	 *
+	 * @param id
+	 * @param write
+	 * @return the write, which fails with the exception {@code write} threw
+	 */
+	Future<Void> write(final Uri id, Callable<Void> write)
+	{
+		IoTask<Void> task = new IoTask<Void>(WRITE_PRIORITY, write)
+		{
+			@Override
+			protected void done()
+			{
+				pendingWrites.remove(id, this);
+				super.done();
+			}
+		};
+
+		IoTask<Void> previous = pendingWrites.put(id, task);
+		queuedReads.remove(id); // would not see this write
+		executeAfter(previous, task);
+		return task;
+	}
+
+	void write(Uri id, Callable<Void> write, final CacheWriteCallback callback)
+	{
+		final IoTask<Void> task = (IoTask<Void>) write(id, write);
+		task.whenDone(onCallbackThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					task.get();
+					callback.onSuccessfulWrite();
+				} catch (ExecutionException e) {
+					callback.onWriteError(e.getCause() instanceof CacheWriteException
+							? (CacheWriteException) e.getCause()
+							: new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, String.valueOf(e.getCause())));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt(); // done, so not thrown
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Returns a future which already holds {@code value}, for operations which need no I/O.
+	 */
+	static <V> Future<V> completed(V value)
+	{
+		FutureTask<V> future = new FutureTask<V>(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+			}
+		}, value);
+		future.run();
+		return future;
+	}
+
+	/**
+	 * Returns a future which already failed with {@code error}.
+	 */
+	static <V> Future<V> failed(final Exception error)
+	{
+		FutureTask<V> future = new FutureTask<V>(new Callable<V>()
+		{
+			@Override
+			public V call() throws Exception
+			{
+				throw error;
+			}
+		});
+		future.run();
+		return future;
+	}
+
+	/**
+	 * A queued operation.  Ordered by priority, then by when it was submitted.
+	 */
+	private static class IoTask<V> extends FutureTask<V> implements Comparable<IoTask<?>>
+	{
+		private final int priority;
+		private final long order = sequence.incrementAndGet();
+		private final List<Runnable> listeners = new ArrayList<Runnable>(1); // guarded by this
+
+		private IoTask(int priority, Callable<V> callable)
+		{
+			super(callable);
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(IoTask<?> other)
+		{
+			if(priority != other.priority)
+				return priority < other.priority ? -1 : 1;
+
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+
+		/**
+		 * Runs {@code listener} once the task is done, on the thread which finished it, or right
+		 * away if it already is.
+		 */
+		private void whenDone(Runnable listener)
+		{
+			synchronized(this)
+			{
+				if(!isDone())
+				{
+					listeners.add(listener);
+					return;
+				}
+			}
+			listener.run();
+		}
+
+		@Override
+		protected void done()
+		{
+			List<Runnable> toRun;
+			synchronized(this)
+			{
+				toRun = new ArrayList<Runnable>(listeners);
+				listeners.clear();
+			}
+
+			for(Runnable listener : toRun)
+			{
+				listener.run();
+			}
+		}
+	}
+}
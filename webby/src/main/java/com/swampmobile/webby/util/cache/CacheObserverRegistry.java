@@ -0,0 +1,240 @@
+package com.swampmobile.webby.util.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.swampmobile.webby.util.cache.DataCache.CacheObserver;
+import com.swampmobile.webby.util.logging.WebbyLog;
+
+import android.net.Uri;
+
+/**
+ * Keeps the {@link com.swampmobile.webby.util.cache.DataCache.CacheObserver}s of a cache and tells
+ * them when resources are written, deleted or evicted.
+ *
+ * Observers are notified on a thread of their own, shared by every cache, never on the thread
+ * which changed the resource.  A change is only delivered once the resource has been left alone
+ * for {@link #COALESCE_DELAY_MILLIS}, so a burst of writes to one resource is delivered once,
+ * with the value it ended up with.  Values are read back from the cache when they are delivered,
+ * and only if the resource has observers.
+ *
+ * A value byte for byte identical to the last one delivered for the resource, e.g. a refresh which
+ * brought nothing new, is not delivered again; neither is a second deletion.  Values are compared
+ * by a digest, streamed from the cache a chunk at a time, so a value is only read whole when it
+ * is delivered.
+ */
+class CacheObserverRegistry
+{
+	private static final String TAG = "CacheObserverRegistry";
+	private static final long COALESCE_DELAY_MILLIS = 50;
+	private static final int DIGEST_CHUNK_BYTES = 8192;
+	private static final byte[] DELETED = new byte[0];
+
+	private static ScheduledThreadPoolExecutor sharedDispatcher; // guarded by the class
+
+	private final DataCache cache;
+	private final ConcurrentHashMap<Uri, Set<CacheObserver>> observers = new ConcurrentHashMap<Uri, Set<CacheObserver>>();
+	private final ConcurrentHashMap<Uri, Boolean> pending = new ConcurrentHashMap<Uri, Boolean>();
+	private final Map<Uri, byte[]> lastDelivered = new HashMap<Uri, byte[]>(); // digests, only touched by the dispatcher
+
+	/**
+	 * @param cache cache the values are read back from
+	 */
+	CacheObserverRegistry(DataCache cache)
+	{
+		this.cache = cache;
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getSharedDispatcher()
+	{
+		if(sharedDispatcher == null)
+		{
+			sharedDispatcher = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "CacheObservers");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedDispatcher;
+	}
+
+	void register(final Uri id, CacheObserver observer)
+	{
+		Set<CacheObserver> set = observers.get(id);
+		if(set == null)
+		{
+			Set<CacheObserver> created = new CopyOnWriteArraySet<CacheObserver>();
+			set = observers.putIfAbsent(id, created);
+			if(set == null)
+				set = created;
+		}
+		set.add(observer);
+
+		// Remember what the resource holds now, so that rewriting it as it is goes unnoticed
+		getSharedDispatcher().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if(!lastDelivered.containsKey(id))
+					lastDelivered.put(id, digestCurrent(id));
+			}
+		});
+	}
+
+	void unregister(Uri id, CacheObserver observer)
+	{
+		Set<CacheObserver> set = observers.get(id);
+		if(set != null)
+			set.remove(observer);
+	}
+
+	void unregisterFromAll(CacheObserver observer)
+	{
+		for(Set<CacheObserver> set : observers.values())
+		{
+			set.remove(observer);
+		}
+	}
+
+	/**
+	 * The resource was written.
+	 */
+	void changed(Uri id)
+	{
+		schedule(id);
+	}
+
+	/**
+	 * The resource was deleted or evicted.
+	 */
+	void deleted(Uri id)
+	{
+		schedule(id);
+	}
+
+	private void schedule(final Uri id)
+	{
+		if(!hasObservers(id))
+			return;
+
+		// Already scheduled, it picks up this change as well
+		if(pending.putIfAbsent(id, Boolean.TRUE) != null)
+			return;
+
+		getSharedDispatcher().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				pending.remove(id); // changes from here on schedule another delivery
+				deliver(id);
+			}
+		}, COALESCE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean hasObservers(Uri id)
+	{
+		Set<CacheObserver> set = observers.get(id);
+		return set != null && !set.isEmpty();
+	}
+
+	// runs on the dispatcher
+	private void deliver(Uri id)
+	{
+		if(!hasObservers(id))
+		{
+			lastDelivered.remove(id);
+			return;
+		}
+
+		byte[] digest = digestCurrent(id);
+		if(Arrays.equals(digest, lastDelivered.get(id)))
+			return;
+
+		// Written again since it was digested: that write schedules another delivery, which at
+		// worst hands out the same value a second time
+		String value = digest != DELETED ? readCurrent(id) : null;
+		lastDelivered.put(id, value != null ? digest : DELETED);
+
+		for(CacheObserver observer : observers.get(id))
+		{
+			try {
+				if(value != null)
+					observer.onResourceChange(id, value);
+				else
+					observer.onResourceDeleted(id);
+			} catch (RuntimeException e) {
+				WebbyLog.e(TAG, "Cache observer failed for: " + id, e);
+			}
+		}
+	}
+
+	/**
+	 * @return the value the cache holds for the resource, or null if it holds none
+	 */
+	private String readCurrent(Uri id)
+	{
+		if(!cache.containsItem(id))
+			return null;
+
+		try {
+			return cache.readFromCacheSync(id);
+		} catch (IOException e) {
+			// Deleted in the meantime, or unreadable; either way there is nothing to hand out
+			WebbyLog.w(TAG, "Could not read observed resource " + id + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the SHA-1 of the bytes the cache holds for the resource, or {@link #DELETED} if it
+	 * holds none
+	 */
+	private byte[] digestCurrent(Uri id)
+	{
+		if(!cache.containsItem(id))
+			return DELETED;
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every platform has SHA-1
+		}
+
+		try {
+			InputStream in = cache.openForReading(id);
+			try {
+				byte[] buffer = new byte[DIGEST_CHUNK_BYTES];
+				int read;
+				while((read = in.read(buffer)) != -1)
+				{
+					digest.update(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			WebbyLog.w(TAG, "Could not read observed resource " + id + ": " + e.getMessage());
+			return DELETED;
+		}
+		return digest.digest();
+	}
+}
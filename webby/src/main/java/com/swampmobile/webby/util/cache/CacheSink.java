@@ -0,0 +1,37 @@
+package com.swampmobile.webby.util.cache;
+
+import java.io.OutputStream;
+
+import com.swampmobile.webby.util.cache.DataCache.CacheWriteException;
+
+/**
+ * A stream the raw bytes of one resource are written into, opened with
+ * {@link com.swampmobile.webby.util.cache.DataCache#openForWriting(android.net.Uri, CacheValidators)}.
+ * Resources too large to hold in memory can be written piece by piece.
+ * 
+ * Nothing written is visible in the cache until the sink is committed, which replaces the
+ * resource as a whole.  Aborting the sink, or closing it without committing it, throws away
+ * everything written to it.
+ */
+public abstract class CacheSink extends OutputStream
+{
+	/**
+	 * Puts everything written to this sink in the cache, replacing the resource.  Nothing can be
+	 * written afterwards.
+	 */
+	public abstract void commit() throws CacheWriteException;
+	
+	/**
+	 * Throws away everything written to this sink.  Does nothing once committed.
+	 */
+	public abstract void abort();
+	
+	/**
+	 * Aborts the sink unless it was committed.
+	 */
+	@Override
+	public void close()
+	{
+		abort();
+	}
+}
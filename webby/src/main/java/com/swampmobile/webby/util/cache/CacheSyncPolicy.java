@@ -0,0 +1,12 @@
+package com.swampmobile.webby.util.cache;
+
+/**
+ * Decides how often cache writes are synced to stable storage, trading the chance of losing
+ * recent writes in a crash for fewer, slower syncs.
+ */
+public enum CacheSyncPolicy
+{
+	NONE, // leave it to the OS; a crash may lose writes from the last few seconds
+	PER_GROUP, // sync once per group of writes
+	PER_WRITE // sync every write on its own
+}
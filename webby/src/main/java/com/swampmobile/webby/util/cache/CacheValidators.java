@@ -0,0 +1,33 @@
+package com.swampmobile.webby.util.cache;
+
+/**
+ * The HTTP validators ({@code ETag} and {@code Last-Modified}) a server sent along with a cached
+ * resource.  Sending them back with {@code If-None-Match} and {@code If-Modified-Since} lets the
+ * server answer "304 Not Modified" instead of sending the resource again.
+ */
+public class CacheValidators
+{
+	private final String eTag;
+	private final String lastModified;
+	
+	public CacheValidators(String eTag, String lastModified)
+	{
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+	}
+	
+	/**
+	 * @return the ETag header value, or null if the server sent none
+	 */
+	public String getETag() { return eTag; }
+	
+	/**
+	 * @return the Last-Modified header value, or null if the server sent none
+	 */
+	public String getLastModified() { return lastModified; }
+	
+	public boolean isEmpty()
+	{
+		return eTag == null && lastModified == null;
+	}
+}
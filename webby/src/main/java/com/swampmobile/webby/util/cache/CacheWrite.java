@@ -0,0 +1,32 @@
+package com.swampmobile.webby.util.cache;
+
+import android.net.Uri;
+
+/**
+ * One resource to be written as part of a group, see
+ * {@link com.swampmobile.webby.util.cache.DataCache#writeToCacheSync(java.util.List, boolean)}.
+ */
+public class CacheWrite
+{
+	private final Uri id;
+	private final byte[] resource;
+	private final CacheValidators validators;
+	
+	/**
+	 * @param id
+	 * @param resource raw UTF-8 bytes of the resource
+	 * @param validators HTTP validators the server sent for it, or null
+	 */
+	public CacheWrite(Uri id, byte[] resource, CacheValidators validators)
+	{
+		this.id = id;
+		this.resource = resource;
+		this.validators = validators;
+	}
+	
+	public Uri getId() { return id; }
+	
+	public byte[] getResource() { return resource; }
+	
+	public CacheValidators getValidators() { return validators; }
+}
@@ -3,14 +3,20 @@ package com.swampmobile.webby.util.cache;
 import android.net.Uri;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import com.swampmobile.webby.util.time.Duration;
 
 /**
  * Represents a persistent cache of String resources.  This interface imposes no restriction
- * on how those string values are persisted.  The only implicit restriction imposed by this
- * cache is that text content be able to fit in a single String.  There is no support in
- * this interface for stream-based reading/writing.
+ * on how those string values are persisted.  Resources may also be written as raw UTF-8
+ * bytes and read back as a stream, which avoids holding them in a String.  Resources too
+ * large to hold in memory at all are streamed in through a
+ * {@link com.swampmobile.webby.util.cache.CacheSink} and out through
+ * {@link #openForReading(Uri)}.
  * 
  * @author Matt
  *
@@ -20,12 +26,85 @@ public interface DataCache
 	boolean containsItem(Uri id);
 	boolean isYoungerThan(Uri id, Duration age);
 	
+	/**
+	 * Returns when a resource was last written or refreshed, in milliseconds since the epoch, or
+	 * 0 if it is not in the cache.
+	 */
+	long getLastWriteTime(Uri id);
+	
 	String readFromCacheSync(Uri id) throws CacheReadException;
 	void readFromCacheAsync(Uri id, CacheReadCallback callback) throws CacheReadException;
 	
+	/**
+	 * Reads a resource in the background.  The future fails with a CacheReadException if the
+	 * resource could not be read.
+	 */
+	Future<String> readFromCacheAsync(Uri id);
+	
 	void writeToCacheSync(Uri id, String resource) throws CacheWriteException;
 	void writeToCacheAsync(Uri id, String resource, CacheWriteCallback callback) throws CacheWriteException;
 	
+	/**
+	 * Writes a resource in the background.  The future fails with a CacheWriteException if the
+	 * resource could not be written.
+	 */
+	Future<Void> writeToCacheAsync(Uri id, String resource);
+	
+	/**
+	 * Writes a resource along with the HTTP validators the server sent for it, replacing any
+	 * validators previously stored for it.
+	 */
+	void writeToCacheSync(Uri id, String resource, CacheValidators validators) throws CacheWriteException;
+	
+	/**
+	 * Writes the raw UTF-8 bytes of a resource, e.g. a response body exactly as it came over
+	 * the wire, along with the HTTP validators the server sent for it.
+	 */
+	void writeToCacheSync(Uri id, byte[] resource, CacheValidators validators) throws CacheWriteException;
+	
+	/**
+	 * Writes several resources as one group.  If {@code sync} is true, every resource of the group
+	 * is on stable storage when this returns.  Caches which can sync a group at once, rather
+	 * than each write of it, make this cheaper than writing the resources one by one.
+	 * 
+	 * All writes are attempted even if one fails; the last failure is then thrown.
+	 */
+	void writeToCacheSync(List<CacheWrite> writes, boolean sync) throws CacheWriteException;
+	
+	/**
+	 * Opens the raw bytes of a resource for reading.  The caller must close the stream.
+	 */
+	InputStream openForReading(Uri id) throws CacheReadException;
+	
+	/**
+	 * Opens a sink the raw bytes of a resource can be streamed into, along with the HTTP
+	 * validators the server sent for it.  The resource is only replaced once the sink is
+	 * committed.
+	 */
+	CacheSink openForWriting(Uri id, CacheValidators validators) throws CacheWriteException;
+	
+	/**
+	 * Returns the HTTP validators stored with a resource, or null if it has none.
+	 */
+	CacheValidators getValidators(Uri id);
+	
+	/**
+	 * Resets the age of a resource to zero without touching its content, e.g. after the server
+	 * confirmed with a "304 Not Modified" that the cached content is still current.
+	 */
+	void refresh(Uri id) throws CacheWriteException;
+	
+	/**
+	 * Counts the resources as read, e.g. because a cache in front of this one served them, so
+	 * that they are not evicted as if nobody had used them.  Resources not in the cache are ignored.
+	 */
+	void touch(Collection<Uri> ids);
+	
+	/**
+	 * Has {@code observer} told whenever the resource is written with new content, deleted or
+	 * evicted, instead of polling for it.  Notifications arrive on a background thread, and a
+	 * burst of changes to the resource may arrive as a single one.
+	 */
 	void registerResourceObserver(Uri id, CacheObserver observer);
 	void unregisterResourceObserver(Uri id, CacheObserver observer);
 	void unregisterResourceObserverFromAll(CacheObserver observer);
@@ -1,20 +1,22 @@
 package com.swampmobile.webby.util.cache;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
+import com.swampmobile.webby.util.io.ByteBufferInputStream;
 import com.swampmobile.webby.util.logging.WebbyLog;
 import com.swampmobile.webby.util.time.Duration;
 
@@ -31,27 +33,87 @@ import android.util.Log;
  * to the functionality of this cache, but the names of the cache files are identical
  * to the ID's of the resources they correspond to.
  * 
+ * HTTP validators are kept in a properties file of the same name in a separate
+ * validators directory.
+ * 
+ * Every file this cache writes is tracked by an in-memory index, persisted as a journal and
+ * loaded on first use, which holds its size and write time.  Lookups and age checks are
+ * answered from the index without touching the disk; resources which are not indexed are not
+ * in the cache.
+ * 
+ * The files are kept within a byte and an entry quota.  Whenever a write goes over either
+ * quota, files are evicted one at a time according to a
+ * {@link com.swampmobile.webby.util.cache.CacheEvictionPolicy} until the cache fits again.
+ * 
+ * The cache is safe to use from any thread.  Files are written to a temporary directory and
+ * renamed over the old ones, so a reader sees either the old or the new file, never a partial
+ * one, and reads take no locks.  Writes of the same resource are serialized by one of a fixed
+ * number of striped locks; writes of different resources rarely share one.
+ * 
+ * Files are read byte for byte as they were written.  Files of at least
+ * {@link #getMapThresholdBytes()} are memory-mapped, smaller ones are read whole with one bulk
+ * read, which is cheaper than setting up a mapping for them.
+ * 
  * @author Matt
  *
  */
 public class FlatFileDataCache implements DataCache
 {
 	private static final String TAG = "FlatFileDataCache";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private static final String VALIDATORS_DIR = "webby-validators";
+	private static final String JOURNAL_FILE = "webby-journal";
+	private static final String TEMP_DIR = "webby-tmp";
+	private static final int WRITE_LOCK_STRIPES = 32;
+	
+	public static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final int DEFAULT_MAP_THRESHOLD_BYTES = 64 * 1024;
+	private static final String ETAG_PROPERTY = "ETag";
+	private static final String LAST_MODIFIED_PROPERTY = "Last-Modified";
 	
 	private Context context;
 	private File cacheDir;
+	private File validatorsDir;
+	private File tempDir;
 	
-	private Map<Uri, Set<CacheObserver>> resourceObserverMap;
+	private final long maxBytes;
+	private final int maxEntries;
+	private final CacheEvictionPolicy evictionPolicy;
+	private volatile CacheIndex index; // loaded on first use, off the thread that creates the cache
+	private final Object[] writeLocks = new Object[WRITE_LOCK_STRIPES];
+	private volatile int mapThresholdBytes = DEFAULT_MAP_THRESHOLD_BYTES;
+	
+	// Small files are read into these rather than a new array each time
+	private final ThreadLocal<ByteBuffer> readBuffers = new ThreadLocal<ByteBuffer>();
+	
+	private final CacheIoExecutor ioExecutor = new CacheIoExecutor(); // runs the async calls
+	
+	private final CacheObserverRegistry observers = new CacheObserverRegistry(this);
 	
 	public FlatFileDataCache(Context context)
+	{
+		this(context, DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRIES, CacheEvictionPolicy.LEAST_RECENTLY_USED);
+	}
+	
+	public FlatFileDataCache(Context context, long maxBytes, int maxEntries, CacheEvictionPolicy evictionPolicy)
 	{
 		this.context = context;
 		this.cacheDir = context.getCacheDir();
+		this.validatorsDir = new File(cacheDir, VALIDATORS_DIR);
+		this.tempDir = new File(cacheDir, TEMP_DIR);
+		this.maxBytes = maxBytes;
+		this.maxEntries = maxEntries;
+		this.evictionPolicy = evictionPolicy;
 		
-		resourceObserverMap = Collections.synchronizedMap(new HashMap<Uri, Set<CacheObserver>>());
+		for(int i = 0; i < writeLocks.length; i++)
+		{
+			writeLocks[i] = new Object();
+		}
 	}
 	
-	private String convertIdToFilename(Uri id)
+	static String convertIdToFilename(Uri id)
 	{
 		//return request.getUri().hashCode() + "";
 		
@@ -80,44 +142,142 @@ public class FlatFileDataCache implements DataCache
 	
 	private File getFileFromId(Uri id)
 	{
+		CacheIndex.IndexEntry entry = getIndex().get(id);
+		if(entry != null)
+			return entry.file;
+		
 		return new File(cacheDir.getAbsolutePath() + File.separator + convertIdToFilename(id) );
 	}
 
-	private String readStreamToString(InputStream in) throws IOException
+	private CacheIndex getIndex()
 	{
-		StringBuilder sb = new StringBuilder();
+		CacheIndex index = this.index;
+		if(index != null)
+			return index;
 		
-		BufferedReader br = new BufferedReader(new InputStreamReader(in));
-		String newLine;
-		
-		while((newLine = br.readLine()) != null)
+		synchronized(this)
 		{
-			sb.append(newLine);
+			if(this.index == null)
+			{
+				deleteTempFiles();
+				this.index = new CacheIndex(new File(cacheDir, JOURNAL_FILE), cacheDir);
+			}
+			return this.index;
 		}
+	}
+	
+	/**
+	 * Deletes the temporary files of writes which never finished, e.g. because the process died.
+	 */
+	private void deleteTempFiles()
+	{
+		File[] tempFiles = tempDir.listFiles();
+		if(tempFiles == null)
+			return;
 		
-		return sb.toString();
+		for(File tempFile : tempFiles)
+		{
+			tempFile.delete();
+		}
+	}
+	
+	private Object getWriteLock(Uri id)
+	{
+		return writeLocks[(id.hashCode() & 0x7fffffff) % writeLocks.length];
+	}
+	
+	/**
+	 * Evicts files until the cache fits within its quotas again.  Must not be called while
+	 * holding a write lock, as each victim's lock is taken in turn.
+	 */
+	private void trimToQuota()
+	{
+		CacheIndex index = getIndex();
+		Uri victim;
+		while((victim = index.nextVictim(maxBytes, maxEntries, evictionPolicy)) != null)
+		{
+			synchronized(getWriteLock(victim))
+			{
+				// Another thread may have evicted it first
+				CacheIndex.IndexEntry entry = index.get(victim);
+				if(entry == null)
+					continue;
+				
+				WebbyLog.d(TAG, "Evicting from cache: " + victim);
+				entry.file.delete();
+				new File(validatorsDir, entry.filename).delete();
+				index.recordRemove(victim);
+			}
+			observers.deleted(victim);
+		}
+	}
+	
+	private File getValidatorsFileFromId(Uri id)
+	{
+		CacheIndex.IndexEntry entry = getIndex().get(id);
+		return new File(validatorsDir, entry != null ? entry.filename : convertIdToFilename(id));
+	}
+
+	/**
+	 * Returns the whole content of a file: mapped if it is at least
+	 * {@code mapThresholdBytes} long, otherwise read into this thread's reusable buffer, in
+	 * which case it is only valid until the thread's next read.
+	 */
+	private ByteBuffer readFile(File file) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if(size >= mapThresholdBytes)
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // stays valid once the channel is closed
+			
+			ByteBuffer buffer = readBuffers.get();
+			if(buffer == null || buffer.capacity() < size)
+			{
+				buffer = ByteBuffer.allocate(Math.max((int) size, 4096));
+				readBuffers.set(buffer);
+			}
+			buffer.clear();
+			buffer.limit((int) size);
+			readFully(channel, buffer);
+			return buffer;
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer) == -1)
+				break; // truncated underneath us
+		}
+		buffer.flip();
 	}
 	
 	@Override
 	public boolean containsItem(Uri id)
 	{
-		File resourceFile = getFileFromId(id);
-		
-		if(!resourceFile.exists())
-			return false;
-		
-		return true;
+		return getIndex().get(id) != null;
 	}
 	
 	@Override
 	public boolean isYoungerThan(Uri id, Duration age)
 	{
-		if(!containsItem(id))
+		CacheIndex.IndexEntry entry = getIndex().get(id);
+		if(entry == null)
 			throw new RuntimeException("The resource you requested does not exist in the cache: " + id);
 		
-		File resource = getFileFromId(id);
-		
-		return !age.isExceeded(resource.lastModified(), System.currentTimeMillis());
+		return !age.isExceeded(entry.writtenAt, System.currentTimeMillis());
+	}
+	
+	@Override
+	public long getLastWriteTime(Uri id)
+	{
+		CacheIndex.IndexEntry entry = getIndex().get(id);
+		return entry != null ? entry.writtenAt : 0;
 	}
 	
 	@Override
@@ -127,11 +287,9 @@ public class FlatFileDataCache implements DataCache
 		
 		File resourceFile = getFileFromId(id);
 		
-		if(!resourceFile.exists())
-			return "";
-		
 		try {
-			String resource = readStreamToString(new FileInputStream(resourceFile));
+			String resource = UTF_8.decode(readFile(resourceFile)).toString();
+			getIndex().recordRead(id);
 			
 			return resource;
 		} catch (FileNotFoundException e) {
@@ -142,107 +300,362 @@ public class FlatFileDataCache implements DataCache
 	}
 
 	@Override
-	public void readFromCacheAsync(final Uri id, final CacheReadCallback callback)
+	public InputStream openForReading(Uri id) throws CacheReadException
+	{
+		WebbyLog.d(TAG, "Opening cache stream with id: " + id);
+		
+		try {
+			ByteBuffer content = readFile(getFileFromId(id));
+			getIndex().recordRead(id);
+			
+			if(content.isDirect())
+				return new ByteBufferInputStream(content); // mapped, read by the decoder in place
+			
+			// The reusable buffer is not ours to hand out
+			byte[] bytes = new byte[content.remaining()];
+			content.get(bytes);
+			return new ByteArrayInputStream(bytes);
+		} catch (FileNotFoundException e) {
+			throw new CacheReadException(CacheReadException.ReadError.NO_SUCH_CACHE_RESOURCE, "The resource you requested does not exist in the cache: " + id);
+		} catch (IOException e) {
+			throw new CacheReadException(CacheReadException.ReadError.COULD_NOT_READ_CACHE, e.getMessage());
+		}
+	}
+
+	@Override
+	public void readFromCacheAsync(Uri id, CacheReadCallback callback)
 	{
-		new Thread(new Runnable() 
+		ioExecutor.read(id, newRead(id), callback);
+	}
+
+	@Override
+	public Future<String> readFromCacheAsync(Uri id)
+	{
+		return ioExecutor.read(id, newRead(id));
+	}
+
+	private Callable<String> newRead(final Uri id)
+	{
+		return new Callable<String>()
 		{
 			@Override
-			public void run()
+			public String call() throws CacheReadException
 			{
-				try {
-					String resource = readFromCacheSync(id);
-					callback.onSuccessfulRead(resource);
-				} catch (CacheReadException e) {
-					callback.onReadError(e);
-				}
+				return readFromCacheSync(id);
 			}
-		}).start();
+		};
 	}
 
-	private void writeResourceToFile(String resource, File resourceFile) throws FileNotFoundException, IOException
+	/**
+	 * Creates an empty file in the temporary directory, to be renamed over its target with
+	 * {@link #replace(File, File)} once written.
+	 */
+	private File createTempFile() throws IOException
+	{
+		getIndex(); // loading it clears out the temporary directory, so not afterwards
+		tempDir.mkdirs();
+		return File.createTempFile("webby", null, tempDir);
+	}
+	
+	private static void replace(File tempFile, File target) throws IOException
+	{
+		if(!tempFile.renameTo(target))
+		{
+			tempFile.delete();
+			throw new IOException("Could not replace " + target);
+		}
+	}
+	
+	/**
+	 * @param sync whether to sync the file to stable storage before it replaces the old one
+	 * @return the temporary file written
+	 */
+	private File writeTempFile(byte[] resource, boolean sync) throws FileNotFoundException, IOException
 	{
-		FileOutputStream out = new FileOutputStream(resourceFile);
+		File tempFile = createTempFile();
+		FileOutputStream out = new FileOutputStream(tempFile);
 		
-		out.write(resource.getBytes());
-		out.flush();
+		try {
+			out.write(resource);
+			out.flush();
+			if(sync)
+				out.getFD().sync();
+		} catch (IOException e) {
+			out.close();
+			tempFile.delete();
+			throw e;
+		}
 		out.close();
+		
+		return tempFile;
 	}
 	
 	@Override
 	public void writeToCacheSync(Uri id, String resource) throws CacheWriteException
+	{
+		writeToCacheSync(id, resource, null);
+	}
+	
+	@Override
+	public void writeToCacheSync(Uri id, String resource, CacheValidators validators) throws CacheWriteException
 	{
 		WebbyLog.d(TAG, "Writing to cache with filename: " + id +  '\n' + resource);
 		
-		File resourceFile = getFileFromId(id);
-		resourceFile.getParentFile().mkdirs();
+		writeToCacheSync(id, resource.getBytes(UTF_8), validators);
+	}
+	
+	@Override
+	public void writeToCacheSync(Uri id, byte[] resource, CacheValidators validators) throws CacheWriteException
+	{
+		writeResource(id, resource, validators, false);
+		trimToQuota();
+	}
+	
+	/**
+	 * Each file of the group is synced on its own, as files cannot be synced together.
+	 */
+	@Override
+	public void writeToCacheSync(List<CacheWrite> writes, boolean sync) throws CacheWriteException
+	{
+		CacheWriteException failure = null;
+		for(CacheWrite write : writes)
+		{
+			try {
+				writeResource(write.getId(), write.getResource(), write.getValidators(), sync);
+			} catch (CacheWriteException e) {
+				failure = e;
+			}
+		}
+		trimToQuota();
 		
+		if(failure != null)
+			throw failure;
+	}
+	
+	private void writeResource(Uri id, byte[] resource, CacheValidators validators, boolean sync) throws CacheWriteException
+	{
+		WebbyLog.d(TAG, "Writing " + resource.length + " bytes to cache with filename: " + id);
+		
+		File tempFile;
 		try {
-			resourceFile.createNewFile();
-			writeResourceToFile(resource, resourceFile);
+			tempFile = writeTempFile(resource, sync);
 		} catch (FileNotFoundException e) {
 			throw new CacheWriteException(CacheWriteException.WriteError.CANNOT_ACCESS_CACHE, e.getMessage());
 		} catch (IOException e) {
 			throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
 		}
+		
+		installTempFile(id, tempFile, resource.length, validators);
+	}
+	
+	/**
+	 * Puts a fully written temporary file in place of the file of a resource.
+	 */
+	private void installTempFile(Uri id, File tempFile, long size, CacheValidators validators) throws CacheWriteException
+	{
+		synchronized(getWriteLock(id))
+		{
+			File resourceFile = getFileFromId(id);
+			resourceFile.getParentFile().mkdirs();
+			
+			try {
+				replace(tempFile, resourceFile);
+			} catch (IOException e) {
+				throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
+			}
+			
+			writeValidators(id, validators);
+			
+			getIndex().recordWrite(id, size, System.currentTimeMillis());
+		}
+		
+		observers.changed(id);
+	}
+	
+	/**
+	 * The bytes are spooled to a temporary file, which replaces the resource's file when the sink
+	 * is committed.
+	 */
+	@Override
+	public CacheSink openForWriting(Uri id, final CacheValidators validators) throws CacheWriteException
+	{
+		WebbyLog.d(TAG, "Opening cache sink with filename: " + id);
+		
+		try {
+			return new SpoolingCacheSink(id, createTempFile())
+			{
+				@Override
+				protected void install(File spoolFile, long size) throws CacheWriteException
+				{
+					WebbyLog.d(TAG, "Committing " + size + " bytes to cache with filename: " + id);
+					installTempFile(id, spoolFile, size, validators);
+					trimToQuota();
+				}
+			};
+		} catch (IOException e) {
+			throw new CacheWriteException(CacheWriteException.WriteError.CANNOT_ACCESS_CACHE, e.getMessage());
+		}
+	}
+	
+	private void writeValidators(Uri id, CacheValidators validators) throws CacheWriteException
+	{
+		File validatorsFile = getValidatorsFileFromId(id);
+		
+		if(validators == null || validators.isEmpty())
+		{
+			validatorsFile.delete();
+			return;
+		}
+		
+		Properties properties = new Properties();
+		if(validators.getETag() != null)
+			properties.setProperty(ETAG_PROPERTY, validators.getETag());
+		if(validators.getLastModified() != null)
+			properties.setProperty(LAST_MODIFIED_PROPERTY, validators.getLastModified());
+		
+		validatorsDir.mkdirs();
+		try {
+			File tempFile = createTempFile();
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				properties.store(out, null);
+			} finally {
+				out.close();
+			}
+			replace(tempFile, validatorsFile);
+		} catch (IOException e) {
+			validatorsFile.delete();
+			throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Persists the use order of the cached files, which reads only track in memory.  Call it
+	 * before the cache is shut down, or the reads since the journal was last compacted are lost.
+	 */
+	public void persistIndex()
+	{
+		CacheIndex index = this.index;
+		if(index != null)
+			index.persist();
+	}
+	
+	public long getMaxBytes() { return maxBytes; }
+	
+	public int getMaxEntries() { return maxEntries; }
+	
+	public CacheEvictionPolicy getEvictionPolicy() { return evictionPolicy; }
+	
+	public int getMapThresholdBytes() { return mapThresholdBytes; }
+	
+	/**
+	 * @param mapThresholdBytes files of at least this size are memory-mapped when read, smaller
+	 *                          ones are read into a buffer
+	 */
+	public void setMapThresholdBytes(int mapThresholdBytes) { this.mapThresholdBytes = mapThresholdBytes; }
+	
+	/**
+	 * @return total size of the files this cache has written and not yet evicted
+	 */
+	public long getSize() { return getIndex().getTotalBytes(); }
+	
+	public int getEntryCount() { return getIndex().getEntryCount(); }
+	
+	@Override
+	public CacheValidators getValidators(Uri id)
+	{
+		File validatorsFile = getValidatorsFileFromId(id);
+		
+		if(!validatorsFile.exists())
+			return null;
+		
+		Properties properties = new Properties();
+		try {
+			FileInputStream in = new FileInputStream(validatorsFile);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			WebbyLog.e(TAG, "Could not read validators for: " + id, e);
+			return null;
+		}
+		
+		CacheValidators validators = new CacheValidators(properties.getProperty(ETAG_PROPERTY), properties.getProperty(LAST_MODIFIED_PROPERTY));
+		return validators.isEmpty() ? null : validators;
+	}
+	
+	@Override
+	public void refresh(Uri id) throws CacheWriteException
+	{
+		// Ages are kept by the index, the file itself does not change
+		if(!getIndex().recordRefresh(id, System.currentTimeMillis()))
+			throw new CacheWriteException(CacheWriteException.WriteError.CANNOT_ACCESS_CACHE, "The resource you requested does not exist in the cache: " + id);
+	}
+
+	@Override
+	public void touch(Collection<Uri> ids)
+	{
+		getIndex().recordReads(ids);
+	}
+
+	@Override
+	public void writeToCacheAsync(Uri id, String resource, CacheWriteCallback callback)
+	{
+		ioExecutor.write(id, newWrite(id, resource), callback);
 	}
 
 	@Override
-	public void writeToCacheAsync(final Uri id, final String resource, final CacheWriteCallback callback)
+	public Future<Void> writeToCacheAsync(Uri id, String resource)
+	{
+		return ioExecutor.write(id, newWrite(id, resource));
+	}
+
+	private Callable<Void> newWrite(final Uri id, final String resource)
 	{
-		new Thread(new Runnable() 
+		return new Callable<Void>()
 		{
 			@Override
-			public void run()
+			public Void call() throws CacheWriteException
 			{
-				try {
-					writeToCacheSync(id, resource);
-					callback.onSuccessfulWrite();
-				} catch (CacheWriteException e) {
-					callback.onWriteError(e);
-				}
+				writeToCacheSync(id, resource);
+				return null;
 			}
-		}).start();
+		};
 	}
 
+	/**
+	 * Observers are notified of writes and evictions on a thread of their own, once the resource
+	 * has settled; see {@link com.swampmobile.webby.util.cache.CacheObserverRegistry}.
+	 */
 	@Override
 	public void registerResourceObserver(Uri id, CacheObserver observer) {
-		if(resourceObserverMap.get(id) == null)
-			resourceObserverMap.put(id, Collections.synchronizedSet(new HashSet<CacheObserver>()));
-		
-		Set<CacheObserver> observers = resourceObserverMap.get(id);
-		observers.add(observer);
+		observers.register(id, observer);
 	}
 
 	@Override
 	public void unregisterResourceObserver(Uri id, CacheObserver observer) {
-		if(resourceObserverMap.get(id) == null)
-			return;
-		
-		resourceObserverMap.get(id).remove(observer);
+		observers.unregister(id, observer);
 	}
 
 	@Override
 	public void unregisterResourceObserverFromAll(CacheObserver observer) {
-		for(Entry<Uri, Set<CacheObserver>> entry : resourceObserverMap.entrySet())
-		{
-			entry.getValue().remove(observer);
-		}
+		observers.unregisterFromAll(observer);
 	}
 	
+	/**
+	 * Schedules a notification of the resource's observers.  They are handed the value the cache
+	 * holds when they are notified, rather than {@code resource}.
+	 */
 	protected void notifyObserversOfChange(Uri id, String resource)
 	{
-		for(CacheObserver observer : resourceObserverMap.get(id))
-		{
-			observer.onResourceChange(id, resource);
-		}
+		observers.changed(id);
 	}
 	
 	protected void notifyObserversOfDeletion(Uri id, String resource)
 	{
-		for(CacheObserver observer : resourceObserverMap.get(id))
-		{
-			observer.onResourceDeleted(id);
-		}
+		observers.deleted(id);
 	}
 
 }
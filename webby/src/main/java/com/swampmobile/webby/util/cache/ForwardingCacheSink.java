@@ -0,0 +1,49 @@
+package com.swampmobile.webby.util.cache;
+
+import java.io.IOException;
+
+import com.swampmobile.webby.util.cache.DataCache.CacheWriteException;
+
+/**
+ * A {@link com.swampmobile.webby.util.cache.CacheSink} which forwards everything to the sink of
+ * another cache, for caches layered on top of it to hook into {@link #commit()}.
+ */
+class ForwardingCacheSink extends CacheSink
+{
+	private final CacheSink sink;
+	
+	ForwardingCacheSink(CacheSink sink)
+	{
+		this.sink = sink;
+	}
+	
+	@Override
+	public void write(int b) throws IOException
+	{
+		sink.write(b);
+	}
+	
+	@Override
+	public void write(byte[] buffer, int offset, int count) throws IOException
+	{
+		sink.write(buffer, offset, count);
+	}
+	
+	@Override
+	public void flush() throws IOException
+	{
+		sink.flush();
+	}
+	
+	@Override
+	public void commit() throws CacheWriteException
+	{
+		sink.commit();
+	}
+	
+	@Override
+	public void abort()
+	{
+		sink.abort();
+	}
+}
@@ -0,0 +1,1097 @@
+package com.swampmobile.webby.util.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import com.swampmobile.webby.util.io.ByteBufferInputStream;
+import com.swampmobile.webby.util.logging.WebbyLog;
+import com.swampmobile.webby.util.time.Duration;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * A {@link com.swampmobile.webby.util.cache.DataCache} which keeps every resource in a few large
+ * append-only segment files, rather than in a file of its own.
+ *
+ * Each write appends one record to the newest segment: the resource's URI, write time,
+ * validators and bytes, followed by a checksum.  An in-memory index maps every URI to the
+ * position of its latest record, so a read is a single positional read.  Once a segment reaches
+ * {@code maxSegmentBytes} it is sealed and a new one started.
+ *
+ * Records superseded by a later write, refresh or removal stay behind as garbage.  Once there is
+ * more garbage than live data, the sealed segments are compacted in the background: their live
+ * records are copied to the newest segment and the sealed segments deleted, oldest first.
+ *
+ * The index is rebuilt by scanning the segments when the cache is first used.  A record cut
+ * short by a crash fails its checksum, and the newest segment is truncated back to its last
+ * intact record.
+ *
+ * Reads take no locks other than one which keeps compaction from deleting a segment under them.
+ * Writes are serialized.
+ */
+public class LogStructuredDataCache implements DataCache
+{
+	private static final String TAG = "LogStructuredDataCache";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String SEGMENTS_DIR = "webby-segments";
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	public static final long DEFAULT_MAX_SEGMENT_BYTES = 4 * 1024 * 1024;
+	private static final long MIN_GARBAGE_BYTES_TO_COMPACT = 1024 * 1024;
+
+	// Record layout: magic, type, written-at, key, [eTag, last-modified, value,] checksum
+	private static final int MAGIC = 0x57656262;
+	private static final byte PUT = 1;
+	private static final byte REFRESH = 2;
+	private static final byte REMOVE = 3;
+	private static final int CHECKSUM_BYTES = 4;
+
+	private static final String SPOOL_PREFIX = "spool-";
+	private static final int COPY_BUFFER_BYTES = 64 * 1024;
+	private static final int MAP_THRESHOLD_BYTES = 64 * 1024;
+
+	private final File directory;
+	private final long maxSegmentBytes;
+
+	private final ConcurrentHashMap<Uri, Location> index = new ConcurrentHashMap<Uri, Location>();
+	private final Object appendLock = new Object(); // serializes appends and changes to the index
+	private final ReentrantReadWriteLock segmentsLock = new ReentrantReadWriteLock(); // segments are only deleted under the write lock
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>(); // guarded by appendLock
+	private Segment activeSegment; // guarded by appendLock
+	private long totalBytes = 0; // guarded by appendLock
+	private long liveBytes = 0; // guarded by appendLock
+	private volatile boolean loaded = false;
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	private final CacheIoExecutor ioExecutor = new CacheIoExecutor();
+
+	private final CacheObserverRegistry observers = new CacheObserverRegistry(this);
+
+	public LogStructuredDataCache(Context context)
+	{
+		this(new File(context.getCacheDir(), SEGMENTS_DIR), DEFAULT_MAX_SEGMENT_BYTES);
+	}
+
+	/**
+	 * @param directory directory the segments are kept in, which should hold nothing else
+	 * @param maxSegmentBytes size at which a segment is sealed and a new one started
+	 */
+	public LogStructuredDataCache(File directory, long maxSegmentBytes)
+	{
+		this.directory = directory;
+		this.maxSegmentBytes = maxSegmentBytes;
+	}
+
+	/**
+	 * Rebuilds the index from the segments, on first use rather than on the thread that creates
+	 * the cache.
+	 */
+	private void ensureLoaded()
+	{
+		if(loaded)
+			return;
+
+		synchronized(appendLock)
+		{
+			if(loaded)
+				return;
+
+			TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+			File[] files = directory.listFiles();
+			if(files != null)
+			{
+				for(File file : files)
+				{
+					// Left behind by sinks which were never committed, e.g. because the process died
+					if(file.getName().startsWith(SPOOL_PREFIX))
+						file.delete();
+
+					if(!file.getName().startsWith(SEGMENT_PREFIX))
+						continue;
+
+					try {
+						segmentFiles.put(Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length())), file);
+					} catch (NumberFormatException e) {
+						// not ours
+					}
+				}
+			}
+
+			for(Entry<Integer, File> entry : segmentFiles.entrySet())
+			{
+				Segment segment = null;
+				try {
+					segment = new Segment(entry.getKey(), entry.getValue());
+					scan(segment, entry.getKey().equals(segmentFiles.lastKey()));
+
+					// Only now that its size is known, or the next append could overwrite its records
+					segments.put(segment.id, segment);
+					activeSegment = segment;
+				} catch (IOException e) {
+					WebbyLog.e(TAG, "Could not read cache segment, dropping it: " + entry.getValue(), e);
+					if(segment != null)
+						drop(segment);
+					entry.getValue().delete();
+				}
+			}
+
+			WebbyLog.d(TAG, "Loaded " + index.size() + " resources from " + segments.size() + " segments.");
+			loaded = true;
+		}
+	}
+
+	/**
+	 * Replays the records of a segment into the index.  The newest segment's records are checked
+	 * against their checksums and the segment is truncated after its last intact one; older
+	 * segments were complete when they were sealed.
+	 */
+	private void scan(Segment segment, boolean isNewest) throws IOException
+	{
+		long size = segment.getChannel().size();
+		long offset = 0;
+
+		CRC32 checksum = isNewest ? new CRC32() : null;
+		InputStream buffered = new BufferedInputStream(new FileInputStream(segment.file));
+		DataInputStream in = new DataInputStream(isNewest ? new CheckedInputStream(buffered, checksum) : buffered);
+		try {
+			Record record;
+			while(offset < size && (record = readRecord(in, offset, size, checksum)) != null)
+			{
+				replay(segment, record);
+				offset += record.length;
+			}
+		} catch (IOException e) {
+			// The records replayed so far are intact; the rest is treated like a torn write
+			WebbyLog.e(TAG, "Could not read past offset " + offset + " of: " + segment.file, e);
+		} finally {
+			in.close();
+		}
+
+		if(offset < size)
+		{
+			if(isNewest)
+			{
+				WebbyLog.d(TAG, "Truncating " + (size - offset) + " bytes of incomplete records from: " + segment.file);
+				segment.getChannel().truncate(offset);
+				size = offset;
+			}
+			else
+			{
+				WebbyLog.w(TAG, "Skipping unreadable records in: " + segment.file);
+			}
+		}
+
+		segment.size = size;
+		totalBytes += size;
+	}
+
+	/**
+	 * Reads the record at {@code offset}, or returns null if it is cut short or corrupt.
+	 */
+	private static Record readRecord(DataInputStream in, long offset, long segmentSize, CRC32 checksum) throws IOException
+	{
+		try {
+			if(in.readInt() != MAGIC)
+				return null;
+			if(checksum != null)
+				checksum.reset();
+
+			long remaining = segmentSize - offset;
+			Record record = new Record();
+			record.type = in.readByte();
+			record.writtenAt = in.readLong();
+			String key = readString(in, remaining);
+			if(key == null)
+				throw new CorruptRecordException();
+			record.id = Uri.parse(key);
+
+			long length = 4 + 1 + 8 + 4 + key.getBytes(UTF_8).length;
+			if(record.type == PUT)
+			{
+				String eTag = readString(in, remaining);
+				String lastModified = readString(in, remaining);
+				record.validators = new CacheValidators(eTag, lastModified);
+				length += stringLength(eTag) + stringLength(lastModified);
+
+				record.valueLength = in.readInt();
+				if(record.valueLength < 0 || record.valueLength > remaining)
+					throw new CorruptRecordException();
+				length += 4;
+				record.valueOffset = offset + length;
+				length += record.valueLength;
+
+				skipFully(in, record.valueLength);
+			}
+			else if(record.type != REFRESH && record.type != REMOVE)
+			{
+				throw new CorruptRecordException();
+			}
+
+			long expectedChecksum = checksum != null ? checksum.getValue() : 0;
+			int storedChecksum = in.readInt();
+			if(checksum != null && (int) expectedChecksum != storedChecksum)
+				return null;
+
+			record.length = length + CHECKSUM_BYTES;
+			return record;
+		} catch (EOFException e) {
+			return null;
+		} catch (CorruptRecordException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the string, or null if a null string was written
+	 */
+	private static String readString(DataInputStream in, long maxLength) throws IOException
+	{
+		int length = in.readInt();
+		if(length == -1)
+			return null;
+		if(length < 0 || length > maxLength)
+			throw new CorruptRecordException();
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static int stringLength(String s)
+	{
+		return 4 + (s != null ? s.getBytes(UTF_8).length : 0);
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException
+	{
+		while(count > 0)
+		{
+			long skipped = in.skip(count);
+			if(skipped <= 0)
+			{
+				if(in.read() == -1)
+					throw new EOFException();
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	// guarded by appendLock
+	private void replay(Segment segment, Record record)
+	{
+		if(record.type == PUT)
+		{
+			CacheValidators validators = record.validators.isEmpty() ? null : record.validators;
+			supersede(index.put(record.id, new Location(segment, record.length, record.valueOffset, record.valueLength, validators, record.writtenAt)));
+			liveBytes += record.length;
+		}
+		else if(record.type == REFRESH)
+		{
+			Location location = index.get(record.id);
+			if(location != null)
+				location.writtenAt = record.writtenAt;
+		}
+		else
+		{
+			supersede(index.remove(record.id));
+		}
+	}
+
+	/**
+	 * Forgets a segment which could not be loaded, along with every resource the index located in it.
+	 */
+	// guarded by appendLock
+	private void drop(Segment segment)
+	{
+		for(Iterator<Location> locations = index.values().iterator(); locations.hasNext();)
+		{
+			Location location = locations.next();
+			if(location.segment != segment)
+				continue;
+
+			locations.remove();
+			supersede(location);
+		}
+		totalBytes -= segment.size;
+		segment.size = 0;
+		segment.close();
+	}
+
+	// guarded by appendLock
+	private void supersede(Location previous)
+	{
+		if(previous != null)
+			liveBytes -= previous.recordLength;
+	}
+
+	private static byte[] encodeRecord(byte type, Uri id, long writtenAt, CacheValidators validators, byte[] value)
+	{
+		int valueLength = value != null ? value.length : 0;
+		byte[] header = encodeHeader(type, id, writtenAt, validators, valueLength);
+
+		byte[] record = new byte[header.length + valueLength + CHECKSUM_BYTES];
+		System.arraycopy(header, 0, record, 0, header.length);
+		if(value != null)
+			System.arraycopy(value, 0, record, header.length, valueLength);
+
+		CRC32 checksum = new CRC32();
+		checksum.update(record, 4, header.length - 4 + valueLength);
+		ByteBuffer.wrap(record).putInt(record.length - CHECKSUM_BYTES, (int) checksum.getValue());
+		return record;
+	}
+
+	/**
+	 * @return everything of a record before its value
+	 */
+	private static byte[] encodeHeader(byte type, Uri id, long writtenAt, CacheValidators validators, int valueLength)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(type);
+			out.writeLong(writtenAt);
+			writeString(out, id.toString());
+			if(type == PUT)
+			{
+				writeString(out, validators != null ? validators.getETag() : null);
+				writeString(out, validators != null ? validators.getLastModified() : null);
+				out.writeInt(valueLength);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by in-memory streams
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if(s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = s.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Appends a record to the active segment with one write, starting a new segment first if
+	 * the record would not fit.  Must be called holding appendLock.
+	 *
+	 * @return offset of the record in the active segment
+	 */
+	private long append(byte[] record) throws IOException
+	{
+		if(activeSegment == null || (activeSegment.size > 0 && activeSegment.size + record.length > maxSegmentBytes))
+			startSegment();
+
+		// A failed write is overwritten by the next one, as the size only grows once it succeeded
+		long offset = activeSegment.size;
+		writeFully(activeSegment.getChannel(), ByteBuffer.wrap(record), offset);
+
+		activeSegment.size += record.length;
+		totalBytes += record.length;
+		return offset;
+	}
+
+	/**
+	 * Appends a PUT record whose value is copied from another channel a chunk at a time, so that
+	 * it never has to be in memory whole.  Must be called holding appendLock.
+	 *
+	 * @param header the record up to its value
+	 * @param source channel holding the value
+	 * @param sourceOffset where the value starts in {@code source}
+	 * @param valueLength
+	 * @return offset of the record in the active segment
+	 */
+	private long appendStreamed(byte[] header, FileChannel source, long sourceOffset, int valueLength) throws IOException
+	{
+		long recordLength = header.length + (long) valueLength + CHECKSUM_BYTES;
+		if(activeSegment == null || (activeSegment.size > 0 && activeSegment.size + recordLength > maxSegmentBytes))
+			startSegment();
+
+		long offset = activeSegment.size;
+		FileChannel channel = activeSegment.getChannel();
+		CRC32 checksum = new CRC32();
+		checksum.update(header, 4, header.length - 4);
+		writeFully(channel, ByteBuffer.wrap(header), offset);
+
+		ByteBuffer buffer = ByteBuffer.allocate(Math.min(valueLength, COPY_BUFFER_BYTES));
+		long copied = 0;
+		while(copied < valueLength)
+		{
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), valueLength - copied));
+			if(source.read(buffer, sourceOffset + copied) == -1)
+				throw new EOFException("Value ends early: " + valueLength + " bytes expected, " + copied + " found");
+
+			buffer.flip();
+			checksum.update(buffer.array(), 0, buffer.limit());
+			long position = offset + header.length + copied;
+			copied += buffer.limit();
+			writeFully(channel, buffer, position);
+		}
+
+		ByteBuffer checksumBytes = ByteBuffer.allocate(CHECKSUM_BYTES);
+		checksumBytes.putInt((int) checksum.getValue());
+		checksumBytes.flip();
+		writeFully(channel, checksumBytes, offset + header.length + valueLength);
+
+		activeSegment.size += recordLength;
+		totalBytes += recordLength;
+		return offset;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException
+	{
+		int start = buffer.position();
+		while(buffer.hasRemaining())
+		{
+			channel.write(buffer, offset + buffer.position() - start);
+		}
+	}
+
+	// guarded by appendLock
+	private void startSegment() throws IOException
+	{
+		int id = 0;
+		if(activeSegment != null)
+		{
+			// Seal it, without the remains of any failed write
+			FileChannel channel = activeSegment.getChannel();
+			channel.truncate(activeSegment.size);
+			channel.force(false);
+			id = activeSegment.id + 1;
+		}
+
+		directory.mkdirs();
+		Segment segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id));
+		segment.getChannel().truncate(0);
+		segments.put(id, segment);
+		activeSegment = segment;
+	}
+
+	/**
+	 * @return the bytes of a resource, or null if it is not in the cache
+	 */
+	private byte[] readValue(Uri id) throws CacheReadException
+	{
+		ensureLoaded();
+
+		segmentsLock.readLock().lock();
+		try {
+			Location location = index.get(id);
+			if(location == null)
+				return null;
+
+			return location.readValue();
+		} catch (IOException e) {
+			throw new CacheReadException(CacheReadException.ReadError.COULD_NOT_READ_CACHE, e.getMessage());
+		} finally {
+			segmentsLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean containsItem(Uri id)
+	{
+		ensureLoaded();
+		return index.containsKey(id);
+	}
+
+	@Override
+	public boolean isYoungerThan(Uri id, Duration age)
+	{
+		ensureLoaded();
+		Location location = index.get(id);
+		if(location == null)
+			throw new RuntimeException("The resource you requested does not exist in the cache: " + id);
+
+		return !age.isExceeded(location.writtenAt, System.currentTimeMillis());
+	}
+
+	@Override
+	public long getLastWriteTime(Uri id)
+	{
+		ensureLoaded();
+		Location location = index.get(id);
+		return location != null ? location.writtenAt : 0;
+	}
+
+	@Override
+	public String readFromCacheSync(Uri id) throws CacheReadException
+	{
+		WebbyLog.d(TAG, "Reading from cache with id: " + id);
+
+		byte[] value = readValue(id);
+		return value != null ? new String(value, UTF_8) : "";
+	}
+
+	@Override
+	public InputStream openForReading(Uri id) throws CacheReadException
+	{
+		WebbyLog.d(TAG, "Opening cache stream with id: " + id);
+		ensureLoaded();
+
+		segmentsLock.readLock().lock();
+		try {
+			Location location = index.get(id);
+			if(location == null)
+				throw new CacheReadException(CacheReadException.ReadError.NO_SUCH_CACHE_RESOURCE, "The resource you requested does not exist in the cache: " + id);
+
+			// A mapping outlives the segment, so large values are streamed from disk rather than copied
+			if(location.valueLength >= MAP_THRESHOLD_BYTES)
+				return new ByteBufferInputStream(location.segment.getChannel().map(FileChannel.MapMode.READ_ONLY, location.valueOffset, location.valueLength));
+
+			return new ByteArrayInputStream(location.readValue());
+		} catch (IOException e) {
+			throw new CacheReadException(CacheReadException.ReadError.COULD_NOT_READ_CACHE, e.getMessage());
+		} finally {
+			segmentsLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void readFromCacheAsync(Uri id, CacheReadCallback callback)
+	{
+		ioExecutor.read(id, newRead(id), callback);
+	}
+
+	@Override
+	public Future<String> readFromCacheAsync(Uri id)
+	{
+		return ioExecutor.read(id, newRead(id));
+	}
+
+	private Callable<String> newRead(final Uri id)
+	{
+		return new Callable<String>()
+		{
+			@Override
+			public String call() throws CacheReadException
+			{
+				return readFromCacheSync(id);
+			}
+		};
+	}
+
+	@Override
+	public void writeToCacheSync(Uri id, String resource) throws CacheWriteException
+	{
+		writeToCacheSync(id, resource, null);
+	}
+
+	@Override
+	public void writeToCacheSync(Uri id, String resource, CacheValidators validators) throws CacheWriteException
+	{
+		writeToCacheSync(id, resource.getBytes(UTF_8), validators);
+	}
+
+	@Override
+	public void writeToCacheSync(Uri id, byte[] resource, CacheValidators validators) throws CacheWriteException
+	{
+		WebbyLog.d(TAG, "Writing " + resource.length + " bytes to cache with id: " + id);
+
+		writeToCacheSync(Collections.singletonList(new CacheWrite(id, resource, validators)), false);
+	}
+
+	/**
+	 * The records of the group are appended back to back and synced with a single sync.
+	 */
+	@Override
+	public void writeToCacheSync(List<CacheWrite> writes, boolean sync) throws CacheWriteException
+	{
+		ensureLoaded();
+
+		long now = System.currentTimeMillis();
+		List<byte[]> records = new ArrayList<byte[]>(writes.size());
+		for(CacheWrite write : writes)
+		{
+			records.add(encodeRecord(PUT, write.getId(), now, validatorsOf(write), write.getResource()));
+		}
+
+		CacheWriteException failure = null;
+		synchronized(appendLock)
+		{
+			for(int i = 0; i < writes.size(); i++)
+			{
+				CacheWrite write = writes.get(i);
+				byte[] record = records.get(i);
+				try {
+					long offset = append(record);
+					int valueLength = write.getResource().length;
+					supersede(index.put(write.getId(), new Location(activeSegment, record.length, offset + record.length - CHECKSUM_BYTES - valueLength, valueLength, validatorsOf(write), now)));
+					liveBytes += record.length;
+					observers.changed(write.getId());
+				} catch (IOException e) {
+					failure = new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
+				}
+			}
+
+			if(sync && activeSegment != null)
+			{
+				try {
+					activeSegment.getChannel().force(false); // earlier segments of the group were synced when sealed
+				} catch (IOException e) {
+					failure = new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
+				}
+			}
+		}
+
+		compactIfNeeded();
+
+		if(failure != null)
+			throw failure;
+	}
+
+	private static CacheValidators validatorsOf(CacheWrite write)
+	{
+		CacheValidators validators = write.getValidators();
+		return validators != null && !validators.isEmpty() ? validators : null;
+	}
+
+	/**
+	 * The bytes are spooled to a file next to the segments, and copied into a record once the
+	 * sink is committed.
+	 */
+	@Override
+	public CacheSink openForWriting(final Uri id, CacheValidators validators) throws CacheWriteException
+	{
+		ensureLoaded();
+
+		final CacheValidators storedValidators = validators != null && !validators.isEmpty() ? validators : null;
+		try {
+			directory.mkdirs();
+			return new SpoolingCacheSink(id, File.createTempFile(SPOOL_PREFIX, null, directory))
+			{
+				@Override
+				protected void install(File spoolFile, long size) throws CacheWriteException
+				{
+					appendSpooled(id, storedValidators, spoolFile, size);
+				}
+			};
+		} catch (IOException e) {
+			throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
+		}
+	}
+
+	private void appendSpooled(Uri id, CacheValidators validators, File spoolFile, long size) throws CacheWriteException
+	{
+		if(size > Integer.MAX_VALUE)
+			throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, "Resource too large for a cache record: " + size + " bytes");
+
+		WebbyLog.d(TAG, "Committing " + size + " bytes to cache with id: " + id);
+		int valueLength = (int) size;
+		long now = System.currentTimeMillis();
+		byte[] header = encodeHeader(PUT, id, now, validators, valueLength);
+		try {
+			FileInputStream in = new FileInputStream(spoolFile);
+			try {
+				synchronized(appendLock)
+				{
+					long offset = appendStreamed(header, in.getChannel(), 0, valueLength);
+					long recordLength = header.length + (long) valueLength + CHECKSUM_BYTES;
+					supersede(index.put(id, new Location(activeSegment, recordLength, offset + header.length, valueLength, validators, now)));
+					liveBytes += recordLength;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
+		}
+
+		observers.changed(id);
+		compactIfNeeded();
+	}
+
+	@Override
+	public void writeToCacheAsync(Uri id, String resource, CacheWriteCallback callback)
+	{
+		ioExecutor.write(id, newWrite(id, resource), callback);
+	}
+
+	@Override
+	public Future<Void> writeToCacheAsync(Uri id, String resource)
+	{
+		return ioExecutor.write(id, newWrite(id, resource));
+	}
+
+	private Callable<Void> newWrite(final Uri id, final String resource)
+	{
+		return new Callable<Void>()
+		{
+			@Override
+			public Void call() throws CacheWriteException
+			{
+				writeToCacheSync(id, resource);
+				return null;
+			}
+		};
+	}
+
+	@Override
+	public CacheValidators getValidators(Uri id)
+	{
+		ensureLoaded();
+		Location location = index.get(id);
+		return location != null ? location.validators : null;
+	}
+
+	@Override
+	public void refresh(Uri id) throws CacheWriteException
+	{
+		ensureLoaded();
+
+		long now = System.currentTimeMillis();
+		synchronized(appendLock)
+		{
+			Location location = index.get(id);
+			if(location == null)
+				throw new CacheWriteException(CacheWriteException.WriteError.CANNOT_ACCESS_CACHE, "The resource you requested does not exist in the cache: " + id);
+
+			try {
+				append(encodeRecord(REFRESH, id, now, null, null));
+			} catch (IOException e) {
+				throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
+			}
+			location.writtenAt = now;
+		}
+
+		compactIfNeeded();
+	}
+
+	/**
+	 * Does nothing: the log keeps every resource until it is overwritten or removed.
+	 */
+	@Override
+	public void touch(Collection<Uri> ids)
+	{
+	}
+
+	/**
+	 * Removes a resource from the cache.  Nothing happens if it is not in the cache.
+	 */
+	public void remove(Uri id) throws CacheWriteException
+	{
+		ensureLoaded();
+
+		synchronized(appendLock)
+		{
+			if(!index.containsKey(id))
+				return;
+
+			try {
+				append(encodeRecord(REMOVE, id, System.currentTimeMillis(), null, null));
+			} catch (IOException e) {
+				throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
+			}
+			supersede(index.remove(id));
+		}
+
+		observers.deleted(id);
+		compactIfNeeded();
+	}
+
+	private void compactIfNeeded()
+	{
+		synchronized(appendLock)
+		{
+			long garbageBytes = totalBytes - liveBytes;
+			if(segments.size() < 2 || garbageBytes < MIN_GARBAGE_BYTES_TO_COMPACT || garbageBytes < liveBytes)
+				return;
+		}
+
+		if(!compacting.compareAndSet(false, true))
+			return;
+
+		new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					compact();
+				} finally {
+					compacting.set(false);
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * Copies the live records of every sealed segment to the active one, then deletes the sealed
+	 * segments.  Writers are only held up for one record at a time.
+	 */
+	private void compact()
+	{
+		List<Segment> sealed;
+		synchronized(appendLock)
+		{
+			sealed = new ArrayList<Segment>(segments.headMap(activeSegment.id).values());
+		}
+		if(sealed.isEmpty())
+			return;
+
+		WebbyLog.d(TAG, "Compacting " + sealed.size() + " cache segments.");
+		Set<Segment> sealedSet = new HashSet<Segment>(sealed);
+		try {
+			for(Entry<Uri, Location> entry : index.entrySet())
+			{
+				Location location = entry.getValue();
+				if(!sealedSet.contains(location.segment))
+					continue;
+
+				// Only this thread deletes sealed segments, so no need for the segments lock
+				synchronized(appendLock)
+				{
+					if(index.get(entry.getKey()) != location)
+						continue; // written or removed in the meantime
+
+					byte[] header = encodeHeader(PUT, entry.getKey(), location.writtenAt, location.validators, location.valueLength);
+					long offset = appendStreamed(header, location.segment.getChannel(), location.valueOffset, location.valueLength);
+					long recordLength = header.length + (long) location.valueLength + CHECKSUM_BYTES;
+					index.put(entry.getKey(), new Location(activeSegment, recordLength, offset + header.length, location.valueLength, location.validators, location.writtenAt));
+					liveBytes += recordLength - location.recordLength;
+				}
+			}
+
+			// The copies must be on disk before the originals go
+			synchronized(appendLock)
+			{
+				activeSegment.getChannel().force(false);
+			}
+		} catch (IOException e) {
+			WebbyLog.e(TAG, "Could not compact cache segments.", e);
+			return;
+		}
+
+		segmentsLock.writeLock().lock();
+		try {
+			synchronized(appendLock)
+			{
+				// Oldest first, so that a crash in between never leaves a record without the removal which followed it
+				for(Segment segment : sealed)
+				{
+					segments.remove(segment.id);
+					totalBytes -= segment.size;
+					segment.close();
+					if(!segment.file.delete())
+						WebbyLog.w(TAG, "Could not delete compacted segment: " + segment.file);
+				}
+			}
+		} finally {
+			segmentsLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Closes the segment files.  The cache must not be used afterwards.
+	 */
+	public void close()
+	{
+		segmentsLock.writeLock().lock();
+		try {
+			synchronized(appendLock)
+			{
+				for(Segment segment : segments.values())
+				{
+					segment.close();
+				}
+			}
+		} finally {
+			segmentsLock.writeLock().unlock();
+		}
+	}
+
+	public long getMaxSegmentBytes() { return maxSegmentBytes; }
+
+	/**
+	 * @return total size of the segments, including superseded records
+	 */
+	public long getSize()
+	{
+		ensureLoaded();
+		synchronized(appendLock)
+		{
+			return totalBytes;
+		}
+	}
+
+	/**
+	 * @return size of the records which are still current
+	 */
+	public long getLiveBytes()
+	{
+		ensureLoaded();
+		synchronized(appendLock)
+		{
+			return liveBytes;
+		}
+	}
+
+	public int getEntryCount()
+	{
+		ensureLoaded();
+		return index.size();
+	}
+
+	public int getSegmentCount()
+	{
+		ensureLoaded();
+		synchronized(appendLock)
+		{
+			return segments.size();
+		}
+	}
+
+	/**
+	 * Observers are notified of writes and removals on a thread of their own, once the resource
+	 * has settled; see {@link com.swampmobile.webby.util.cache.CacheObserverRegistry}.
+	 */
+	@Override
+	public void registerResourceObserver(Uri id, CacheObserver observer) {
+		observers.register(id, observer);
+	}
+
+	@Override
+	public void unregisterResourceObserver(Uri id, CacheObserver observer) {
+		observers.unregister(id, observer);
+	}
+
+	@Override
+	public void unregisterResourceObserverFromAll(CacheObserver observer) {
+		observers.unregisterFromAll(observer);
+	}
+
+	private static class Segment
+	{
+		private final int id;
+		private final File file;
+		private volatile FileChannel channel;
+		private boolean closed = false; // guarded by this
+		private long size = 0; // guarded by appendLock
+
+		private Segment(int id, File file) throws IOException
+		{
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		/**
+		 * Returns the segment's channel, reopening it if an interrupted reader closed it.
+		 */
+		private FileChannel getChannel() throws IOException
+		{
+			FileChannel channel = this.channel;
+			if(channel.isOpen())
+				return channel;
+
+			synchronized(this)
+			{
+				if(closed)
+					throw new ClosedChannelException();
+
+				if(!this.channel.isOpen())
+					this.channel = new RandomAccessFile(file, "rw").getChannel();
+				return this.channel;
+			}
+		}
+
+		private synchronized void close()
+		{
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				WebbyLog.e(TAG, "Could not close cache segment: " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Where the latest record of a resource is.
+	 */
+	private static class Location
+	{
+		private final Segment segment;
+		private final long recordLength;
+		private final long valueOffset;
+		private final int valueLength;
+		private final CacheValidators validators;
+		private volatile long writtenAt;
+
+		private Location(Segment segment, long recordLength, long valueOffset, int valueLength, CacheValidators validators, long writtenAt)
+		{
+			this.segment = segment;
+			this.recordLength = recordLength;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.validators = validators;
+			this.writtenAt = writtenAt;
+		}
+
+		private byte[] readValue() throws IOException
+		{
+			FileChannel channel = segment.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(valueLength);
+			while(buffer.hasRemaining())
+			{
+				if(channel.read(buffer, valueOffset + buffer.position()) == -1)
+					throw new EOFException("Cache segment ends within a record: " + segment.file);
+			}
+			return buffer.array();
+		}
+	}
+
+	private static class CorruptRecordException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static class Record
+	{
+		private byte type;
+		private Uri id;
+		private long writtenAt;
+		private CacheValidators validators;
+		private long valueOffset;
+		private int valueLength;
+		private long length;
+	}
+}
@@ -0,0 +1,105 @@
+package com.swampmobile.webby.util.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.swampmobile.webby.util.cache.DataCache.CacheWriteException;
+
+import android.net.Uri;
+
+/**
+ * A {@link com.swampmobile.webby.util.cache.CacheSink} which spools everything written to it to a
+ * file, and hands the file over to {@link #install(File, long)} when it is committed.  The spool
+ * file is deleted once the sink is aborted, or installed without being moved.
+ */
+abstract class SpoolingCacheSink extends CacheSink
+{
+	private static final int BUFFER_BYTES = 8192;
+	
+	protected final Uri id;
+	private final File spoolFile;
+	private final OutputStream out;
+	private long size = 0;
+	private boolean finished = false;
+	
+	SpoolingCacheSink(Uri id, File spoolFile) throws IOException
+	{
+		this.id = id;
+		this.spoolFile = spoolFile;
+		this.out = new BufferedOutputStream(new FileOutputStream(spoolFile), BUFFER_BYTES);
+	}
+	
+	/**
+	 * Puts the fully written spool file in the cache.
+	 * 
+	 * @param spoolFile
+	 * @param size number of bytes in the file
+	 */
+	protected abstract void install(File spoolFile, long size) throws CacheWriteException;
+	
+	@Override
+	public void write(int b) throws IOException
+	{
+		checkNotFinished();
+		out.write(b);
+		size++;
+	}
+	
+	@Override
+	public void write(byte[] buffer, int offset, int count) throws IOException
+	{
+		checkNotFinished();
+		out.write(buffer, offset, count);
+		size += count;
+	}
+	
+	@Override
+	public void flush() throws IOException
+	{
+		checkNotFinished();
+		out.flush();
+	}
+	
+	private void checkNotFinished() throws IOException
+	{
+		if(finished)
+			throw new IOException("Cache sink already committed or aborted: " + id);
+	}
+	
+	@Override
+	public void commit() throws CacheWriteException
+	{
+		if(finished)
+			throw new IllegalStateException("Cache sink already committed or aborted: " + id);
+		finished = true;
+		
+		try {
+			out.close();
+			install(spoolFile, size);
+		} catch (CacheWriteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, e.getMessage());
+		} finally {
+			spoolFile.delete();
+		}
+	}
+	
+	@Override
+	public void abort()
+	{
+		if(finished)
+			return;
+		finished = true;
+		
+		try {
+			out.close();
+		} catch (IOException e) {
+			// thrown away anyway
+		}
+		spoolFile.delete();
+	}
+}
@@ -0,0 +1,531 @@
+package com.swampmobile.webby.util.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.swampmobile.webby.util.logging.WebbyLog;
+import com.swampmobile.webby.util.time.Duration;
+
+import android.net.Uri;
+
+/**
+ * A two-level {@link com.swampmobile.webby.util.cache.DataCache}: a size-bounded in-memory tier
+ * in front of a persistent one, e.g. a {@link com.swampmobile.webby.util.cache.FlatFileDataCache}.
+ *
+ * The memory tier holds the raw bytes and write times of the most recently used resources, up
+ * to a total of {@code maxMemoryBytes}, and evicts the least recently used ones beyond that.  Hot
+ * resources are therefore looked up, checked for age and read without touching the disk.
+ * Resources read from the persistent tier are promoted to memory; writes go through to both.
+ *
+ * Reads are counted as hits or misses per tier.  Memory hits are also passed on to the persistent
+ * tier, every {@link #TOUCH_BATCH_SIZE} hits or once a batch is older than
+ * {@link #TOUCH_INTERVAL_MILLIS}, so that its eviction does not take the hottest resources,
+ * which it otherwise never sees being read, for the coldest.
+ *
+ * Reads of the memory tier take no locks.  Each entry carries the time it was last used, from a
+ * logical clock, and the least recently used entries are found by a scan when the tier is over
+ * its budget; only these evictions are serialized.
+ *
+ * Every write or commit of a resource bumps its generation.  A resource read from the persistent
+ * tier is only kept in memory if its generation did not change while it was read, so a reader
+ * which opened the old file cannot put the old bytes back after a commit replaced them.
+ */
+public class TieredDataCache implements DataCache
+{
+	private static final String TAG = "TieredDataCache";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int TOUCH_BATCH_SIZE = 64;
+	private static final long TOUCH_INTERVAL_MILLIS = 1000;
+	private static final int GENERATION_STRIPES = 64; // power of two
+
+	private final DataCache persistentCache;
+	private final long maxMemoryBytes;
+
+	private final ConcurrentHashMap<Uri, MemoryEntry> memory = new ConcurrentHashMap<Uri, MemoryEntry>();
+	private final AtomicLong memoryBytes = new AtomicLong();
+	private final AtomicLong clock = new AtomicLong();
+	private final Object evictionLock = new Object();
+
+	// Resources whose ids hash to the same stripe share a generation, which only costs them the
+	// odd promotion
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong memoryMisses = new AtomicLong();
+	private final AtomicLong persistentHits = new AtomicLong();
+	private final AtomicLong persistentMisses = new AtomicLong();
+
+	private final ConcurrentHashMap<Uri, Boolean> untouchedHits = new ConcurrentHashMap<Uri, Boolean>();
+	private final AtomicInteger untouchedHitCount = new AtomicInteger(); // hits, however few resources they were of
+	private final AtomicBoolean touching = new AtomicBoolean();
+	private volatile long lastTouch = System.currentTimeMillis();
+
+	public TieredDataCache(DataCache persistentCache, long maxMemoryBytes)
+	{
+		this.persistentCache = persistentCache;
+		this.maxMemoryBytes = maxMemoryBytes;
+	}
+
+	private MemoryEntry getFromMemory(Uri id)
+	{
+		MemoryEntry entry = memory.get(id);
+		if(entry != null)
+			entry.lastUse = clock.incrementAndGet();
+
+		return entry;
+	}
+
+	private void countMemoryHit(Uri id)
+	{
+		memoryHits.incrementAndGet();
+
+		untouchedHits.put(id, Boolean.TRUE);
+		if(untouchedHitCount.incrementAndGet() >= TOUCH_BATCH_SIZE || System.currentTimeMillis() - lastTouch >= TOUCH_INTERVAL_MILLIS)
+			touchPersistent();
+	}
+
+	/**
+	 * Passes the memory hits collected so far on to the persistent tier.  Only one thread does so
+	 * at a time; hits counted in the meantime go with the next batch.
+	 */
+	private void touchPersistent()
+	{
+		if(!touching.compareAndSet(false, true))
+			return;
+
+		try {
+			untouchedHitCount.set(0);
+			List<Uri> ids = new ArrayList<Uri>(untouchedHits.size());
+			for(Uri id : untouchedHits.keySet())
+			{
+				if(untouchedHits.remove(id) != null)
+					ids.add(id);
+			}
+			lastTouch = System.currentTimeMillis();
+
+			if(!ids.isEmpty())
+				persistentCache.touch(ids);
+		} catch (RuntimeException e) {
+			WebbyLog.e(TAG, "Could not pass memory hits on to the persistent cache", e);
+		} finally {
+			touching.set(false);
+		}
+	}
+
+	private static int generationStripe(Uri id)
+	{
+		int hash = id.hashCode();
+		return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+	}
+
+	private long getGeneration(Uri id)
+	{
+		return generations.get(generationStripe(id));
+	}
+
+	/**
+	 * Marks the resource as written.  Must be called before the memory tier is updated.
+	 */
+	private void bumpGeneration(Uri id)
+	{
+		generations.incrementAndGet(generationStripe(id));
+	}
+
+	private void putInMemory(Uri id, byte[] resource, long writeTime)
+	{
+		bumpGeneration(id);
+
+		// Anything larger than the whole tier would only flush it
+		if(resource.length > maxMemoryBytes)
+		{
+			removeFromMemory(id);
+			return;
+		}
+
+		MemoryEntry previous = memory.put(id, new MemoryEntry(resource, writeTime, clock.incrementAndGet()));
+		memoryBytes.addAndGet(resource.length - (previous != null ? previous.resource.length : 0));
+
+		if(memoryBytes.get() > maxMemoryBytes)
+			evict();
+	}
+
+	/**
+	 * Keeps a resource read from the persistent cache in memory, unless it was written since the
+	 * read began, at {@code generation}, or a write already put a copy there which is at least as
+	 * new.  Otherwise the old bytes would replace the new ones, and a later refresh would keep
+	 * serving them.
+	 */
+	private void promoteToMemory(Uri id, byte[] resource, long writeTime, long generation)
+	{
+		if(resource.length > maxMemoryBytes || getGeneration(id) != generation)
+			return;
+
+		MemoryEntry promoted = new MemoryEntry(resource, writeTime, clock.incrementAndGet());
+		while(true)
+		{
+			MemoryEntry existing = memory.get(id);
+			if(existing == null)
+			{
+				if(memory.putIfAbsent(id, promoted) == null)
+				{
+					memoryBytes.addAndGet(resource.length);
+					break;
+				}
+			}
+			else
+			{
+				if(existing.writeTime >= writeTime)
+					return;
+
+				if(memory.replace(id, existing, promoted))
+				{
+					memoryBytes.addAndGet(resource.length - existing.resource.length);
+					break;
+				}
+			}
+		}
+
+		// A write which bumped the generation after the check above may have updated the memory
+		// tier before the promoted entry went in
+		if(getGeneration(id) != generation)
+		{
+			if(memory.remove(id, promoted))
+				memoryBytes.addAndGet(-resource.length);
+			return;
+		}
+
+		if(memoryBytes.get() > maxMemoryBytes)
+			evict();
+	}
+
+	private void removeFromMemory(Uri id)
+	{
+		MemoryEntry previous = memory.remove(id);
+		if(previous != null)
+			memoryBytes.addAndGet(-previous.resource.length);
+	}
+
+	/**
+	 * Evicts the least recently used entries until the memory tier fits its budget again.
+	 */
+	private void evict()
+	{
+		synchronized(evictionLock)
+		{
+			while(memoryBytes.get() > maxMemoryBytes)
+			{
+				Uri eldestId = null;
+				MemoryEntry eldest = null;
+				for(Entry<Uri, MemoryEntry> entry : memory.entrySet())
+				{
+					if(eldest == null || entry.getValue().lastUse < eldest.lastUse)
+					{
+						eldestId = entry.getKey();
+						eldest = entry.getValue();
+					}
+				}
+
+				if(eldest == null)
+					return;
+
+				// Only if it was not replaced in the meantime
+				if(memory.remove(eldestId, eldest))
+					memoryBytes.addAndGet(-eldest.resource.length);
+			}
+		}
+	}
+
+	private MemoryEntry read(Uri id) throws CacheReadException
+	{
+		MemoryEntry entry = getFromMemory(id);
+		if(entry != null)
+		{
+			countMemoryHit(id);
+			return entry;
+		}
+		memoryMisses.incrementAndGet();
+
+		if(!persistentCache.containsItem(id))
+		{
+			persistentMisses.incrementAndGet();
+			return null;
+		}
+
+		long generation = getGeneration(id);
+		long writeTime = persistentCache.getLastWriteTime(id);
+		InputStream in = persistentCache.openForReading(id);
+		persistentHits.incrementAndGet();
+		return readIntoMemory(id, in, writeTime, generation);
+	}
+
+	/**
+	 * Reads a stream of the persistent cache whole, and keeps the resource in memory.  Closes
+	 * the stream.
+	 *
+	 * @param generation of the resource before its write time was looked up and the stream opened
+	 */
+	private MemoryEntry readIntoMemory(Uri id, InputStream in, long writeTime, long generation) throws CacheReadException
+	{
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 32));
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) != -1)
+			{
+				out.write(buffer, 0, read);
+			}
+
+			byte[] resource = out.toByteArray();
+			promoteToMemory(id, resource, writeTime, generation);
+			return new MemoryEntry(resource, writeTime, 0);
+		} catch (IOException e) {
+			throw new CacheReadException(CacheReadException.ReadError.COULD_NOT_READ_CACHE, e.getMessage());
+		} finally {
+			closeQuietly(id, in);
+		}
+	}
+
+	private static void closeQuietly(Uri id, InputStream in)
+	{
+		try {
+			in.close();
+		} catch (IOException e) {
+			WebbyLog.e(TAG, "Could not close cache stream for: " + id, e);
+		}
+	}
+
+	@Override
+	public boolean containsItem(Uri id)
+	{
+		return getFromMemory(id) != null || persistentCache.containsItem(id);
+	}
+
+	@Override
+	public boolean isYoungerThan(Uri id, Duration age)
+	{
+		MemoryEntry entry = getFromMemory(id);
+		if(entry == null)
+			return persistentCache.isYoungerThan(id, age);
+
+		return !age.isExceeded(entry.writeTime, System.currentTimeMillis());
+	}
+
+	@Override
+	public long getLastWriteTime(Uri id)
+	{
+		MemoryEntry entry = getFromMemory(id);
+		return entry != null ? entry.writeTime : persistentCache.getLastWriteTime(id);
+	}
+
+	@Override
+	public String readFromCacheSync(Uri id) throws CacheReadException
+	{
+		MemoryEntry entry = read(id);
+		return entry != null ? new String(entry.resource, UTF_8) : "";
+	}
+
+	@Override
+	public InputStream openForReading(Uri id) throws CacheReadException
+	{
+		MemoryEntry entry = getFromMemory(id);
+		if(entry != null)
+		{
+			countMemoryHit(id);
+			return new ByteArrayInputStream(entry.resource);
+		}
+		memoryMisses.incrementAndGet();
+
+		if(!persistentCache.containsItem(id))
+		{
+			persistentMisses.incrementAndGet();
+			throw new CacheReadException(CacheReadException.ReadError.NO_SUCH_CACHE_RESOURCE, "The resource you requested does not exist in the cache: " + id);
+		}
+
+		long generation = getGeneration(id);
+		long writeTime = persistentCache.getLastWriteTime(id);
+		InputStream in = persistentCache.openForReading(id);
+		persistentHits.incrementAndGet();
+		try {
+			// Too large to be kept in memory anyway, so streamed straight from the persistent cache
+			if(in.available() > maxMemoryBytes)
+				return in;
+		} catch (IOException e) {
+			closeQuietly(id, in);
+			throw new CacheReadException(CacheReadException.ReadError.COULD_NOT_READ_CACHE, e.getMessage());
+		}
+
+		return new ByteArrayInputStream(readIntoMemory(id, in, writeTime, generation).resource);
+	}
+
+	/**
+	 * The resource is dropped from memory once the sink is committed, and read back from the
+	 * persistent cache when next asked for.
+	 */
+	@Override
+	public CacheSink openForWriting(final Uri id, CacheValidators validators) throws CacheWriteException
+	{
+		return new ForwardingCacheSink(persistentCache.openForWriting(id, validators))
+		{
+			@Override
+			public void commit() throws CacheWriteException
+			{
+				super.commit();
+				bumpGeneration(id);
+				removeFromMemory(id);
+			}
+		};
+	}
+
+	@Override
+	public void readFromCacheAsync(Uri id, CacheReadCallback callback) throws CacheReadException
+	{
+		MemoryEntry entry = getFromMemory(id);
+		if(entry == null)
+		{
+			persistentCache.readFromCacheAsync(id, callback);
+			return;
+		}
+
+		countMemoryHit(id);
+		callback.onSuccessfulRead(new String(entry.resource, UTF_8));
+	}
+
+	@Override
+	public Future<String> readFromCacheAsync(Uri id)
+	{
+		MemoryEntry entry = getFromMemory(id);
+		if(entry == null)
+			return persistentCache.readFromCacheAsync(id);
+
+		countMemoryHit(id);
+		return CacheIoExecutor.completed(new String(entry.resource, UTF_8));
+	}
+
+	@Override
+	public void writeToCacheSync(Uri id, String resource) throws CacheWriteException
+	{
+		writeToCacheSync(id, resource.getBytes(UTF_8), null);
+	}
+
+	@Override
+	public void writeToCacheSync(Uri id, String resource, CacheValidators validators) throws CacheWriteException
+	{
+		writeToCacheSync(id, resource.getBytes(UTF_8), validators);
+	}
+
+	@Override
+	public void writeToCacheSync(Uri id, byte[] resource, CacheValidators validators) throws CacheWriteException
+	{
+		persistentCache.writeToCacheSync(id, resource, validators);
+		putInMemory(id, resource, System.currentTimeMillis());
+	}
+
+	@Override
+	public void writeToCacheSync(List<CacheWrite> writes, boolean sync) throws CacheWriteException
+	{
+		persistentCache.writeToCacheSync(writes, sync);
+
+		long now = System.currentTimeMillis();
+		for(CacheWrite write : writes)
+		{
+			putInMemory(write.getId(), write.getResource(), now);
+		}
+	}
+
+	@Override
+	public void writeToCacheAsync(Uri id, String resource, CacheWriteCallback callback) throws CacheWriteException
+	{
+		putInMemory(id, resource.getBytes(UTF_8), System.currentTimeMillis());
+		persistentCache.writeToCacheAsync(id, resource, callback);
+	}
+
+	@Override
+	public Future<Void> writeToCacheAsync(Uri id, String resource)
+	{
+		putInMemory(id, resource.getBytes(UTF_8), System.currentTimeMillis());
+		return persistentCache.writeToCacheAsync(id, resource);
+	}
+
+	@Override
+	public CacheValidators getValidators(Uri id)
+	{
+		return persistentCache.getValidators(id);
+	}
+
+	@Override
+	public void refresh(Uri id) throws CacheWriteException
+	{
+		persistentCache.refresh(id);
+
+		MemoryEntry entry = memory.get(id);
+		if(entry != null)
+			entry.writeTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public void touch(Collection<Uri> ids)
+	{
+		for(Uri id : ids)
+		{
+			getFromMemory(id);
+		}
+		persistentCache.touch(ids);
+	}
+
+	@Override
+	public void registerResourceObserver(Uri id, CacheObserver observer)
+	{
+		persistentCache.registerResourceObserver(id, observer);
+	}
+
+	@Override
+	public void unregisterResourceObserver(Uri id, CacheObserver observer)
+	{
+		persistentCache.unregisterResourceObserver(id, observer);
+	}
+
+	@Override
+	public void unregisterResourceObserverFromAll(CacheObserver observer)
+	{
+		persistentCache.unregisterResourceObserverFromAll(observer);
+	}
+
+	public long getMemoryHits() { return memoryHits.get(); }
+
+	public long getMemoryMisses() { return memoryMisses.get(); }
+
+	public long getPersistentHits() { return persistentHits.get(); }
+
+	public long getPersistentMisses() { return persistentMisses.get(); }
+
+	public long getMemoryBytes() { return memoryBytes.get(); }
+
+	public long getMaxMemoryBytes() { return maxMemoryBytes; }
+
+	private static class MemoryEntry
+	{
+		private final byte[] resource;
+		private volatile long writeTime;
+		private volatile long lastUse;
+
+		private MemoryEntry(byte[] resource, long writeTime, long lastUse)
+		{
+			this.resource = resource;
+			this.writeTime = writeTime;
+			this.lastUse = lastUse;
+		}
+	}
+}
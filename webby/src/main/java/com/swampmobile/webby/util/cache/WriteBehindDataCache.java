@@ -0,0 +1,495 @@
+package com.swampmobile.webby.util.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.swampmobile.webby.util.logging.WebbyLog;
+import com.swampmobile.webby.util.time.Duration;
+
+import android.net.Uri;
+
+/**
+ * A {@link com.swampmobile.webby.util.cache.DataCache} which queues writes in memory and hands
+ * them to a persistent cache in groups, on a writer thread of its own.  Writes return as soon as
+ * they are queued, so nobody waits on the disk.
+ *
+ * Once a write is queued, the writer waits up to {@code groupDelayMillis} for more to arrive, or
+ * until {@code maxGroupSize} are queued, and writes them all as one group.  A
+ * {@link com.swampmobile.webby.util.cache.CacheSyncPolicy} decides whether the group is synced to
+ * stable storage at once, write by write, or not at all.  Queued writes of the same resource are
+ * coalesced; only the latest is written.
+ *
+ * A write can be read back as soon as it is queued: queued resources are answered from memory
+ * until the persistent cache has them.  A group which fails to be written stays queued and is
+ * tried again, up to {@link #MAX_WRITE_ATTEMPTS} times.  Writes still queued when the process
+ * dies are lost, which for a cache only means they are fetched again.
+ */
+public class WriteBehindDataCache implements DataCache
+{
+	private static final String TAG = "WriteBehindDataCache";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public static final long DEFAULT_GROUP_DELAY_MILLIS = 100;
+	public static final int DEFAULT_MAX_GROUP_SIZE = 64;
+	public static final int MAX_WRITE_ATTEMPTS = 3;
+
+	private final DataCache persistentCache;
+	private final CacheSyncPolicy syncPolicy;
+	private final long groupDelayMillis;
+	private final int maxGroupSize;
+
+	// Queued and in-flight writes.  A write stays here until the persistent cache has it.
+	private final ConcurrentHashMap<Uri, PendingWrite> pending = new ConcurrentHashMap<Uri, PendingWrite>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final Object signal = new Object();
+	private Thread writer; // guarded by signal
+	private boolean flushRequested = false; // guarded by signal
+	private boolean shutdown = false; // guarded by signal
+
+	public WriteBehindDataCache(DataCache persistentCache)
+	{
+		this(persistentCache, CacheSyncPolicy.NONE, DEFAULT_GROUP_DELAY_MILLIS, DEFAULT_MAX_GROUP_SIZE);
+	}
+
+	/**
+	 * @param persistentCache cache the writes end up in
+	 * @param syncPolicy
+	 * @param groupDelayMillis how long the writer waits for a group to fill up
+	 * @param maxGroupSize most writes written as one group
+	 */
+	public WriteBehindDataCache(DataCache persistentCache, CacheSyncPolicy syncPolicy, long groupDelayMillis, int maxGroupSize)
+	{
+		if(maxGroupSize < 1)
+			throw new IllegalArgumentException("Invalid group size: " + maxGroupSize);
+
+		this.persistentCache = persistentCache;
+		this.syncPolicy = syncPolicy;
+		this.groupDelayMillis = groupDelayMillis;
+		this.maxGroupSize = maxGroupSize;
+	}
+
+	private void enqueue(Uri id, byte[] resource, CacheValidators validators) throws CacheWriteException
+	{
+		synchronized(signal)
+		{
+			if(shutdown)
+				throw new CacheWriteException(CacheWriteException.WriteError.CANNOT_ACCESS_CACHE, "Cache is shut down, not writing: " + id);
+
+			pending.put(id, new PendingWrite(new CacheWrite(id, resource, validators), sequence.incrementAndGet(), System.currentTimeMillis()));
+			startWriter();
+			signal.notifyAll();
+		}
+	}
+
+	// guarded by signal
+	private void startWriter()
+	{
+		if(writer != null)
+			return;
+
+		writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writePending();
+			}
+		}, TAG);
+		writer.start();
+	}
+
+	/**
+	 * Runs on the writer thread until there is nothing left to write after a shutdown.  However
+	 * the thread ends, it lets go of {@code writer}, so that the next write or flush starts another.
+	 */
+	private void writePending()
+	{
+		try {
+			while(true)
+			{
+				synchronized(signal)
+				{
+					while(pending.isEmpty())
+					{
+						if(shutdown)
+							return;
+						signal.wait();
+					}
+
+					// Give the group a chance to fill up
+					long deadline = System.currentTimeMillis() + groupDelayMillis;
+					long remaining;
+					while(pending.size() < maxGroupSize && !flushRequested && !shutdown && (remaining = deadline - System.currentTimeMillis()) > 0)
+					{
+						signal.wait(remaining);
+					}
+				}
+
+				writeGroup(nextGroup());
+
+				synchronized(signal)
+				{
+					if(pending.isEmpty())
+						flushRequested = false;
+					signal.notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			WebbyLog.w(TAG, "Cache writer interrupted with " + pending.size() + " writes pending.");
+		} finally {
+			synchronized(signal)
+			{
+				writer = null;
+				signal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest pending writes, at most {@code maxGroupSize} of them
+	 */
+	private List<PendingWrite> nextGroup()
+	{
+		List<PendingWrite> group = new ArrayList<PendingWrite>(pending.values());
+		Collections.sort(group, new Comparator<PendingWrite>()
+		{
+			@Override
+			public int compare(PendingWrite lhs, PendingWrite rhs)
+			{
+				return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+			}
+		});
+		return group.size() > maxGroupSize ? group.subList(0, maxGroupSize) : group;
+	}
+
+	private void writeGroup(List<PendingWrite> group)
+	{
+		WebbyLog.d(TAG, "Writing a group of " + group.size() + " resources to cache.");
+		if(syncPolicy == CacheSyncPolicy.PER_WRITE)
+		{
+			for(PendingWrite pendingWrite : group)
+			{
+				writeGroup(Collections.singletonList(pendingWrite), true);
+			}
+		}
+		else
+		{
+			writeGroup(group, syncPolicy == CacheSyncPolicy.PER_GROUP);
+		}
+	}
+
+	/**
+	 * Writes the group to the persistent cache as a whole.  If that fails, the writes stay
+	 * pending, to be tried again with a later group, unless they have been tried too often.
+	 */
+	private void writeGroup(List<PendingWrite> group, boolean sync)
+	{
+		List<CacheWrite> writes = new ArrayList<CacheWrite>(group.size());
+		for(PendingWrite pendingWrite : group)
+		{
+			writes.add(pendingWrite.write);
+		}
+
+		boolean written = false;
+		try {
+			persistentCache.writeToCacheSync(writes, sync);
+			written = true;
+		} catch (CacheWriteException e) {
+			WebbyLog.e(TAG, "Could not write resources to cache.", e);
+		} catch (RuntimeException e) {
+			// Must not take the writer down with it, or nothing would be written again
+			WebbyLog.e(TAG, "Could not write resources to cache.", e);
+		}
+
+		for(PendingWrite pendingWrite : group)
+		{
+			if(!written && ++pendingWrite.attempts < MAX_WRITE_ATTEMPTS)
+				continue;
+
+			if(!written)
+				WebbyLog.w(TAG, "Giving up on writing to cache after " + MAX_WRITE_ATTEMPTS + " attempts: " + pendingWrite.write.getId());
+
+			// Unless written again in the meantime, the persistent cache answers from now on
+			pending.remove(pendingWrite.write.getId(), pendingWrite);
+		}
+	}
+
+	/**
+	 * Blocks until no writes are pending.
+	 */
+	public void flush()
+	{
+		synchronized(signal)
+		{
+			flushRequested = true;
+			signal.notifyAll();
+			try {
+				while(!pending.isEmpty())
+				{
+					startWriter(); // in case it was interrupted
+					signal.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Writes whatever is pending without waiting for groups to fill up, then stops the writer.
+	 * Later writes fail.  Blocks until nothing is pending any more, or the timeout passed.
+	 *
+	 * @param timeoutMillis
+	 * @return false if writes were still pending when the timeout passed
+	 */
+	public boolean shutdown(long timeoutMillis)
+	{
+		synchronized(signal)
+		{
+			shutdown = true;
+			signal.notifyAll();
+
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long remaining;
+			try {
+				while(!pending.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0)
+				{
+					startWriter(); // in case it was interrupted
+					signal.wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			if(!pending.isEmpty())
+				WebbyLog.w(TAG, "Shut down with " + pending.size() + " writes still pending.");
+			return pending.isEmpty();
+		}
+	}
+
+	public int getPendingCount() { return pending.size(); }
+
+	public CacheSyncPolicy getSyncPolicy() { return syncPolicy; }
+
+	@Override
+	public boolean containsItem(Uri id)
+	{
+		return pending.containsKey(id) || persistentCache.containsItem(id);
+	}
+
+	@Override
+	public boolean isYoungerThan(Uri id, Duration age)
+	{
+		PendingWrite pendingWrite = pending.get(id);
+		if(pendingWrite == null)
+			return persistentCache.isYoungerThan(id, age);
+
+		return !age.isExceeded(pendingWrite.writeTime, System.currentTimeMillis());
+	}
+
+	@Override
+	public long getLastWriteTime(Uri id)
+	{
+		PendingWrite pendingWrite = pending.get(id);
+		return pendingWrite != null ? pendingWrite.writeTime : persistentCache.getLastWriteTime(id);
+	}
+
+	@Override
+	public String readFromCacheSync(Uri id) throws CacheReadException
+	{
+		PendingWrite pendingWrite = pending.get(id);
+		if(pendingWrite == null)
+			return persistentCache.readFromCacheSync(id);
+
+		return new String(pendingWrite.write.getResource(), UTF_8);
+	}
+
+	@Override
+	public InputStream openForReading(Uri id) throws CacheReadException
+	{
+		PendingWrite pendingWrite = pending.get(id);
+		if(pendingWrite == null)
+			return persistentCache.openForReading(id);
+
+		return new ByteArrayInputStream(pendingWrite.write.getResource());
+	}
+
+	/**
+	 * Streams straight to the persistent cache.  A queued write of the same resource is written
+	 * before the sink is committed, so that it cannot overwrite it afterwards.  Fails once the
+	 * cache is shut down, like any other write.
+	 */
+	@Override
+	public CacheSink openForWriting(final Uri id, CacheValidators validators) throws CacheWriteException
+	{
+		synchronized(signal)
+		{
+			if(shutdown)
+				throw new CacheWriteException(CacheWriteException.WriteError.CANNOT_ACCESS_CACHE, "Cache is shut down, not writing: " + id);
+		}
+
+		return new ForwardingCacheSink(persistentCache.openForWriting(id, validators))
+		{
+			@Override
+			public void commit() throws CacheWriteException
+			{
+				if(pending.containsKey(id))
+					WriteBehindDataCache.this.flush();
+				super.commit();
+			}
+		};
+	}
+
+	@Override
+	public void readFromCacheAsync(Uri id, CacheReadCallback callback) throws CacheReadException
+	{
+		PendingWrite pendingWrite = pending.get(id);
+		if(pendingWrite == null)
+		{
+			persistentCache.readFromCacheAsync(id, callback);
+			return;
+		}
+
+		callback.onSuccessfulRead(new String(pendingWrite.write.getResource(), UTF_8));
+	}
+
+	@Override
+	public Future<String> readFromCacheAsync(Uri id)
+	{
+		PendingWrite pendingWrite = pending.get(id);
+		if(pendingWrite == null)
+			return persistentCache.readFromCacheAsync(id);
+
+		return CacheIoExecutor.completed(new String(pendingWrite.write.getResource(), UTF_8));
+	}
+
+	@Override
+	public void writeToCacheSync(Uri id, String resource) throws CacheWriteException
+	{
+		enqueue(id, resource.getBytes(UTF_8), null);
+	}
+
+	@Override
+	public void writeToCacheSync(Uri id, String resource, CacheValidators validators) throws CacheWriteException
+	{
+		enqueue(id, resource.getBytes(UTF_8), validators);
+	}
+
+	@Override
+	public void writeToCacheSync(Uri id, byte[] resource, CacheValidators validators) throws CacheWriteException
+	{
+		enqueue(id, resource, validators);
+	}
+
+	/**
+	 * Queues the writes.  If {@code sync} is true, waits until they have been written.
+	 */
+	@Override
+	public void writeToCacheSync(List<CacheWrite> writes, boolean sync) throws CacheWriteException
+	{
+		for(CacheWrite write : writes)
+		{
+			enqueue(write.getId(), write.getResource(), write.getValidators());
+		}
+
+		if(sync)
+			flush();
+	}
+
+	/**
+	 * The callback is told of success once the write is queued.
+	 */
+	@Override
+	public void writeToCacheAsync(Uri id, String resource, CacheWriteCallback callback) throws CacheWriteException
+	{
+		enqueue(id, resource.getBytes(UTF_8), null);
+		callback.onSuccessfulWrite();
+	}
+
+	/**
+	 * The future is done once the write is queued.
+	 */
+	@Override
+	public Future<Void> writeToCacheAsync(Uri id, String resource)
+	{
+		try {
+			enqueue(id, resource.getBytes(UTF_8), null);
+			return CacheIoExecutor.completed(null);
+		} catch (CacheWriteException e) {
+			return CacheIoExecutor.failed(e);
+		}
+	}
+
+	@Override
+	public CacheValidators getValidators(Uri id)
+	{
+		PendingWrite pendingWrite = pending.get(id);
+		if(pendingWrite == null)
+			return persistentCache.getValidators(id);
+
+		CacheValidators validators = pendingWrite.write.getValidators();
+		return validators != null && !validators.isEmpty() ? validators : null;
+	}
+
+	@Override
+	public void refresh(Uri id) throws CacheWriteException
+	{
+		PendingWrite pendingWrite = pending.get(id);
+		if(pendingWrite == null)
+		{
+			persistentCache.refresh(id);
+			return;
+		}
+
+		// Its write to the persistent cache starts its age over anyway
+		pendingWrite.writeTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public void touch(Collection<Uri> ids)
+	{
+		persistentCache.touch(ids);
+	}
+
+	@Override
+	public void registerResourceObserver(Uri id, CacheObserver observer)
+	{
+		persistentCache.registerResourceObserver(id, observer);
+	}
+
+	@Override
+	public void unregisterResourceObserver(Uri id, CacheObserver observer)
+	{
+		persistentCache.unregisterResourceObserver(id, observer);
+	}
+
+	@Override
+	public void unregisterResourceObserverFromAll(CacheObserver observer)
+	{
+		persistentCache.unregisterResourceObserverFromAll(observer);
+	}
+
+	private static class PendingWrite
+	{
+		private final CacheWrite write;
+		private final long sequence;
+		private volatile long writeTime;
+		private int attempts = 0; // only touched by the writer
+
+		private PendingWrite(CacheWrite write, long sequence, long writeTime)
+		{
+			this.write = write;
+			this.sequence = sequence;
+			this.writeTime = writeTime;
+		}
+	}
+}
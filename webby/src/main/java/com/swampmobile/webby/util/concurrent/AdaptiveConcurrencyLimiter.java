@@ -0,0 +1,140 @@
+package com.swampmobile.webby.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent executions using an additive-increase/multiplicative-decrease
+ * (AIMD) policy driven by observed round-trip times and errors.
+ * <p/>
+ * Every execution must {@code tryAcquire()} a permit before it starts and give it back with one of
+ * the {@code release()} methods when it finishes.  Each network sample then moves the limit:
+ * <p/>
+ * - a sample that failed, or that took much longer than the best recently observed round-trip,
+ * means the network is saturated and the limit is cut by {@code BACKOFF_RATIO}
+ * <p/>
+ * - a healthy sample taken while every permit was in use means there may be room for more, and the
+ * limit grows by one
+ * <p/>
+ * The limit never leaves the [minLimit, maxLimit] range given at construction.  Acquiring and
+ * releasing permits is lock-free.
+ */
+public class AdaptiveConcurrencyLimiter
+{
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final int BASELINE_DRIFT_SHIFT = 6; // baseline creeps up 1/64th of the gap per sample
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final AtomicInteger limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // Best recently observed round-trip, in millis.  Drifts slowly upward so that a permanently
+    // slower network eventually becomes the new normal.
+    private final AtomicLong baselineRtt = new AtomicLong(Long.MAX_VALUE);
+
+    public AdaptiveConcurrencyLimiter(int minLimit, int initialLimit, int maxLimit)
+    {
+        if (minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("Invalid concurrency bounds: [" + minLimit + ", " + maxLimit + "]");
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = new AtomicInteger(Math.max(minLimit, Math.min(maxLimit, initialLimit)));
+    }
+
+    /**
+     * Takes a permit if fewer than {@code getLimit()} executions are in flight.
+     *
+     * @return true if a permit was taken and the caller may start executing
+     */
+    public boolean tryAcquire()
+    {
+        while (true)
+        {
+            int current = inFlight.get();
+            if (current >= limit.get())
+                return false;
+
+            if (inFlight.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Gives back a permit without feeding a sample to the limit, e.g. for an execution that was
+     * served from cache and never touched the network.
+     */
+    public void release()
+    {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Gives back a permit and adjusts the limit using the given network sample.
+     *
+     * @param rttMillis round-trip time of the network call
+     * @param dropped   true if the call failed in a way that suggests an overloaded network or
+     *                  server (timeouts, connection errors, 5xx responses)
+     */
+    public void release(long rttMillis, boolean dropped)
+    {
+        int inFlightAtCompletion = inFlight.getAndDecrement();
+
+        long baseline = updateBaseline(rttMillis);
+
+        int current;
+        int next;
+        do
+        {
+            current = limit.get();
+
+            if (dropped || rttMillis > baseline * LATENCY_TOLERANCE)
+                next = Math.max(minLimit, (int) (current * BACKOFF_RATIO));
+            else if (inFlightAtCompletion >= current)
+                next = Math.min(maxLimit, current + 1);
+            else
+                return;
+        }
+        while (next != current && !limit.compareAndSet(current, next));
+    }
+
+    private long updateBaseline(long rttMillis)
+    {
+        while (true)
+        {
+            long baseline = baselineRtt.get();
+
+            long next;
+            if (rttMillis < baseline)
+                next = rttMillis;
+            else
+                next = baseline + ((rttMillis - baseline) >> BASELINE_DRIFT_SHIFT);
+
+            if (baselineRtt.compareAndSet(baseline, next))
+                return Math.max(1, next);
+        }
+    }
+
+    public int getLimit()
+    {
+        return limit.get();
+    }
+
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    public int getMinLimit()
+    {
+        return minLimit;
+    }
+
+    public int getMaxLimit()
+    {
+        return maxLimit;
+    }
+}
@@ -0,0 +1,94 @@
+package com.swampmobile.webby.util.concurrent;
+
+/**
+ * Stops calls to a failing dependency so that it gets a chance to recover.
+ * <p/>
+ * The breaker starts CLOSED and lets every call through.  After {@code failureThreshold}
+ * consecutive failures it OPENs and rejects every call for {@code openDurationMillis}.  It then
+ * goes HALF_OPEN and lets a single trial call through: if the trial succeeds the breaker closes
+ * again, if it fails the breaker re-opens for another {@code openDurationMillis}.
+ */
+public class CircuitBreaker
+{
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openDurationMillis;
+
+    private State state = State.CLOSED; // guarded by this
+    private int consecutiveFailures = 0; // guarded by this
+    private long stateChangedAt = 0; // guarded by this, when the breaker opened or the last trial started
+
+    public CircuitBreaker(int failureThreshold, long openDurationMillis)
+    {
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    /**
+     * Returns true if a call may go through now.  A caller that gets true must report the outcome of
+     * its call with {@code onSuccess()} or {@code onFailure()}.
+     *
+     * @return
+     */
+    public synchronized boolean allowRequest()
+    {
+        if (state == State.CLOSED)
+            return true;
+
+        // While OPEN, wait out the open period before a trial.  While HALF_OPEN, only one trial at a
+        // time, unless the trial never reported back.
+        long now = System.currentTimeMillis();
+        if (now - stateChangedAt < openDurationMillis)
+            return false;
+
+        state = State.HALF_OPEN;
+        stateChangedAt = now;
+        return true;
+    }
+
+    public synchronized void onSuccess()
+    {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void onFailure()
+    {
+        consecutiveFailures++;
+
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold)
+        {
+            state = State.OPEN;
+            stateChangedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures()
+    {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Thrown in place of making a call while the breaker is open.
+     */
+    public static class CircuitOpenException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(String message)
+        {
+            super(message);
+        }
+    }
+}
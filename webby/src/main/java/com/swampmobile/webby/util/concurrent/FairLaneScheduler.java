@@ -0,0 +1,248 @@
+package com.swampmobile.webby.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A multi-producer, single-consumer queue which is partitioned into named lanes (bulkheads).
+ * <p/>
+ * Each lane has its own queue and its own {@link AdaptiveConcurrencyLimiter}, so one lane whose
+ * work is slow can only ever tie up as many executions as its own limit allows.  On top of that,
+ * the scheduler as a whole never lets more than {@code totalCapacity} items be in flight.
+ * <p/>
+ * Items are offered with a priority level, 0 being the highest.  {@code poll()} always hands out an
+ * item of the highest level that any lane with room has queue'd.  Within that level it visits lanes
+ * round-robin and hands out one item per visit, so a lane with a deep backlog cannot starve a lane
+ * with a shallow one.  Within a lane and level, items leave in the order they were offered.
+ * <p/>
+ * Any thread may {@code offer()}, {@code remove()} and {@code release()}, but only one thread at a
+ * time may {@code poll()}.
+ *
+ * @param <E> type of the scheduled items
+ */
+public class FairLaneScheduler<E>
+{
+    private final int totalCapacity;
+    private final int priorityLevels;
+    private final int minLaneLimit;
+    private final int initialLaneLimit;
+    private final int defaultMaxLaneLimit;
+
+    private final ConcurrentHashMap<String, Lane<E>> lanes = new ConcurrentHashMap<String, Lane<E>>();
+    private final ConcurrentHashMap<String, Integer> maxLaneLimits = new ConcurrentHashMap<String, Integer>();
+
+    // Lanes created since the last poll().  Only the polling thread touches laneRing and laneCursor.
+    private final ConcurrentLinkedQueue<Lane<E>> newLanes = new ConcurrentLinkedQueue<Lane<E>>();
+    private final ArrayList<Lane<E>> laneRing = new ArrayList<Lane<E>>();
+    private int laneCursor = 0;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public FairLaneScheduler(int totalCapacity, int priorityLevels, int minLaneLimit, int initialLaneLimit, int defaultMaxLaneLimit)
+    {
+        this.totalCapacity = totalCapacity;
+        this.priorityLevels = priorityLevels;
+        this.minLaneLimit = minLaneLimit;
+        this.initialLaneLimit = initialLaneLimit;
+        this.defaultMaxLaneLimit = defaultMaxLaneLimit;
+    }
+
+    /**
+     * Overrides the ceiling of the given lane's limiter.  Only affects lanes which have not been used
+     * yet.
+     *
+     * @param lane
+     * @param maxLaneLimit
+     */
+    public void setMaxLaneLimit(String lane, int maxLaneLimit)
+    {
+        maxLaneLimits.put(lane, maxLaneLimit);
+    }
+
+    public void offer(String lane, int priority, E item)
+    {
+        Lane<E> target = getLane(lane);
+
+        size.incrementAndGet();
+        target.size.incrementAndGet();
+        target.queues[priority].offer(item);
+    }
+
+    /**
+     * Takes an item out of the queue before it is polled, e.g. one which no longer needs to run.
+     *
+     * @param lane
+     * @param priority the item was offered with
+     * @param item
+     * @return false if the item was not queue'd, e.g. because it was polled already
+     */
+    public boolean remove(String lane, int priority, E item)
+    {
+        Lane<E> target = lanes.get(lane);
+        if (target == null || !target.queues[priority].remove(item))
+            return false;
+
+        target.size.decrementAndGet();
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the next item whose lane, and the scheduler as a whole, have room for another
+     * execution, or null if there is none.  The returned item holds a permit in its lane until it is
+     * given back with {@code release()}.
+     * <p/>
+     * Must only be called by one thread at a time.
+     *
+     * @return
+     */
+    public E poll()
+    {
+        if (inFlight.get() >= totalCapacity)
+            return null;
+
+        Lane<E> lane;
+        while ((lane = newLanes.poll()) != null)
+            laneRing.add(lane);
+
+        int laneCount = laneRing.size();
+        for (int priority = 0; priority < priorityLevels; priority++)
+        {
+            for (int i = 0; i < laneCount; i++)
+            {
+                int index = (laneCursor + i) % laneCount;
+                lane = laneRing.get(index);
+
+                ConcurrentLinkedQueue<E> queue = lane.queues[priority];
+                if (queue.isEmpty() || !lane.limiter.tryAcquire())
+                    continue;
+
+                // remove() may have taken the last item since the queue was checked
+                E item = queue.poll();
+                if (item == null)
+                {
+                    lane.limiter.release();
+                    continue;
+                }
+
+                laneCursor = (index + 1) % laneCount;
+
+                lane.size.decrementAndGet();
+                size.decrementAndGet();
+                inFlight.incrementAndGet();
+
+                return item;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gives back a permit taken by {@code poll()} without feeding a sample to the lane's limiter.
+     *
+     * @param lane
+     */
+    public void release(String lane)
+    {
+        getLane(lane).limiter.release();
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Gives back a permit taken by {@code poll()} and adjusts the lane's limit with the given sample.
+     *
+     * @param lane
+     * @param rttMillis
+     * @param dropped
+     * @see AdaptiveConcurrencyLimiter#release(long, boolean)
+     */
+    public void release(String lane, long rttMillis, boolean dropped)
+    {
+        getLane(lane).limiter.release(rttMillis, dropped);
+        inFlight.decrementAndGet();
+    }
+
+    private Lane<E> getLane(String name)
+    {
+        Lane<E> lane = lanes.get(name);
+        if (lane == null)
+        {
+            Integer configuredMax = maxLaneLimits.get(name);
+            int maxLaneLimit = configuredMax != null ? configuredMax : defaultMaxLaneLimit;
+            Lane<E> newLane = new Lane<E>(priorityLevels, new AdaptiveConcurrencyLimiter(
+                    Math.min(minLaneLimit, maxLaneLimit),
+                    initialLaneLimit,
+                    maxLaneLimit));
+
+            lane = lanes.putIfAbsent(name, newLane);
+            if (lane == null)
+            {
+                lane = newLane;
+                newLanes.offer(newLane);
+            }
+        }
+
+        return lane;
+    }
+
+    public Set<String> getLanes()
+    {
+        return Collections.unmodifiableSet(lanes.keySet());
+    }
+
+    public int size()
+    {
+        return size.get();
+    }
+
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    public int getTotalCapacity()
+    {
+        return totalCapacity;
+    }
+
+    public int size(String lane)
+    {
+        Lane<E> target = lanes.get(lane);
+        return target != null ? target.size.get() : 0;
+    }
+
+    public int getLaneLimit(String lane)
+    {
+        Lane<E> target = lanes.get(lane);
+        return target != null ? target.limiter.getLimit() : initialLaneLimit;
+    }
+
+    public int getLaneInFlight(String lane)
+    {
+        Lane<E> target = lanes.get(lane);
+        return target != null ? target.limiter.getInFlight() : 0;
+    }
+
+    private static class Lane<E>
+    {
+        private final ConcurrentLinkedQueue<E>[] queues;
+        private final AtomicInteger size = new AtomicInteger();
+        private final AdaptiveConcurrencyLimiter limiter;
+
+        @SuppressWarnings("unchecked")
+        private Lane(int priorityLevels, AdaptiveConcurrencyLimiter limiter)
+        {
+            this.queues = (ConcurrentLinkedQueue<E>[]) new ConcurrentLinkedQueue<?>[priorityLevels];
+            for (int i = 0; i < priorityLevels; i++)
+                queues[i] = new ConcurrentLinkedQueue<E>();
+
+            this.limiter = limiter;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.swampmobile.webby.util.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An InputStream which copies every byte read from the stream it wraps to an OutputStream, so a
+ * body can be captured exactly as it was received while it is being consumed.
+ * <p/>
+ * Skipped bytes are read, and therefore copied, too.  Closing this stream closes the wrapped
+ * stream but not the copy.
+ */
+public class TeeInputStream extends FilterInputStream
+{
+    private final OutputStream copy;
+
+    public TeeInputStream(InputStream in, OutputStream copy)
+    {
+        super(in);
+        this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = in.read();
+        if (b != -1)
+            copy.write(b);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException
+    {
+        int read = in.read(buffer, offset, count);
+        if (read > 0)
+            copy.write(buffer, offset, read);
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException
+    {
+        byte[] buffer = new byte[(int) Math.min(count, 4096)];
+        long skipped = 0;
+        while (skipped < count)
+        {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+            if (read == -1)
+                break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    /**
+     * Reads, and so copies, whatever is left of the wrapped stream.
+     *
+     * @throws IOException
+     */
+    public void drain() throws IOException
+    {
+        byte[] buffer = new byte[4096];
+        while (read(buffer, 0, buffer.length) != -1)
+        {
+            // copied by read()
+        }
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit)
+    {
+    }
+
+    @Override
+    public void reset() throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+}
@@ -0,0 +1,219 @@
+package com.swampmobile.webby.util.json;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reduces a JSON document to the members found at a set of paths, in a single streaming pass.
+ * Everything outside the paths is skipped by the reader without ever being materialized.
+ * <p/>
+ * A path is a dot separated list of member names, e.g. {@code "items.title"}.  A {@code *} segment
+ * matches any member name that no other path names explicitly.  Arrays are descended into
+ * transparently: {@code "items.title"} keeps the title of every element of the {@code items}
+ * array.  The whole value found at the end of a path is kept.
+ * <p/>
+ * The projected document keeps the shape of the original.  Objects and arrays along a path are kept
+ * even if none of their members match, while primitives found where a path expects an object are
+ * dropped.
+ */
+public class JsonProjection
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String WILDCARD = "*";
+
+    private final List<String> paths;
+    private final Node root = new Node();
+
+    private JsonProjection(List<String> paths)
+    {
+        this.paths = paths;
+
+        for (String path : paths)
+        {
+            Node node = root;
+            for (String segment : path.split("\\."))
+            {
+                if (segment.length() == 0)
+                    throw new IllegalArgumentException("Invalid JSON path: \"" + path + "\"");
+
+                node = node.getOrAddChild(segment);
+            }
+            node.terminal = true;
+        }
+    }
+
+    public static JsonProjection of(String... paths)
+    {
+        if (paths.length == 0)
+            throw new IllegalArgumentException("A projection needs at least one path");
+
+        return new JsonProjection(Arrays.asList(paths));
+    }
+
+    public List<String> getPaths()
+    {
+        return paths;
+    }
+
+    /**
+     * Reads a UTF-8 JSON document and returns the UTF-8 bytes of its projection.  The stream is
+     * read up to the end of the document but not closed.
+     *
+     * @param in
+     * @return
+     * @throws IOException if the document could not be read or is not valid JSON
+     */
+    public byte[] apply(InputStream in) throws IOException
+    {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+        reader.setLenient(true);
+
+        ByteArrayOutputStream projected = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(projected, UTF_8));
+        writer.setLenient(true);
+
+        if (reader.peek() == JsonToken.BEGIN_OBJECT || reader.peek() == JsonToken.BEGIN_ARRAY)
+            project(reader, writer, root);
+        else
+            copy(reader, writer);
+
+        writer.close();
+        return projected.toByteArray();
+    }
+
+    private void project(JsonReader reader, JsonWriter writer, Node node) throws IOException
+    {
+        if (node.terminal)
+        {
+            copy(reader, writer);
+            return;
+        }
+
+        if (reader.peek() == JsonToken.BEGIN_OBJECT)
+        {
+            reader.beginObject();
+            writer.beginObject();
+            while (reader.hasNext())
+            {
+                String name = reader.nextName();
+                Node child = node.getChild(name);
+                if (child == null || !(child.terminal || isContainer(reader.peek())))
+                {
+                    reader.skipValue();
+                    continue;
+                }
+
+                writer.name(name);
+                project(reader, writer, child);
+            }
+            reader.endObject();
+            writer.endObject();
+        }
+        else
+        {
+            reader.beginArray();
+            writer.beginArray();
+            while (reader.hasNext())
+            {
+                if (isContainer(reader.peek()))
+                    project(reader, writer, node);
+                else
+                    reader.skipValue();
+            }
+            reader.endArray();
+            writer.endArray();
+        }
+    }
+
+    private static boolean isContainer(JsonToken token)
+    {
+        return token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY;
+    }
+
+    private static void copy(JsonReader reader, JsonWriter writer) throws IOException
+    {
+        switch (reader.peek())
+        {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext())
+                {
+                    writer.name(reader.nextName());
+                    copy(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext())
+                {
+                    copy(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                // Written exactly as received, so no precision is lost
+                writer.jsonValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IOException("Unexpected " + reader.peek() + " in JSON document");
+        }
+    }
+
+    private static class Node
+    {
+        private final Map<String, Node> children = new HashMap<String, Node>();
+        private Node wildcard;
+        private boolean terminal;
+
+        private Node getOrAddChild(String segment)
+        {
+            if (WILDCARD.equals(segment))
+            {
+                if (wildcard == null)
+                    wildcard = new Node();
+                return wildcard;
+            }
+
+            Node child = children.get(segment);
+            if (child == null)
+            {
+                child = new Node();
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+        private Node getChild(String name)
+        {
+            Node child = children.get(name);
+            return child != null ? child : wildcard;
+        }
+    }
+}
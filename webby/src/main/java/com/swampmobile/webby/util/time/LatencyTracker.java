@@ -0,0 +1,59 @@
+package com.swampmobile.webby.util.time;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps a sliding window of the most recent latency samples and answers percentile queries over
+ * them.  Recording a sample is lock-free; computing a percentile copies and sorts the window, which
+ * is cheap for the small windows this is meant for.
+ */
+public class LatencyTracker
+{
+    private final AtomicLongArray samples;
+    private final AtomicLong sampleCount = new AtomicLong();
+
+    public LatencyTracker(int windowSize)
+    {
+        samples = new AtomicLongArray(windowSize);
+    }
+
+    public void record(long latencyMillis)
+    {
+        long index = sampleCount.getAndIncrement();
+        samples.set((int) (index % samples.length()), latencyMillis);
+    }
+
+    /**
+     * Returns the number of samples currently in the window.
+     *
+     * @return
+     */
+    public int getSampleCount()
+    {
+        return (int) Math.min(sampleCount.get(), samples.length());
+    }
+
+    /**
+     * Returns the latency below which the given fraction of the windowed samples fall, or -1 if there
+     * are no samples yet.
+     *
+     * @param percentile between 0 and 1, e.g. 0.95
+     * @return
+     */
+    public long getPercentile(double percentile)
+    {
+        int count = getSampleCount();
+        if (count == 0)
+            return -1;
+
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++)
+            sorted[i] = samples.get(i);
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, rank))];
+    }
+}
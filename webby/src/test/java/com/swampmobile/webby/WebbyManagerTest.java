@@ -0,0 +1,70 @@
+package com.swampmobile.webby;
+
+import com.swampmobile.webby.requests.FakeRequest;
+import com.swampmobile.webby.requests.WebbyRequestHandle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a WebbyManager forgets a submission as soon as it is over, rather than holding on to
+ * it until the next one comes along.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WebbyManagerTest
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private WebbyManager manager;
+
+    @Before
+    public void setUp()
+    {
+        manager = new WebbyManager(Robolectric.application, new Object());
+        manager.onStart();
+    }
+
+    @After
+    public void tearDown()
+    {
+        manager.onStop();
+    }
+
+    @Test
+    public void completedSubmissionIsForgotten()
+    {
+        WebbyRequestHandle handle = manager.addRequest(new FakeRequest("/completed", "[]".getBytes(UTF_8)));
+        assertEquals(1, manager.getPendingRequestCount());
+
+        handle.onComplete(null);
+
+        assertTrue(handle.isDone());
+        assertEquals(0, manager.getPendingRequestCount());
+    }
+
+    @Test
+    public void cancelledSubmissionIsForgotten()
+    {
+        WebbyRequestHandle first = manager.addRequest(new FakeRequest("/first", "[]".getBytes(UTF_8)));
+        WebbyRequestHandle second = manager.addRequest(new FakeRequest("/second", "[]".getBytes(UTF_8)));
+        assertEquals(2, manager.getPendingRequestCount());
+
+        first.cancel();
+        assertEquals(1, manager.getPendingRequestCount());
+
+        manager.cancelPendingRequests();
+        assertTrue(second.isCancelled());
+        assertEquals(0, manager.getPendingRequestCount());
+    }
+}
@@ -0,0 +1,76 @@
+package com.swampmobile.webby.requests;
+
+import android.net.Uri;
+
+import com.google.gson.JsonElement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit.client.Header;
+import retrofit.client.Response;
+import retrofit.mime.TypedByteArray;
+
+/**
+ * A request whose "network call" answers with a canned body, after an optional delay, so that
+ * tests and benchmarks can run requests without a server.
+ */
+public class FakeRequest extends WebbyRequest<FakeRequest.Service, JsonElement>
+{
+    public static final String ENDPOINT = "http://example.com";
+
+    /**
+     * The Retrofit interface of fake requests.  Its proxy is built, but never called.
+     */
+    public interface Service
+    {
+    }
+
+    private final byte[] body;
+    private final long delayMillis;
+    private volatile long calledAtNanos;
+
+    public FakeRequest(String path, byte[] body)
+    {
+        this(ENDPOINT, path, body, 0);
+    }
+
+    public FakeRequest(String endpoint, String path, byte[] body, long delayMillis)
+    {
+        super(Uri.parse(endpoint + path), endpoint, Service.class, JsonElement.class);
+        this.body = body;
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Returns when the network call of the latest execution started, from System.nanoTime(), or
+     * 0 if it has not started.
+     *
+     * @return
+     */
+    public long getCalledAtNanos()
+    {
+        return calledAtNanos;
+    }
+
+    @Override
+    public Response doWebServiceCall(Service webservice)
+    {
+        calledAtNanos = System.nanoTime();
+        if (delayMillis > 0)
+        {
+            try
+            {
+                Thread.sleep(delayMillis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new Header("ETag", "\"" + body.length + "\""));
+        return new Response(getUri().toString(), 200, "OK", headers, new TypedByteArray("application/json; charset=UTF-8", body));
+    }
+}
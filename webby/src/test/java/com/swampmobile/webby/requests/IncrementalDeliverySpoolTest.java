@@ -0,0 +1,107 @@
+package com.swampmobile.webby.requests;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.swampmobile.webby.Webby;
+import com.swampmobile.webby.util.cache.CacheTestUtils;
+import com.swampmobile.webby.util.cache.FlatFileDataCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs requests whose array elements are delivered while the body is read, with bodies on either
+ * side of the spool threshold: the small one is kept in memory, the large one is streamed into the
+ * spool cache alongside the delivery.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class IncrementalDeliverySpoolTest
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long THRESHOLD_BYTES = 4 * 1024;
+
+    private FlatFileDataCache cache;
+    private long previousThreshold;
+
+    @Before
+    public void setUp()
+    {
+        CacheTestUtils.emptyCacheDir(Robolectric.application);
+        cache = new FlatFileDataCache(Robolectric.application);
+        previousThreshold = Webby.getSpoolThresholdBytes();
+        Webby.setSpoolThresholdBytes(THRESHOLD_BYTES);
+    }
+
+    @After
+    public void tearDown()
+    {
+        Webby.setSpoolThresholdBytes(previousThreshold);
+    }
+
+    @Test
+    public void smallBodyIsKeptInMemory() throws Exception
+    {
+        byte[] body = array(10);
+        FakeRequest request = run("/small", body);
+
+        assertFalse(request.isDataSpooledToCache());
+        assertFalse(cache.containsItem(request.getUri()));
+        assertArrayEquals(body, request.getRawData());
+        assertEquals(parse(body), request.getData());
+    }
+
+    @Test
+    public void largeBodyIsSpooledWhileItIsDelivered() throws Exception
+    {
+        byte[] body = array(1000);
+        assertTrue(body.length > THRESHOLD_BYTES);
+        FakeRequest request = run("/large", body);
+
+        assertTrue(request.isDataSpooledToCache());
+        assertNull(request.getRawData());
+        assertTrue(Arrays.equals(body, cache.readFromCacheSync(request.getUri()).getBytes(UTF_8)));
+        assertEquals(parse(body), request.getData());
+    }
+
+    private FakeRequest run(String path, byte[] body)
+    {
+        FakeRequest request = new FakeRequest(path, body);
+        request.setSpoolCache(cache);
+        request.setIncrementalDelivery(new IncrementalDelivery<JsonElement>(JsonElement.class, 100, 1000));
+        request.run();
+        assertTrue(request.wasSuccessful());
+        return request;
+    }
+
+    private static byte[] array(int elements)
+    {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < elements; i++)
+        {
+            if (i > 0)
+                json.append(',');
+            json.append("{\"id\":").append(i).append(",\"name\":\"element ").append(i).append("\"}");
+        }
+        return json.append(']').toString().getBytes(UTF_8);
+    }
+
+    private static JsonElement parse(byte[] body)
+    {
+        return new JsonParser().parse(new String(body, UTF_8));
+    }
+}
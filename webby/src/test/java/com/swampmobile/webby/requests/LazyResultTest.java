@@ -0,0 +1,83 @@
+package com.swampmobile.webby.requests;
+
+import android.net.Uri;
+
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.swampmobile.webby.Webby;
+import com.swampmobile.webby.util.cache.CacheEvictionPolicy;
+import com.swampmobile.webby.util.cache.CacheTestUtils;
+import com.swampmobile.webby.util.cache.FlatFileDataCache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a result backed by a cache entry decodes the entry as it was when the result was
+ * created, however the cache changed before anyone asked for it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class LazyResultTest
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Uri ID = Uri.parse("http://example.com/lazy");
+    private static final Uri OTHER_ID = Uri.parse("http://example.com/other");
+
+    private FlatFileDataCache cache;
+    private TypeAdapter<JsonElement> adapter;
+
+    @Before
+    public void setUp()
+    {
+        CacheTestUtils.emptyCacheDir(Robolectric.application);
+        cache = new FlatFileDataCache(Robolectric.application, Long.MAX_VALUE, 1, CacheEvictionPolicy.LEAST_RECENTLY_USED);
+        adapter = Webby.getGson().getAdapter(JsonElement.class);
+    }
+
+    @Test
+    public void decodesTheEntryAsItWasWhenRewritten() throws Exception
+    {
+        cache.writeToCacheSync(ID, "[1]");
+        LazyResult<JsonElement> result = LazyResult.fromCache(cache, ID, adapter);
+
+        cache.writeToCacheSync(ID, "[2]");
+
+        assertEquals(1, result.get().getAsJsonArray().get(0).getAsInt());
+    }
+
+    @Test
+    public void decodesTheEntryAfterItWasEvicted() throws Exception
+    {
+        cache.writeToCacheSync(ID, "[1]");
+        LazyResult<JsonElement> result = LazyResult.fromCache(cache, ID, adapter);
+
+        cache.writeToCacheSync(OTHER_ID, "[2]"); // room for one entry only
+        assertFalse(cache.containsItem(ID));
+
+        assertEquals(1, result.toJsonTree().getAsJsonArray().get(0).getAsInt());
+    }
+
+    @Test
+    public void comparesWithTheEntryAsItWas() throws Exception
+    {
+        cache.writeToCacheSync(ID, "[1]");
+        LazyResult<JsonElement> result = LazyResult.fromCache(cache, ID, adapter);
+
+        cache.writeToCacheSync(ID, "[2]");
+
+        assertFalse(result.contentEquals("[2]".getBytes(UTF_8)));
+        assertTrue(result.contentEquals("[1]".getBytes(UTF_8)));
+        assertEquals(1, result.get().getAsJsonArray().get(0).getAsInt());
+    }
+}
@@ -0,0 +1,198 @@
+package com.swampmobile.webby.requests;
+
+import android.net.Uri;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.swampmobile.webby.util.cache.CacheEvictionPolicy;
+import com.swampmobile.webby.util.cache.CacheTestUtils;
+import com.swampmobile.webby.util.cache.FlatFileDataCache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+import retrofit.client.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the bytes allocated per request for payloads of 10 KB, 1 MB and 10 MB, end to end, on
+ * the way requests are handled now and on the way they were handled before.  A network hit reads
+ * and decodes the body and caches it; a cache hit decodes the cached resource.  Before, the body
+ * was parsed into a tree which was cached as its toString(), and cache hits read the file line by
+ * line into a String to parse it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ResponseAllocationBenchmarkTest
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int[] PAYLOAD_BYTES = { 10 * 1024, 1024 * 1024, 10 * 1024 * 1024 };
+
+    private FlatFileDataCache cache;
+
+    @Before
+    public void setUp()
+    {
+        CacheTestUtils.emptyCacheDir(Robolectric.application);
+        cache = new FlatFileDataCache(Robolectric.application, Long.MAX_VALUE, 100, CacheEvictionPolicy.LEAST_RECENTLY_USED);
+    }
+
+    @Test
+    public void allocationPerRequest() throws Exception
+    {
+        // Once to load the classes involved
+        measure(PAYLOAD_BYTES[0], "/warm-up");
+
+        System.out.println("payload      network hit   (before)   cache hit   (before)");
+        for (int payloadBytes : PAYLOAD_BYTES)
+        {
+            long[] allocated = measure(payloadBytes, "/payload");
+            System.out.println(String.format("%7d KB  %9d KB  %6d KB  %7d KB  %6d KB", payloadBytes / 1024,
+                    allocated[0] / 1024, allocated[1] / 1024, allocated[2] / 1024, allocated[3] / 1024));
+
+            if (allocated[0] > 0)
+            {
+                assertTrue("Network hit allocated more than before", allocated[0] < allocated[1]);
+                assertTrue("Cache hit allocated more than before", allocated[2] < allocated[3]);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes allocated by a network hit, the same before, a cache hit and the same before
+     */
+    private long[] measure(int payloadBytes, String path) throws Exception
+    {
+        byte[] body = document(payloadBytes);
+        JsonElement expected = new JsonParser().parse(new String(body, UTF_8));
+        long[] allocated = new long[4];
+
+        long start = allocatedBytes();
+        FakeRequest request = networkHit(body, path + "/" + payloadBytes);
+        allocated[0] = allocatedBytes() - start;
+        assertEquals(expected, request.getData());
+
+        Uri previousId = Uri.parse(FakeRequest.ENDPOINT + path + "/before/" + payloadBytes);
+        start = allocatedBytes();
+        JsonElement previous = previousNetworkHit(body, previousId);
+        allocated[1] = allocatedBytes() - start;
+        assertEquals(expected, previous);
+
+        start = allocatedBytes();
+        JsonElement cached = cacheHit(request);
+        allocated[2] = allocatedBytes() - start;
+        assertEquals(expected, cached);
+
+        start = allocatedBytes();
+        JsonElement previousCached = previousCacheHit(previousId);
+        allocated[3] = allocatedBytes() - start;
+        assertEquals(expected, previousCached);
+
+        return allocated;
+    }
+
+    private FakeRequest networkHit(byte[] body, String path) throws Exception
+    {
+        FakeRequest request = new FakeRequest(path, body);
+        request.run();
+        assertTrue(request.wasSuccessful());
+
+        cache.writeToCacheSync(request.getUri(), request.getRawData(), request.getResponseValidators());
+        request.getData(); // decoding is lazy
+        return request;
+    }
+
+    private JsonElement cacheHit(FakeRequest request) throws Exception
+    {
+        return LazyResult.fromCache(cache, request.getUri(), request.getResultAdapter()).get();
+    }
+
+    /**
+     * Parses the body into a tree and caches the tree's toString(), as requests did before.
+     */
+    private JsonElement previousNetworkHit(byte[] body, Uri id) throws Exception
+    {
+        Response response = new FakeRequest(id.getPath(), body).doWebServiceCall(null);
+        Reader reader = new InputStreamReader(response.getBody().in(), UTF_8);
+        JsonElement data;
+        try
+        {
+            data = new JsonParser().parse(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        cache.writeToCacheSync(id, data.toString());
+        return data;
+    }
+
+    /**
+     * Reads the cached resource line by line into a String and parses that, as cache hits did before.
+     */
+    private JsonElement previousCacheHit(Uri id) throws Exception
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(cache.openForReading(id), UTF_8));
+        try
+        {
+            StringBuilder json = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null)
+                json.append(line);
+
+            return new JsonParser().parse(json.toString());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return a JSON array of items, about {@code bytes} long
+     */
+    private static byte[] document(int bytes)
+    {
+        StringBuilder json = new StringBuilder(bytes + 256);
+        json.append('[');
+        for (int i = 0; json.length() < bytes; i++)
+        {
+            if (i > 0)
+                json.append(',');
+            json.append("{\"id\":").append(i)
+                    .append(",\"title\":\"Item ").append(i)
+                    .append("\",\"price\":").append(i * 0.25)
+                    .append(",\"description\":\"");
+            for (int j = 0; j < 8; j++)
+                json.append("a description of item ").append(i).append(' ');
+            json.append("\"}");
+        }
+        json.append(']');
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or 0 if the JVM does not tell
+     */
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return 0;
+
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,75 @@
+package com.swampmobile.webby.requests;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import retrofit.RestAdapter;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the setup cost of a request before and after service proxies were cached: building a
+ * RestAdapter with Retrofit's default HTTP client and a proxy every time, as each request used to,
+ * against looking the proxy up in a {@link RestAdapterRegistry}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RestAdapterRegistryBenchmarkTest
+{
+    private static final int WARM_UP_RUNS = 1000;
+    private static final int RUNS = 10000;
+    private static final RestAdapter.LogLevel LOG_LEVEL = RestAdapter.LogLevel.NONE;
+
+    @Test
+    public void registryReusesProxies()
+    {
+        RestAdapterRegistry registry = new RestAdapterRegistry();
+        FakeRequest.Service service = registry.getService(FakeRequest.ENDPOINT, FakeRequest.Service.class, LOG_LEVEL);
+
+        assertSame(service, registry.getService(FakeRequest.ENDPOINT, FakeRequest.Service.class, LOG_LEVEL));
+        assertNotSame(service, registry.getService("http://example.org", FakeRequest.Service.class, LOG_LEVEL));
+        assertNotSame(service, registry.getService(FakeRequest.ENDPOINT, FakeRequest.Service.class, RestAdapter.LogLevel.BASIC));
+    }
+
+    @Test
+    public void setupCostPerRequest()
+    {
+        RestAdapterRegistry registry = new RestAdapterRegistry();
+        for (int i = 0; i < WARM_UP_RUNS; i++)
+        {
+            buildService();
+            registry.getService(FakeRequest.ENDPOINT, FakeRequest.Service.class, LOG_LEVEL);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            buildService();
+        long builtNanos = (System.nanoTime() - start) / RUNS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            registry.getService(FakeRequest.ENDPOINT, FakeRequest.Service.class, LOG_LEVEL);
+        long registryNanos = (System.nanoTime() - start) / RUNS;
+
+        System.out.println("Setup per request: " + builtNanos + " ns building the adapter, " + registryNanos + " ns from the registry");
+        assertTrue("Registry lookup was not cheaper than building the adapter", registryNanos < builtNanos);
+    }
+
+    /**
+     * Builds a proxy the way requests did before the registry, letting Retrofit create its
+     * default client.
+     */
+    private static FakeRequest.Service buildService()
+    {
+        RestAdapter restAdapter = new RestAdapter.Builder()
+                .setEndpoint(FakeRequest.ENDPOINT)
+                .setLogLevel(LOG_LEVEL)
+                .build();
+
+        return restAdapter.create(FakeRequest.Service.class);
+    }
+}
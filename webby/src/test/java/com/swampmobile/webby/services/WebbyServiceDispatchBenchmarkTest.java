@@ -0,0 +1,139 @@
+package com.swampmobile.webby.services;
+
+import com.swampmobile.webby.requests.FakeRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ServiceController;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the latency from submitting a request to WebbyService to its network call starting,
+ * with 1, 4 and 16 producers submitting at the same time.  Each producer waits for its request to
+ * start before submitting the next one, so the numbers are those of dispatch rather than of a
+ * backlog building up.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WebbyServiceDispatchBenchmarkTest
+{
+    private static final int[] PRODUCER_COUNTS = { 1, 4, 16 };
+    private static final int WARM_UP_REQUESTS = 200;
+    private static final int REQUESTS_PER_PRODUCER = 500;
+    private static final long MAX_WAIT_MILLIS = 30000;
+    private static final byte[] BODY = "{\"ok\":true}".getBytes(Charset.forName("UTF-8"));
+
+    private ServiceController<WebbyService> controller;
+    private WebbyService service;
+
+    @Before
+    public void setUp()
+    {
+        controller = Robolectric.buildService(WebbyService.class).create();
+        service = controller.get();
+    }
+
+    @After
+    public void tearDown()
+    {
+        controller.destroy();
+    }
+
+    @Test
+    public void submitToExecuteLatency() throws Exception
+    {
+        submit("warm-up", WARM_UP_REQUESTS);
+
+        System.out.println("producers   requests   p50       p99");
+        for(int producers : PRODUCER_COUNTS)
+        {
+            List<Long> latencies = run(producers);
+            assertEquals(producers * REQUESTS_PER_PRODUCER, latencies.size());
+
+            Collections.sort(latencies);
+            System.out.println(String.format("%9d  %9d  %5d us  %5d us", producers, latencies.size(),
+                    latencies.get(latencies.size() / 2) / 1000, latencies.get(latencies.size() * 99 / 100) / 1000));
+        }
+
+        assertEquals(0, service.getCoalescedRequestCount());
+    }
+
+    private List<Long> run(int producers) throws Exception
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        final CountDownLatch start = new CountDownLatch(1);
+        try
+        {
+            List<Future<List<Long>>> results = new ArrayList<Future<List<Long>>>();
+            for(int i = 0; i < producers; i++)
+            {
+                final String name = producers + "/" + i;
+                results.add(pool.submit(new Callable<List<Long>>()
+                {
+                    @Override
+                    public List<Long> call() throws Exception
+                    {
+                        start.await();
+                        return submit(name, REQUESTS_PER_PRODUCER);
+                    }
+                }));
+            }
+            start.countDown();
+
+            List<Long> latencies = new ArrayList<Long>();
+            for(Future<List<Long>> result : results)
+            {
+                latencies.addAll(result.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+            }
+            return latencies;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Submits requests one after another, each to its own path so that none is coalesced, and
+     * waits for each to start before submitting the next.
+     *
+     * @return the submit-to-execute latency of each request, in nanoseconds
+     */
+    private List<Long> submit(String producer, int count) throws Exception
+    {
+        List<Long> latencies = new ArrayList<Long>(count);
+        for(int i = 0; i < count; i++)
+        {
+            FakeRequest request = new FakeRequest("/dispatch/" + producer + "/" + i, BODY);
+            long submittedAt = System.nanoTime();
+            service.addRequest(request);
+
+            long deadline = submittedAt + TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MILLIS);
+            while(request.getCalledAtNanos() == 0)
+            {
+                assertTrue("Request " + request.getUri() + " never ran", System.nanoTime() < deadline);
+                Thread.yield();
+            }
+            latencies.add(request.getCalledAtNanos() - submittedAt);
+        }
+        return latencies;
+    }
+}
@@ -0,0 +1,287 @@
+package com.swampmobile.webby.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.net.Uri;
+
+/**
+ * Fires a burst of 10k asynchronous reads at a FlatFileDataCache and checks that they are served
+ * by a handful of threads, in reasonable time.  Also checks how CacheIoExecutor orders, coalesces
+ * and completes the operations queued on it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CacheIoExecutorBurstTest
+{
+	private static final int READS = 10000;
+	private static final int KEYS = 100;
+	private static final int VALUE_LENGTH = 1024;
+	private static final int MAX_EXTRA_THREADS = 4; // the shared I/O pool, plus some slack
+	private static final long MAX_BURST_MILLIS = 30000;
+
+	private FlatFileDataCache cache;
+	private ThreadMXBean threads;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		CacheTestUtils.emptyCacheDir(Robolectric.application);
+		cache = new FlatFileDataCache(Robolectric.application);
+		for(int i = 0; i < KEYS; i++)
+		{
+			cache.writeToCacheSync(id(i), CacheTestUtils.value(i, VALUE_LENGTH));
+		}
+
+		threads = ManagementFactory.getThreadMXBean();
+	}
+
+	@Test
+	public void burstOfCallbackReads() throws Exception
+	{
+		final CountDownLatch finished = new CountDownLatch(READS);
+		final AtomicInteger failures = new AtomicInteger();
+
+		int threadsBefore = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+		long start = System.nanoTime();
+		for(int i = 0; i < READS; i++)
+		{
+			final int key = i % KEYS;
+			cache.readFromCacheAsync(id(key), new DataCache.CacheReadCallback()
+			{
+				@Override
+				public void onSuccessfulRead(String resource)
+				{
+					if(!CacheTestUtils.value(key, VALUE_LENGTH).equals(resource))
+						failures.incrementAndGet();
+					finished.countDown();
+				}
+
+				@Override
+				public void onReadError(DataCache.CacheReadException error)
+				{
+					failures.incrementAndGet();
+					finished.countDown();
+				}
+			});
+		}
+
+		assertTrue("Burst did not complete", finished.await(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS));
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		int peakThreads = threads.getPeakThreadCount();
+		System.out.println(READS + " callback reads in " + elapsedMillis + "ms, threads " + threadsBefore + " before, " + peakThreads + " at peak");
+
+		assertEquals(0, failures.get());
+		assertTrue("Burst started " + (peakThreads - threadsBefore) + " threads", peakThreads - threadsBefore <= MAX_EXTRA_THREADS);
+	}
+
+	@Test
+	public void burstOfFutureReads() throws Exception
+	{
+		int threadsBefore = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+		long start = System.nanoTime();
+
+		List<Future<String>> futures = new ArrayList<Future<String>>(READS);
+		for(int i = 0; i < READS; i++)
+		{
+			futures.add(cache.readFromCacheAsync(id(i % KEYS)));
+		}
+
+		for(int i = 0; i < READS; i++)
+		{
+			assertEquals(CacheTestUtils.value(i % KEYS, VALUE_LENGTH), futures.get(i).get(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS));
+		}
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		int peakThreads = threads.getPeakThreadCount();
+		System.out.println(READS + " future reads in " + elapsedMillis + "ms, threads " + threadsBefore + " before, " + peakThreads + " at peak");
+
+		assertTrue("Burst started " + (peakThreads - threadsBefore) + " threads", peakThreads - threadsBefore <= MAX_EXTRA_THREADS);
+	}
+
+	@Test
+	public void readsOvertakeQueuedWritesOfOtherResources() throws Exception
+	{
+		CacheIoExecutor executor = new CacheIoExecutor();
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<Void>> writes = occupyIoThreads(executor, release);
+		for(int i = 0; i < 10; i++)
+		{
+			writes.add(executor.write(id(i + 1), record(order, "write " + i, (Void) null)));
+		}
+		Future<String> read = executor.read(id(0), record(order, "read", "value"));
+		release.countDown();
+
+		assertEquals("value", read.get(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS));
+		for(Future<Void> write : writes)
+		{
+			write.get(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		assertEquals("Read waited behind earlier writes: " + order, "read", order.get(0));
+	}
+
+	@Test
+	public void readWaitsForQueuedWriteOfSameResource() throws Exception
+	{
+		CacheIoExecutor executor = new CacheIoExecutor();
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<Void>> writes = occupyIoThreads(executor, release);
+		Future<String> before = executor.read(id(0), record(order, "read before", "old"));
+		writes.add(executor.write(id(0), record(order, "write", (Void) null)));
+		Future<String> after = executor.read(id(0), record(order, "read after", "new"));
+		release.countDown();
+
+		assertEquals("old", before.get(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals("new", after.get(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS));
+		for(Future<Void> write : writes)
+		{
+			write.get(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		assertEquals(Arrays.asList("read before", "write", "read after"), order);
+	}
+
+	@Test
+	public void joinedReadsRunOnceAndCancelSeparately() throws Exception
+	{
+		CacheIoExecutor executor = new CacheIoExecutor();
+		final AtomicInteger invocations = new AtomicInteger();
+		Callable<String> read = new Callable<String>()
+		{
+			@Override
+			public String call()
+			{
+				invocations.incrementAndGet();
+				return "value";
+			}
+		};
+
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<Void>> writes = occupyIoThreads(executor, release);
+		List<Future<String>> reads = new ArrayList<Future<String>>();
+		for(int i = 0; i < 10; i++)
+		{
+			reads.add(executor.read(id(0), read));
+		}
+		assertTrue(reads.get(0).cancel(true));
+		release.countDown();
+
+		assertTrue(reads.get(0).isCancelled());
+		for(int i = 1; i < reads.size(); i++)
+		{
+			assertFalse(reads.get(i).isCancelled());
+			assertEquals("value", reads.get(i).get(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS));
+		}
+		for(Future<Void> write : writes)
+		{
+			write.get(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		assertEquals("Duplicate reads were not coalesced", 1, invocations.get());
+	}
+
+	@Test
+	public void callbacksRunOffTheIoThreads() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch called = new CountDownLatch(1);
+		DataCache.CacheReadCallback slowCallback = new DataCache.CacheReadCallback()
+		{
+			@Override
+			public void onSuccessfulRead(String resource)
+			{
+				called.countDown();
+				try {
+					release.await(); // a slow callback
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void onReadError(DataCache.CacheReadException error)
+			{
+				called.countDown();
+			}
+		};
+		for(int i = 0; i < CacheIoExecutor.IO_THREADS; i++)
+		{
+			cache.readFromCacheAsync(id(i), slowCallback);
+		}
+
+		try {
+			assertTrue(called.await(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS));
+			assertEquals(CacheTestUtils.value(KEYS - 1, VALUE_LENGTH), cache.readFromCacheAsync(id(KEYS - 1)).get(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS));
+		} finally {
+			release.countDown();
+		}
+	}
+
+	/**
+	 * Keeps every I/O thread busy until {@code release} is counted down, so that everything
+	 * queued meanwhile is ordered by the queue alone.
+	 *
+	 * @return the writes occupying the threads
+	 */
+	private static List<Future<Void>> occupyIoThreads(CacheIoExecutor executor, final CountDownLatch release) throws InterruptedException
+	{
+		final CountDownLatch busy = new CountDownLatch(CacheIoExecutor.IO_THREADS);
+		List<Future<Void>> writes = new ArrayList<Future<Void>>();
+		for(int i = 0; i < CacheIoExecutor.IO_THREADS; i++)
+		{
+			writes.add(executor.write(Uri.parse("http://example.com/busy/" + i), new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					busy.countDown();
+					release.await();
+					return null;
+				}
+			}));
+		}
+		assertTrue(busy.await(MAX_BURST_MILLIS, TimeUnit.MILLISECONDS));
+		return writes;
+	}
+
+	private static <V> Callable<V> record(final List<String> order, final String name, final V result)
+	{
+		return new Callable<V>()
+		{
+			@Override
+			public V call()
+			{
+				order.add(name);
+				return result;
+			}
+		};
+	}
+
+	private static Uri id(int i)
+	{
+		return Uri.parse("http://example.com/resources/" + i);
+	}
+}
@@ -0,0 +1,72 @@
+package com.swampmobile.webby.util.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.net.Uri;
+
+/**
+ * Checks which changes of an observed resource reach its observers: a write of a new value does,
+ * a write of the value it already holds does not.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CacheObserverRegistryTest
+{
+	private static final Uri ID = Uri.parse("http://example.com/observed");
+	private static final int VALUE_LENGTH = 100 * 1024; // several digest chunks
+	private static final long SETTLE_MILLIS = 300;
+
+	private FlatFileDataCache cache;
+
+	@Before
+	public void setUp()
+	{
+		CacheTestUtils.emptyCacheDir(Robolectric.application);
+		cache = new FlatFileDataCache(Robolectric.application);
+	}
+
+	@Test
+	public void deliversOnlyValuesWhichChanged() throws Exception
+	{
+		String first = CacheTestUtils.value(1, VALUE_LENGTH);
+		String second = CacheTestUtils.value(2, VALUE_LENGTH);
+		cache.writeToCacheSync(ID, first);
+
+		final List<String> delivered = new CopyOnWriteArrayList<String>();
+		cache.registerResourceObserver(ID, new DataCache.CacheObserver()
+		{
+			@Override
+			public void onResourceChange(Uri id, String value)
+			{
+				delivered.add(value);
+			}
+
+			@Override
+			public void onResourceDeleted(Uri id)
+			{
+				delivered.add(null);
+			}
+		});
+		Thread.sleep(SETTLE_MILLIS);
+
+		cache.writeToCacheSync(ID, first); // as it was
+		Thread.sleep(SETTLE_MILLIS);
+		cache.writeToCacheSync(ID, second);
+		Thread.sleep(SETTLE_MILLIS);
+		cache.writeToCacheSync(ID, second);
+		Thread.sleep(SETTLE_MILLIS);
+
+		assertEquals(Arrays.asList(second), delivered);
+	}
+}
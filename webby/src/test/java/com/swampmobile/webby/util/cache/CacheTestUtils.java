@@ -0,0 +1,57 @@
+package com.swampmobile.webby.util.cache;
+
+import java.io.File;
+
+import android.content.Context;
+
+/**
+ * Shared setup of the cache tests, which all keep their files in the test application's cache
+ * directory.
+ */
+public class CacheTestUtils
+{
+	private CacheTestUtils()
+	{
+	}
+
+	/**
+	 * Deletes whatever an earlier test left in the application's cache directory.
+	 *
+	 * @return the emptied directory
+	 */
+	public static File emptyCacheDir(Context context)
+	{
+		File dir = context.getCacheDir();
+		deleteContents(dir);
+		return dir;
+	}
+
+	public static void deleteContents(File dir)
+	{
+		File[] files = dir.listFiles();
+		if(files == null)
+			return;
+
+		for(File file : files)
+		{
+			if(file.isDirectory())
+				deleteContents(file);
+			file.delete();
+		}
+	}
+
+	/**
+	 * @return {@code length} characters, different for every {@code seed}
+	 */
+	public static String value(int seed, int length)
+	{
+		StringBuilder value = new StringBuilder(length);
+		value.append(seed).append(':');
+		while(value.length() < length)
+		{
+			value.append((char) ('a' + (value.length() + seed) % 26));
+		}
+		value.setLength(length);
+		return value.toString();
+	}
+}
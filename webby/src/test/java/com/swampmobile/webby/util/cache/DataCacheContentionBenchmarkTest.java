@@ -0,0 +1,194 @@
+package com.swampmobile.webby.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * Runs 3 to 32 workers against each cache, mostly reading a small set of resources, some of them
+ * the same one, while the rest write; one large resource keeps being rewritten in the background.
+ * Reports throughput and read latency, and checks that no read ever sees a torn value.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DataCacheContentionBenchmarkTest
+{
+	private static final int[] WORKER_COUNTS = { 3, 8, 16, 32 };
+	private static final int OPERATIONS_PER_WORKER = 1000;
+	private static final int KEYS = 64;
+	private static final int VALUE_LENGTH = 2048;
+	private static final int LARGE_VALUE_LENGTH = 1024 * 1024;
+	private static final int VERSIONS = 100000; // seed of a value is key * VERSIONS + version
+
+	private Context context;
+
+	@Before
+	public void setUp()
+	{
+		context = Robolectric.application;
+		CacheTestUtils.emptyCacheDir(context);
+	}
+
+	@Test
+	public void flatFileDataCache() throws Exception
+	{
+		run("flat-file", new FlatFileDataCache(context));
+	}
+
+	@Test
+	public void logStructuredDataCache() throws Exception
+	{
+		LogStructuredDataCache cache = new LogStructuredDataCache(new File(context.getCacheDir(), "contention-segments"), LogStructuredDataCache.DEFAULT_MAX_SEGMENT_BYTES);
+		try {
+			run("log-structured", cache);
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void tieredDataCache() throws Exception
+	{
+		run("tiered", new TieredDataCache(new FlatFileDataCache(context), 4 * KEYS * VALUE_LENGTH));
+	}
+
+	private void run(String store, final DataCache cache) throws Exception
+	{
+		for(int i = 0; i < KEYS; i++)
+		{
+			cache.writeToCacheSync(id(i), value(i, 0));
+		}
+
+		System.out.println(store + ": workers   ops/ms   read p50   read p99");
+		for(int workers : WORKER_COUNTS)
+		{
+			run(store, cache, workers);
+		}
+	}
+
+	private void run(String store, final DataCache cache, int workers) throws Exception
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(workers + 1);
+		final AtomicBoolean done = new AtomicBoolean();
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			// Rewrites a large resource for as long as the workers run
+			Future<Integer> largeWrites = pool.submit(new Callable<Integer>()
+			{
+				@Override
+				public Integer call() throws Exception
+				{
+					start.await();
+					int writes = 0;
+					while(!done.get())
+					{
+						cache.writeToCacheSync(Uri.parse("http://example.com/large"), CacheTestUtils.value(writes++, LARGE_VALUE_LENGTH));
+					}
+					return writes;
+				}
+			});
+
+			List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+			for(int i = 0; i < workers; i++)
+			{
+				final int worker = i;
+				results.add(pool.submit(new Callable<long[]>()
+				{
+					@Override
+					public long[] call() throws Exception
+					{
+						start.await();
+						return work(cache, worker);
+					}
+				}));
+			}
+
+			long startNanos = System.nanoTime();
+			start.countDown();
+
+			List<Long> readNanos = new ArrayList<Long>();
+			for(Future<long[]> result : results)
+			{
+				for(long nanos : result.get())
+				{
+					if(nanos >= 0)
+						readNanos.add(nanos);
+				}
+			}
+			long elapsedNanos = System.nanoTime() - startNanos;
+			done.set(true);
+			assertTrue(largeWrites.get() > 0);
+
+			Collections.sort(readNanos);
+			long opsPerMilli = workers * (long) OPERATIONS_PER_WORKER * 1000000 / elapsedNanos;
+			System.out.println(String.format("%s: %7d  %7d  %7dus  %7dus", store, workers, opsPerMilli,
+					readNanos.get(readNanos.size() / 2) / 1000, readNanos.get(readNanos.size() * 99 / 100) / 1000));
+		} finally {
+			done.set(true);
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads nine times out of ten, a quarter of the reads going to one shared resource, and
+	 * otherwise writes a new version of a resource.
+	 *
+	 * @return the latency of each read, -1 for each write
+	 */
+	private static long[] work(DataCache cache, int worker) throws Exception
+	{
+		Random random = new Random(worker);
+		long[] readNanos = new long[OPERATIONS_PER_WORKER];
+		for(int i = 0; i < OPERATIONS_PER_WORKER; i++)
+		{
+			int key = random.nextInt(4) == 0 ? 0 : random.nextInt(KEYS);
+			if(random.nextInt(10) == 0)
+			{
+				cache.writeToCacheSync(id(key), value(key, 1 + random.nextInt(VERSIONS - 1)));
+				readNanos[i] = -1;
+				continue;
+			}
+
+			long start = System.nanoTime();
+			String value = cache.readFromCacheSync(id(key));
+			readNanos[i] = System.nanoTime() - start;
+
+			// Whichever version it is, it must be a whole one of this resource
+			int seed = Integer.parseInt(value.substring(0, value.indexOf(':')));
+			assertEquals(key, seed / VERSIONS);
+			assertEquals(CacheTestUtils.value(seed, VALUE_LENGTH), value);
+		}
+		return readNanos;
+	}
+
+	private static String value(int key, int version)
+	{
+		return CacheTestUtils.value(key * VERSIONS + version, VALUE_LENGTH);
+	}
+
+	private static Uri id(int key)
+	{
+		return Uri.parse("http://example.com/resources/" + key);
+	}
+}
@@ -0,0 +1,148 @@
+package com.swampmobile.webby.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * Writes far past the quota of a FlatFileDataCache while a small set of resources keeps being read,
+ * and checks that the quota holds and that the hot set is never the one evicted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class FlatFileDataCacheQuotaTest
+{
+	private static final int VALUE_LENGTH = 1024;
+	private static final long MAX_BYTES = 256 * VALUE_LENGTH;
+	private static final int MAX_ENTRIES = 200;
+	private static final int HOT_KEYS = 20;
+	private static final int COLD_WRITES = 5000; // 25 times the entry quota
+
+	private Context context;
+
+	@Before
+	public void setUp()
+	{
+		context = Robolectric.application;
+		CacheTestUtils.emptyCacheDir(context);
+	}
+
+	@Test
+	public void hotSetSurvivesWritesFarPastTheQuota() throws Exception
+	{
+		for(CacheEvictionPolicy policy : CacheEvictionPolicy.values())
+		{
+			CacheTestUtils.emptyCacheDir(context);
+			FlatFileDataCache cache = new FlatFileDataCache(context, MAX_BYTES, MAX_ENTRIES, policy);
+
+			writePastQuota(cache, cache);
+
+			assertWithinQuota(cache);
+			assertHotSetCached(cache, policy + ": ");
+		}
+	}
+
+	@Test
+	public void hotSetServedFromMemorySurvivesOnDisk() throws Exception
+	{
+		// The hot set fits in memory, so the disk cache only hears of its reads through touch()
+		FlatFileDataCache disk = new FlatFileDataCache(context, MAX_BYTES, MAX_ENTRIES, CacheEvictionPolicy.LEAST_RECENTLY_USED);
+		TieredDataCache tiered = new TieredDataCache(disk, 64 * VALUE_LENGTH);
+
+		writePastQuota(tiered, tiered);
+
+		assertTrue("Hot set was not served from memory", tiered.getMemoryHits() > COLD_WRITES * HOT_KEYS / 2);
+		assertWithinQuota(disk);
+		assertHotSetCached(disk, "");
+	}
+
+	@Test
+	public void useOrderSurvivesReload() throws Exception
+	{
+		FlatFileDataCache cache = new FlatFileDataCache(context, MAX_BYTES, MAX_ENTRIES, CacheEvictionPolicy.LEAST_RECENTLY_USED);
+		writePastQuota(cache, cache);
+		cache.persistIndex();
+
+		// The hot set has not been read since reload, but was used more recently than any cold resource
+		FlatFileDataCache reloaded = new FlatFileDataCache(context, MAX_BYTES, MAX_ENTRIES, CacheEvictionPolicy.LEAST_RECENTLY_USED);
+		for(int i = 0; i < MAX_ENTRIES - HOT_KEYS; i++)
+		{
+			reloaded.writeToCacheSync(cold(COLD_WRITES + i), CacheTestUtils.value(COLD_WRITES + i, VALUE_LENGTH));
+		}
+
+		assertWithinQuota(reloaded);
+		assertHotSetCached(reloaded, "After reload: ");
+	}
+
+	/**
+	 * Writes the hot set, then many more cold resources, reading the whole hot set after each.
+	 */
+	private void writePastQuota(DataCache writeTo, DataCache readFrom) throws Exception
+	{
+		for(int i = 0; i < HOT_KEYS; i++)
+		{
+			writeTo.writeToCacheSync(hot(i), CacheTestUtils.value(-i, VALUE_LENGTH));
+		}
+
+		for(int i = 0; i < COLD_WRITES; i++)
+		{
+			writeTo.writeToCacheSync(cold(i), CacheTestUtils.value(i, VALUE_LENGTH));
+			for(int j = 0; j < HOT_KEYS; j++)
+			{
+				assertEquals(CacheTestUtils.value(-j, VALUE_LENGTH), readFrom.readFromCacheSync(hot(j)));
+			}
+		}
+	}
+
+	private static void assertWithinQuota(FlatFileDataCache cache)
+	{
+		assertTrue("Over the entry quota: " + cache.getEntryCount(), cache.getEntryCount() <= MAX_ENTRIES);
+		assertTrue("Over the byte quota: " + cache.getSize(), cache.getSize() <= MAX_BYTES);
+
+		int cold = 0;
+		for(int i = 0; i < COLD_WRITES; i++)
+		{
+			if(cache.containsItem(cold(i)))
+				cold++;
+		}
+		assertTrue("Cold resources were not evicted: " + cold, cold <= MAX_ENTRIES - HOT_KEYS);
+	}
+
+	private static void assertHotSetCached(FlatFileDataCache cache, String message) throws Exception
+	{
+		List<Uri> evicted = new ArrayList<Uri>();
+		for(int i = 0; i < HOT_KEYS; i++)
+		{
+			if(!cache.containsItem(hot(i)))
+				evicted.add(hot(i));
+		}
+		assertTrue(message + "hot resources were evicted: " + evicted, evicted.isEmpty());
+
+		for(int i = 0; i < HOT_KEYS; i++)
+		{
+			assertEquals(CacheTestUtils.value(-i, VALUE_LENGTH), cache.readFromCacheSync(hot(i)));
+		}
+	}
+
+	private static Uri hot(int i)
+	{
+		return Uri.parse("http://example.com/hot/" + i);
+	}
+
+	private static Uri cold(int i)
+	{
+		return Uri.parse("http://example.com/cold/" + i);
+	}
+}
@@ -0,0 +1,130 @@
+package com.swampmobile.webby.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.net.Uri;
+
+/**
+ * Caches a 100 MB body through a sink and reads it back as a stream.  The test JVM's heap is
+ * capped well below what holding the body as bytes and a String would take, and the heap in use
+ * is sampled along the way to check that it never grows by more than a few chunks.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class FlatFileDataCacheStreamingTest
+{
+	private static final long BODY_BYTES = 100L * 1024 * 1024;
+	private static final int CHUNK_BYTES = 64 * 1024;
+	private static final long SAMPLE_EVERY_BYTES = 10L * 1024 * 1024;
+	private static final long MAX_HEAP_GROWTH_BYTES = 32L * 1024 * 1024;
+
+	private static final Uri ID = Uri.parse("http://example.com/large");
+
+	private FlatFileDataCache cache;
+
+	@Before
+	public void setUp()
+	{
+		CacheTestUtils.emptyCacheDir(Robolectric.application);
+		cache = new FlatFileDataCache(Robolectric.application, 2 * BODY_BYTES, FlatFileDataCache.DEFAULT_MAX_ENTRIES, CacheEvictionPolicy.LEAST_RECENTLY_USED);
+	}
+
+	@Test
+	public void cachesLargeBodyInConstantMemory() throws Exception
+	{
+		long baseline = usedHeap();
+		long peak = baseline;
+
+		CRC32 written = new CRC32();
+		byte[] chunk = new byte[CHUNK_BYTES];
+		CacheSink sink = cache.openForWriting(ID, new CacheValidators("\"v1\"", null));
+		try {
+			for(long offset = 0; offset < BODY_BYTES; offset += CHUNK_BYTES)
+			{
+				fill(chunk, offset);
+				sink.write(chunk);
+				written.update(chunk);
+
+				if(offset % SAMPLE_EVERY_BYTES == 0)
+					peak = Math.max(peak, usedHeap());
+			}
+			sink.commit();
+		} finally {
+			sink.close();
+		}
+
+		assertTrue(cache.containsItem(ID));
+		assertEquals("\"v1\"", cache.getValidators(ID).getETag());
+
+		CRC32 read = new CRC32();
+		long length = 0;
+		InputStream in = cache.openForReading(ID);
+		try {
+			int count;
+			while((count = in.read(chunk)) != -1)
+			{
+				read.update(chunk, 0, count);
+				if(length / SAMPLE_EVERY_BYTES != (length + count) / SAMPLE_EVERY_BYTES)
+					peak = Math.max(peak, usedHeap());
+				length += count;
+			}
+		} finally {
+			in.close();
+		}
+
+		System.out.println("Cached and read back " + BODY_BYTES / (1024 * 1024) + " MB, heap grew by at most "
+				+ (peak - baseline) / 1024 + " KB of " + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB");
+
+		assertEquals(BODY_BYTES, length);
+		assertEquals(written.getValue(), read.getValue());
+		assertTrue("Heap grew by " + (peak - baseline) + " bytes", peak - baseline < MAX_HEAP_GROWTH_BYTES);
+	}
+
+	@Test
+	public void abortedSinkLeavesNothingBehind() throws Exception
+	{
+		cache.writeToCacheSync(ID, "previous");
+
+		byte[] chunk = new byte[CHUNK_BYTES];
+		CacheSink sink = cache.openForWriting(ID, null);
+		try {
+			for(int i = 0; i < 16; i++)
+			{
+				sink.write(chunk);
+			}
+		} finally {
+			sink.close(); // never committed
+		}
+
+		assertEquals("previous", cache.readFromCacheSync(ID));
+		assertEquals(1, cache.getEntryCount());
+		assertFalse(cache.getSize() > "previous".length());
+	}
+
+	private static void fill(byte[] chunk, long offset)
+	{
+		for(int i = 0; i < chunk.length; i++)
+		{
+			chunk[i] = (byte) ((offset + i) * 31 >>> 3);
+		}
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
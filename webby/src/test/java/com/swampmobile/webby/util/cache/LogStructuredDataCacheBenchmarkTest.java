@@ -0,0 +1,124 @@
+package com.swampmobile.webby.util.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * Compares the log-structured store with the flat-file store at 1k, 10k and 100k entries: the
+ * time to write every entry, to read random entries, and to open the cache again and read one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class LogStructuredDataCacheBenchmarkTest
+{
+	private static final int[] ENTRY_COUNTS = { 1000, 10000, 100000 };
+	private static final int VALUE_LENGTH = 512;
+	private static final int READS = 10000;
+
+	private Context context;
+
+	@Before
+	public void setUp()
+	{
+		context = Robolectric.application;
+		CacheTestUtils.emptyCacheDir(context);
+	}
+
+	@Test
+	public void compareWithFlatFileDataCache() throws Exception
+	{
+		System.out.println("entries   store           write/op   read/op   reopen");
+		for(int entries : ENTRY_COUNTS)
+		{
+			CacheTestUtils.emptyCacheDir(context);
+			final File segments = new File(context.getCacheDir(), "benchmark-segments");
+			run("log-structured", entries, new CacheFactory()
+			{
+				@Override
+				public DataCache open()
+				{
+					return new LogStructuredDataCache(segments, LogStructuredDataCache.DEFAULT_MAX_SEGMENT_BYTES);
+				}
+
+				@Override
+				public void close(DataCache cache)
+				{
+					((LogStructuredDataCache) cache).close();
+				}
+			});
+
+			CacheTestUtils.emptyCacheDir(context);
+			final int maxEntries = entries;
+			run("flat-file", entries, new CacheFactory()
+			{
+				@Override
+				public DataCache open()
+				{
+					return new FlatFileDataCache(context, Long.MAX_VALUE, maxEntries, CacheEvictionPolicy.LEAST_RECENTLY_USED);
+				}
+
+				@Override
+				public void close(DataCache cache)
+				{
+					((FlatFileDataCache) cache).persistIndex();
+				}
+			});
+		}
+	}
+
+	private void run(String store, int entries, CacheFactory factory) throws Exception
+	{
+		DataCache cache = factory.open();
+
+		long start = System.nanoTime();
+		for(int i = 0; i < entries; i++)
+		{
+			cache.writeToCacheSync(id(i), CacheTestUtils.value(i, VALUE_LENGTH));
+		}
+		long writeNanos = (System.nanoTime() - start) / entries;
+
+		Random random = new Random(entries);
+		start = System.nanoTime();
+		for(int i = 0; i < READS; i++)
+		{
+			int key = random.nextInt(entries);
+			assertEquals(CacheTestUtils.value(key, VALUE_LENGTH), cache.readFromCacheSync(id(key)));
+		}
+		long readNanos = (System.nanoTime() - start) / READS;
+
+		factory.close(cache);
+
+		// Opening only rebuilds the index, the first read pays for that
+		start = System.nanoTime();
+		DataCache reopened = factory.open();
+		assertEquals(CacheTestUtils.value(entries - 1, VALUE_LENGTH), reopened.readFromCacheSync(id(entries - 1)));
+		long reopenMillis = (System.nanoTime() - start) / 1000000;
+		factory.close(reopened);
+
+		System.out.println(String.format("%7d   %-14s  %6dus  %6dus  %5dms", entries, store, writeNanos / 1000, readNanos / 1000, reopenMillis));
+	}
+
+	private static Uri id(int i)
+	{
+		return Uri.parse("http://example.com/resources/" + i);
+	}
+
+	private interface CacheFactory
+	{
+		DataCache open();
+
+		void close(DataCache cache);
+	}
+}
@@ -0,0 +1,151 @@
+package com.swampmobile.webby.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.swampmobile.webby.util.time.Duration;
+
+/**
+ * Measures the latency of a cache hit on a hot resource, as WebbyService looks it up: contains,
+ * age check, then read.  Once with the flat-file cache alone, once with the memory tier in front.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TieredDataCacheBenchmarkTest
+{
+	private static final int HOT_KEYS = 100;
+	private static final int VALUE_LENGTH = 4096;
+	private static final int WARM_UP_LOOKUPS = 20000;
+	private static final int LOOKUPS = 100000;
+
+	private Context context;
+
+	@Before
+	public void setUp()
+	{
+		context = Robolectric.application;
+		CacheTestUtils.emptyCacheDir(context);
+	}
+
+	@Test
+	public void hotKeyLookupLatency() throws Exception
+	{
+		FlatFileDataCache disk = new FlatFileDataCache(context);
+		TieredDataCache tiered = new TieredDataCache(disk, 2 * HOT_KEYS * VALUE_LENGTH);
+		for(int i = 0; i < HOT_KEYS; i++)
+		{
+			tiered.writeToCacheSync(id(i), CacheTestUtils.value(i, VALUE_LENGTH));
+		}
+
+		lookUp(disk, WARM_UP_LOOKUPS);
+		long diskNanos = lookUp(disk, LOOKUPS);
+
+		lookUp(tiered, WARM_UP_LOOKUPS);
+		long memoryHitsBefore = tiered.getMemoryHits();
+		long tieredNanos = lookUp(tiered, LOOKUPS);
+
+		System.out.println("Hot key lookup: " + diskNanos / 1000 + "us from disk, " + tieredNanos / 1000 + "us through the memory tier");
+		System.out.println("Memory hits " + tiered.getMemoryHits() + ", misses " + tiered.getMemoryMisses()
+				+ "; persistent hits " + tiered.getPersistentHits() + ", misses " + tiered.getPersistentMisses());
+
+		assertEquals(LOOKUPS, tiered.getMemoryHits() - memoryHitsBefore);
+		assertEquals(0, tiered.getPersistentMisses());
+		assertTrue("Memory tier is no faster than the disk", tieredNanos < diskNanos);
+	}
+
+	@Test
+	public void countsHitsAndMissesPerTier() throws Exception
+	{
+		FlatFileDataCache disk = new FlatFileDataCache(context);
+		disk.writeToCacheSync(id(0), "on disk");
+		TieredDataCache tiered = new TieredDataCache(disk, 1024);
+
+		assertEquals("on disk", tiered.readFromCacheSync(id(0))); // promoted
+		assertEquals("on disk", tiered.readFromCacheSync(id(0)));
+		assertEquals("", tiered.readFromCacheSync(id(1))); // in neither tier
+
+		assertEquals(1, tiered.getMemoryHits());
+		assertEquals(2, tiered.getMemoryMisses());
+		assertEquals(1, tiered.getPersistentHits());
+		assertEquals(1, tiered.getPersistentMisses());
+	}
+
+	@Test
+	public void readRacingACommitDoesNotPromoteTheOldResource() throws Exception
+	{
+		final TieredDataCache[] tiered = new TieredDataCache[1];
+		FlatFileDataCache disk = new FlatFileDataCache(context)
+		{
+			private boolean committed;
+
+			@Override
+			public InputStream openForReading(Uri id) throws CacheReadException
+			{
+				InputStream in = super.openForReading(id);
+				if(!committed)
+				{
+					// The new version lands while the reader still has the old one open
+					committed = true;
+					try {
+						CacheSink sink = tiered[0].openForWriting(id, null);
+						try {
+							sink.write("new".getBytes(Charset.forName("UTF-8")));
+							sink.commit();
+						} finally {
+							sink.close();
+						}
+					} catch (IOException e) {
+						throw new AssertionError(e);
+					}
+				}
+				return in;
+			}
+		};
+		disk.writeToCacheSync(id(0), "old");
+		tiered[0] = new TieredDataCache(disk, 1024);
+
+		assertEquals("old", tiered[0].readFromCacheSync(id(0)));
+		assertEquals("new", tiered[0].readFromCacheSync(id(0)));
+
+		tiered[0].refresh(id(0)); // e.g. after a 304
+		assertEquals("new", tiered[0].readFromCacheSync(id(0)));
+	}
+
+	/**
+	 * @return the average time of a lookup, in nanos
+	 */
+	private static long lookUp(DataCache cache, int lookups) throws Exception
+	{
+		Random random = new Random(lookups);
+		Duration maxAge = Duration.ONE_HOUR;
+
+		long start = System.nanoTime();
+		for(int i = 0; i < lookups; i++)
+		{
+			Uri id = id(random.nextInt(HOT_KEYS));
+			if(!cache.containsItem(id) || !cache.isYoungerThan(id, maxAge) || cache.readFromCacheSync(id).length() != VALUE_LENGTH)
+				throw new AssertionError("Hot resource missing: " + id);
+		}
+		return (System.nanoTime() - start) / lookups;
+	}
+
+	private static Uri id(int i)
+	{
+		return Uri.parse("http://example.com/hot/" + i);
+	}
+}
@@ -0,0 +1,101 @@
+package com.swampmobile.webby.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.swampmobile.webby.util.cache.DataCache.CacheWriteException;
+
+/**
+ * Checks that queued writes reach the persistent cache: before a shutdown returns, and after the
+ * persistent cache failed to take them once.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WriteBehindDataCacheTest
+{
+	private static final int WRITES = 100;
+	private static final long LONG_GROUP_DELAY_MILLIS = 60 * 1000;
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 10 * 1000;
+
+	private Context context;
+
+	@Before
+	public void setUp()
+	{
+		context = Robolectric.application;
+		CacheTestUtils.emptyCacheDir(context);
+	}
+
+	@Test
+	public void shutdownReturnsOnceEverythingIsWritten() throws Exception
+	{
+		FlatFileDataCache disk = new FlatFileDataCache(context);
+		WriteBehindDataCache cache = new WriteBehindDataCache(disk, CacheSyncPolicy.NONE, LONG_GROUP_DELAY_MILLIS, WriteBehindDataCache.DEFAULT_MAX_GROUP_SIZE);
+		for(int i = 0; i < WRITES; i++)
+		{
+			cache.writeToCacheSync(id(i), "value " + i);
+		}
+
+		assertTrue(cache.shutdown(SHUTDOWN_TIMEOUT_MILLIS));
+		assertEquals(0, cache.getPendingCount());
+		for(int i = 0; i < WRITES; i++)
+		{
+			assertEquals("value " + i, disk.readFromCacheSync(id(i)));
+		}
+
+		try {
+			cache.writeToCacheSync(id(WRITES), "too late");
+			fail("Write accepted after shutdown");
+		} catch (CacheWriteException e) {
+			// expected
+		}
+		assertFalse(disk.containsItem(id(WRITES)));
+	}
+
+	@Test
+	public void failedGroupIsWrittenAgain() throws Exception
+	{
+		FlatFileDataCache disk = new FlatFileDataCache(context)
+		{
+			private boolean failed;
+
+			@Override
+			public void writeToCacheSync(List<CacheWrite> writes, boolean sync) throws CacheWriteException
+			{
+				if(!failed)
+				{
+					failed = true;
+					throw new CacheWriteException(CacheWriteException.WriteError.ERROR_WRITING_TO_CACHE, "disk full");
+				}
+				super.writeToCacheSync(writes, sync);
+			}
+		};
+		WriteBehindDataCache cache = new WriteBehindDataCache(disk);
+
+		cache.writeToCacheSync(id(0), "value");
+		cache.flush();
+
+		assertEquals(0, cache.getPendingCount());
+		assertEquals("value", disk.readFromCacheSync(id(0)));
+		cache.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+	}
+
+	private static Uri id(int i)
+	{
+		return Uri.parse("http://example.com/write-behind/" + i);
+	}
+}
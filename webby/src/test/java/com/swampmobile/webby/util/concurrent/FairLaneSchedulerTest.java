@@ -0,0 +1,255 @@
+package com.swampmobile.webby.util.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a FairLaneScheduler the way WebbyService drains its request queue: one drainer at a time
+ * hands polled items to a worker pool, and every finished item gives its permit back and drains.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class FairLaneSchedulerTest
+{
+    private static final int WORKERS = 8;
+    private static final int LANE_LIMIT = 4;
+    private static final int FAST_CALLS = 200;
+    private static final long FAST_CALL_MILLIS = 2;
+    private static final int RACING_ITEMS = 200000;
+
+    private FairLaneScheduler<Call> scheduler;
+    private ExecutorService workers;
+    private final AtomicInteger drainCount = new AtomicInteger();
+
+    @Before
+    public void setUp()
+    {
+        scheduler = new FairLaneScheduler<Call>(WORKERS, 1, 1, LANE_LIMIT, LANE_LIMIT);
+        workers = Executors.newFixedThreadPool(WORKERS);
+    }
+
+    @After
+    public void tearDown()
+    {
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void fastLaneLatencyStaysFlatWhileAnotherLaneIsStalled() throws Exception
+    {
+        long baseline = runFastCalls();
+
+        // Far more stalled calls than there are workers
+        CountDownLatch stall = new CountDownLatch(1);
+        for (int i = 0; i < WORKERS * 4; i++)
+        {
+            submit(new Call("slow", stall));
+        }
+
+        try
+        {
+            long stalled = runFastCalls();
+            System.out.println("Fast lane p90 queueing latency: " + baseline + "ms alone, " + stalled + "ms next to a stalled lane");
+
+            assertEquals(LANE_LIMIT, scheduler.getLaneInFlight("slow"));
+            assertTrue("The stalled lane took more than its share", scheduler.getInFlight() <= WORKERS);
+            assertTrue("Fast lane slowed down from " + baseline + "ms to " + stalled + "ms", stalled <= baseline + 20);
+        }
+        finally
+        {
+            stall.countDown();
+        }
+    }
+
+    @Test
+    public void removedItemIsNeverPolled()
+    {
+        Call first = new Call("lane", null);
+        Call second = new Call("lane", null);
+        scheduler.offer("lane", 0, first);
+        scheduler.offer("lane", 0, second);
+
+        assertTrue(scheduler.remove("lane", 0, first));
+        assertFalse(scheduler.remove("lane", 0, first));
+        assertEquals(1, scheduler.size());
+        assertEquals(1, scheduler.size("lane"));
+
+        assertSame(second, scheduler.poll());
+        assertNull(scheduler.poll());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void removalsRacingWithPollsLeakNoPermits() throws Exception
+    {
+        // Items are offered and soon removed again, as cancelled requests are, while one thread
+        // drains.  The queue is mostly empty, so a removal often takes the last item.
+        final AtomicInteger removed = new AtomicInteger();
+        Future<?> canceller = workers.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < RACING_ITEMS; i++)
+                {
+                    Call call = new Call("lane", null);
+                    scheduler.offer("lane", 0, call);
+                    Thread.yield();
+                    if (scheduler.remove("lane", 0, call))
+                        removed.incrementAndGet();
+                    Thread.yield();
+                }
+            }
+        });
+
+        int polled = 0;
+        while (!canceller.isDone())
+        {
+            int count = pollAndRelease();
+            if (count == 0)
+                Thread.yield();
+            polled += count;
+        }
+        canceller.get();
+        polled += pollAndRelease();
+
+        assertEquals(RACING_ITEMS, removed.get() + polled);
+        assertEquals(0, scheduler.size());
+        assertEquals(0, scheduler.size("lane"));
+        assertEquals(0, scheduler.getInFlight());
+        assertEquals(0, scheduler.getLaneInFlight("lane"));
+
+        // The lane still has its whole limit
+        for (int i = 0; i < LANE_LIMIT; i++)
+            scheduler.offer("lane", 0, new Call("lane", null));
+        for (int i = 0; i < LANE_LIMIT; i++)
+            assertTrue("Lane lost a permit", scheduler.poll() != null);
+    }
+
+    /**
+     * @return the number of items polled, each of which is released at once
+     */
+    private int pollAndRelease()
+    {
+        int polled = 0;
+        Call call;
+        while ((call = scheduler.poll()) != null)
+        {
+            scheduler.release(call.lane);
+            polled++;
+        }
+        return polled;
+    }
+
+    /**
+     * @return the 90th percentile of the time the fast calls waited between being offered and
+     * starting to execute, in millis
+     */
+    private long runFastCalls() throws InterruptedException
+    {
+        List<Call> calls = new ArrayList<Call>();
+        for (int i = 0; i < FAST_CALLS; i++)
+        {
+            Call call = new Call("fast", null);
+            calls.add(call);
+            submit(call);
+            Thread.sleep(1);
+        }
+
+        List<Long> latencies = new ArrayList<Long>();
+        for (Call call : calls)
+        {
+            assertTrue("Fast call never ran", call.started.await(10, TimeUnit.SECONDS));
+            latencies.add(TimeUnit.NANOSECONDS.toMillis(call.startedAt - call.offeredAt));
+        }
+
+        Collections.sort(latencies);
+        return latencies.get(latencies.size() * 9 / 10);
+    }
+
+    private void submit(Call call)
+    {
+        call.offeredAt = System.nanoTime();
+        scheduler.offer(call.lane, 0, call);
+        drain();
+    }
+
+    private void drain()
+    {
+        if (drainCount.getAndIncrement() != 0)
+            return;
+
+        int missed = 1;
+        do
+        {
+            Call call;
+            while (!workers.isShutdown() && (call = scheduler.poll()) != null)
+            {
+                workers.execute(call);
+            }
+
+            missed = drainCount.addAndGet(-missed);
+        }
+        while (missed != 0);
+    }
+
+    private class Call implements Runnable
+    {
+        private final String lane;
+        private final CountDownLatch stall;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile long offeredAt;
+        private volatile long startedAt;
+
+        private Call(String lane, CountDownLatch stall)
+        {
+            this.lane = lane;
+            this.stall = stall;
+        }
+
+        @Override
+        public void run()
+        {
+            startedAt = System.nanoTime();
+            started.countDown();
+
+            long start = System.currentTimeMillis();
+            try
+            {
+                if (stall != null)
+                    stall.await();
+                else
+                    Thread.sleep(FAST_CALL_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                scheduler.release(lane, System.currentTimeMillis() - start, false);
+                drain();
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.swampmobile.webby.util.json;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares projecting wide documents down to two members per element, and then parsing the
+ * projection, with parsing the whole document into a tree, as a request without a projection does.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class JsonProjectionBenchmarkTest
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int ITEMS = 1000;
+    private static final int[] WIDTHS = { 10, 50, 200 };
+    private static final int WARM_UP_RUNS = 5;
+    private static final int RUNS = 10;
+
+    private static final JsonProjection PROJECTION = JsonProjection.of("items.id", "items.title");
+
+    @Test
+    public void projectionAgainstFullParse() throws Exception
+    {
+        System.out.println("members   document   full parse            projection");
+        for (int width : WIDTHS)
+        {
+            byte[] document = wideDocument(width);
+            checkProjection(document);
+
+            for (int i = 0; i < WARM_UP_RUNS; i++)
+            {
+                parse(document);
+                project(document);
+            }
+
+            long start = System.nanoTime();
+            long allocated = allocatedBytes();
+            for (int i = 0; i < RUNS; i++)
+                parse(document);
+            long parseMicros = (System.nanoTime() - start) / RUNS / 1000;
+            long parseAllocated = (allocatedBytes() - allocated) / RUNS;
+
+            start = System.nanoTime();
+            allocated = allocatedBytes();
+            for (int i = 0; i < RUNS; i++)
+                project(document);
+            long projectMicros = (System.nanoTime() - start) / RUNS / 1000;
+            long projectAllocated = (allocatedBytes() - allocated) / RUNS;
+
+            System.out.println(String.format("%7d  %7d KB  %6d us %7d KB  %6d us %7d KB", width, document.length / 1024,
+                    parseMicros, parseAllocated / 1024, projectMicros, projectAllocated / 1024));
+
+            if (parseAllocated > 0)
+                assertTrue("Projection allocated more than a full parse", projectAllocated < parseAllocated);
+        }
+    }
+
+    private static void checkProjection(byte[] document) throws Exception
+    {
+        JsonArray items = project(document).getAsJsonObject().getAsJsonArray("items");
+        assertEquals(ITEMS, items.size());
+        for (int i = 0; i < ITEMS; i++)
+        {
+            JsonObject item = items.get(i).getAsJsonObject();
+            assertEquals(2, item.entrySet().size());
+            assertEquals(i, item.get("id").getAsInt());
+            assertEquals("Item " + i, item.get("title").getAsString());
+        }
+    }
+
+    private static JsonElement parse(byte[] document)
+    {
+        return new JsonParser().parse(new InputStreamReader(new ByteArrayInputStream(document), UTF_8));
+    }
+
+    private static JsonElement project(byte[] document) throws Exception
+    {
+        return parse(PROJECTION.apply(new ByteArrayInputStream(document)));
+    }
+
+    /**
+     * @return a document of {@link #ITEMS} items, each with an id, a title and {@code width} more
+     * members, some of them nested
+     */
+    private static byte[] wideDocument(int width)
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"total\":").append(ITEMS).append(",\"items\":[");
+        for (int i = 0; i < ITEMS; i++)
+        {
+            if (i > 0)
+                json.append(',');
+            json.append("{\"id\":").append(i).append(",\"title\":\"Item ").append(i).append('"');
+            for (int member = 0; member < width; member++)
+            {
+                json.append(",\"member").append(member).append("\":");
+                if (member % 10 == 9)
+                    json.append("{\"nested\":[1,2,3],\"text\":\"value ").append(member).append("\"}");
+                else if (member % 2 == 0)
+                    json.append('"').append("text of member ").append(member).append('"');
+                else
+                    json.append(member * 1.5);
+            }
+            json.append('}');
+        }
+        json.append("]}");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or 0 if the JVM does not tell
+     */
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return 0;
+
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}